@@ -15,8 +15,12 @@ package it.unipd.dei.ims.falcon;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaBatchExtraction;
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
 import it.unipd.dei.ims.falcon.analysis.transposition.ForcedTranspositionEstimator;
 import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import it.unipd.dei.ims.falcon.indexing.HashSequenceFile;
+import it.unipd.dei.ims.falcon.indexing.HashTermEncoding;
 import it.unipd.dei.ims.falcon.indexing.Indexing;
 import it.unipd.dei.ims.falcon.indexing.IndexingException;
 import it.unipd.dei.ims.falcon.ranking.DocScorePair;
@@ -57,9 +61,19 @@ public class CmdLine {
 					int ntransp, double minkurtosis, QueryPruningStrategy qps, boolean verbose) {
 		// TODO if verbose, print out the number of skipped hashes
 		try {
-			QueryResults qres = QueryMethods.query(new FileInputStream(queryfilepath),
-							new File(cmd.getArgs()[0]), hashes_per_segment, overlap_per_segment, nranks,
-							subsampling, tpe, ntransp, minkurtosis, qps);
+			QueryResults qres;
+			File queryfile = new File(queryfilepath);
+			if (HashSequenceFile.isHashSequenceFile(queryfile)) {
+				HashSequenceFile sequences = HashSequenceFile.read(queryfile);
+				if (!sequences.matches(nranks, subsampling, minkurtosis, tpe))
+					throw new QueryParsingException("hash sequences were computed with different parameters: " + queryfilepath);
+				qres = QueryMethods.query(sequences, new File(cmd.getArgs()[0]), hashes_per_segment, overlap_per_segment,
+								tpe == null ? 1 : ntransp, qps);
+			} else {
+				qres = QueryMethods.query(new FileInputStream(queryfile),
+								new File(cmd.getArgs()[0]), hashes_per_segment, overlap_per_segment, nranks,
+								subsampling, tpe, ntransp, minkurtosis, qps);
+			}
 			Map<String, Double> res = qres.getResults();
 			int r = 1;
 			System.out.println("query: " + queryfilepath);
@@ -80,24 +94,41 @@ public class CmdLine {
 		}
 	}
 
+	/** convert text chroma files into binary ones, keeping names and directory structure */
+	private static void doConvert(File in, File out) throws IOException {
+		if (in.getName().startsWith("."))
+			return;
+		if (in.isDirectory()) {
+			out.mkdirs();
+			for (File f : in.listFiles())
+				doConvert(f, new File(out, f.getName()));
+		} else {
+			out.getAbsoluteFile().getParentFile().mkdirs();
+			ChromaMatrixUtils.convertTextChromaFileIntoBinary(in, out);
+		}
+	}
+
 	private static int[] parseIntArray(String s) {
 		StringTokenizer t = new StringTokenizer(s, ",");
 		int[] ia = new int[t.countTokens()];
 		int ti = 0;
 		while (t.hasMoreTokens())
-			ia[ti] = Integer.parseInt(t.nextToken());
+			ia[ti++] = Integer.parseInt(t.nextToken());
 		return ia;
 	}
 
 	public static void main(String[] args) {
 
-		// last argument is always index path
+		// last argument is always index path (output directory for extraction and conversion)
 		Options options = new Options();
 		// one of these actions has to be specified
 		OptionGroup actionGroup = new OptionGroup();
 		actionGroup.addOption(new Option("i", true, "perform indexing")); // if dir, all files, else only one file
 		actionGroup.addOption(new Option("q", true, "perform a single query"));
 		actionGroup.addOption(new Option("b", false, "perform a query batch (read from stdin)"));
+		actionGroup.addOption(new Option("e", true, "extract chroma features from audio files")); // if dir, all files, else only one file
+		actionGroup.addOption(new Option("c", true, "convert text chroma files into binary format")); // if dir, all files, else only one file
+		actionGroup.addOption(new Option("I", true, "re-build the index from a directory of hash sequence files"));
 		actionGroup.setRequired(true);
 		options.addOptionGroup(actionGroup);
 
@@ -113,6 +144,16 @@ public class CmdLine {
 		options.addOption(new Option("f", "force-transp", true, "force transposition by an amount of semitones"));
 		options.addOption(new Option("p", "pruning", false, "enable query pruning; if -P is unspecified, use default strategy"));
 		options.addOption(new Option("P", "pruning-custom", true, "custom query pruning strategy"));
+		options.addOption(new Option("w", "window-length", true, "length of the analysis window for extraction (ms)"));
+		options.addOption(new Option("r", "hop-ratio", true, "ratio between window length and hop size for extraction"));
+		options.addOption(new Option("R", "analysis-rate", true, "decimate audio to this sample rate before extraction"));
+		options.addOption(new Option("S", "silence-threshold", true, "RMS below which frames are not extracted"));
+		options.addOption(new Option("j", "threads", true, "number of worker threads; for indexing, either per stage or "
+						+ "as a comma separated list of parse,hash,segment,write workers"));
+		options.addOption(new Option("m", "max-in-flight", true, "maximum number of files queued or processed by the workers"));
+		options.addOption(new Option("B", "binary", false, "write extracted chroma files in binary format"));
+		options.addOption(new Option("H", "hash-sequences", true, "when indexing, also write the hash sequence of each song in this directory"));
+		options.addOption(new Option("E", "term-encoding", true, "encoding of the hash terms of a new index: decimal (default) or binary"));
 
 		// parse
 		HelpFormatter formatter = new HelpFormatter();
@@ -121,11 +162,11 @@ public class CmdLine {
 		try {
 			cmd = parser.parse(options, args);
 			if (cmd.getArgs().length != 1)
-				throw new ParseException("no index path was specified");
+				throw new ParseException("no index path or output directory was specified");
 		} catch (ParseException ex) {
 			System.err.println("ERROR - parsing command line:");
 			System.err.println(ex.getMessage());
-			formatter.printHelp("falcon -{i,q,b} [options] index_path", options);
+			formatter.printHelp("falcon -{i,I,q,b,e,c} [options] index_path|output_dir", options);
 			return;
 		}
 
@@ -141,6 +182,16 @@ public class CmdLine {
 		int subsampling = Integer.parseInt(cmd.getOptionValue("s", "1"));
 		double minkurtosis = Float.parseFloat(cmd.getOptionValue("k", "-100."));
 		boolean verbose = cmd.hasOption("v");
+		int[] stageThreads = parseIntArray(cmd.getOptionValue("j", Integer.toString(Runtime.getRuntime().availableProcessors())));
+		if (stageThreads.length == 1)
+			stageThreads = new int[]{stageThreads[0], stageThreads[0], stageThreads[0], stageThreads[0]};
+		if (stageThreads.length != 4) {
+			System.err.println("invalid number of worker threads");
+			System.exit(1);
+		}
+		int threads = 0;
+		for (int t : stageThreads)
+			threads = Math.max(threads, t);
 		int ntransp = Integer.parseInt(cmd.getOptionValue("t", "1"));
 		TranspositionEstimator tpe = null;
 		if (cmd.hasOption("t")) {
@@ -179,13 +230,52 @@ public class CmdLine {
 		if (cmd.hasOption("i")) {
 			try {
 				Indexing.index(new File(cmd.getOptionValue("i")), new File(cmd.getArgs()[0]),
-								hashes_per_segment, overlap_per_segment, subsampling, nranks, minkurtosis, tpe, verbose);
+								hashes_per_segment, overlap_per_segment, subsampling, nranks, minkurtosis, tpe,
+								cmd.hasOption("H") ? new File(cmd.getOptionValue("H")) : null,
+								cmd.hasOption("E") ? HashTermEncoding.forName(cmd.getOptionValue("E"), nranks) : null, stageThreads, verbose);
 			} catch (IndexingException ex) {
 				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
 			} catch (IOException ex) {
 				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
 			}
 		}
+		if (cmd.hasOption("I")) {
+			try {
+				Indexing.rebuild(new File(cmd.getOptionValue("I")), new File(cmd.getArgs()[0]),
+								hashes_per_segment, overlap_per_segment, subsampling, nranks, minkurtosis, tpe,
+								HashTermEncoding.forName(cmd.getOptionValue("E", "decimal"), nranks), stageThreads, verbose);
+			} catch (IndexingException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
+		if (cmd.hasOption("e")) {
+			try {
+				// default silence threshold is below the quantization noise of 16 bit audio,
+				// so that only digital silence (which has no chroma) is skipped
+				ChromaBatchExtraction.extract(new File(cmd.getOptionValue("e")), new File(cmd.getArgs()[0]),
+								Double.parseDouble(cmd.getOptionValue("w", "186")),
+								Integer.parseInt(cmd.getOptionValue("r", "2")),
+								Float.parseFloat(cmd.getOptionValue("R", "0")),
+								Double.parseDouble(cmd.getOptionValue("S", "1e-5")),
+								threads, Integer.parseInt(cmd.getOptionValue("m", Integer.toString(2 * threads))),
+								cmd.hasOption("B"), verbose);
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			} catch (InterruptedException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
+		if (cmd.hasOption("c")) {
+			try {
+				File in = new File(cmd.getOptionValue("c"));
+				File out = new File(cmd.getArgs()[0]);
+				doConvert(in, in.isDirectory() ? out : new File(out, in.getName()));
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
 		if (cmd.hasOption("q")) {
 			String queryfilepath = cmd.getOptionValue("q");
 			doQuery(cmd, queryfilepath, hashes_per_segment, overlap_per_segment, nranks, subsampling, tpe, ntransp, minkurtosis, qpe, verbose);
@@ -204,5 +294,12 @@ public class CmdLine {
 				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
 			}
 		}
+		if (cmd.hasOption("q") || cmd.hasOption("b")) {
+			try {
+				QueryMethods.closeAll();
+			} catch (IOException ex) {
+				Logger.getLogger(CmdLine.class.getName()).log(Level.SEVERE, null, ex);
+			}
+		}
 	}
 }
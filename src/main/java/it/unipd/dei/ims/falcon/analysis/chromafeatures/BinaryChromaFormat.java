@@ -0,0 +1,62 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Layout of chroma files in binary format. A file starts with a header of
+ * {@link #HEADER_SIZE} bytes:
+ * <ol>
+ *  <li>the magic bytes "FCHR";
+ *  <li>the format version (int32);
+ *  <li>the number of frames (int32);
+ *  <li>the sample rate of the analysed audio, 0 if unknown (float32);
+ *  <li>the hop size in samples, 0 if unknown (int32);
+ * </ol>
+ * followed by one row of 12 float32 chroma values per frame. All values are
+ * little endian.
+ */
+final class BinaryChromaFormat {
+
+	static final byte[] MAGIC = {'F', 'C', 'H', 'R'};
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 20;
+	static final int PITCHES = 12;
+	static final int ROW_SIZE = 4 * PITCHES;
+	static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	private BinaryChromaFormat() {
+	}
+
+	/** @return true if the first bytes of the buffer are the magic bytes of the binary format */
+	static boolean hasMagic(byte[] head, int length) {
+		if (length < MAGIC.length)
+			return false;
+		for (int i = 0; i < MAGIC.length; i++)
+			if (head[i] != MAGIC[i])
+				return false;
+		return true;
+	}
+
+	static ByteBuffer header(int frames, float sampleRate, int hopSize) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+		header.put(MAGIC).putInt(VERSION).putInt(frames).putFloat(sampleRate).putInt(hopSize);
+		header.flip();
+		return header;
+	}
+}
@@ -0,0 +1,117 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads chroma files in binary format: a small header (frame count, sample
+ * rate and hop size) followed by packed float32 rows of 12 chroma values; see
+ * {@link BinaryChromaFormat}. Files are memory mapped and frames are accessed
+ * in place, without creating an object for each row.
+ */
+public class BinaryChromaReader {
+
+	private final FloatBuffer values;
+	private final int frames;
+	private final float sampleRate;
+	private final int hopSize;
+
+	private BinaryChromaReader(ByteBuffer buffer) throws IOException {
+		buffer.order(BinaryChromaFormat.ORDER);
+		if (buffer.remaining() < BinaryChromaFormat.HEADER_SIZE)
+			throw new IOException("truncated binary chroma header");
+		byte[] magic = new byte[BinaryChromaFormat.MAGIC.length];
+		buffer.get(magic);
+		if (!BinaryChromaFormat.hasMagic(magic, magic.length))
+			throw new IOException("not a binary chroma file");
+		int version = buffer.getInt();
+		if (version != BinaryChromaFormat.VERSION)
+			throw new IOException("unsupported binary chroma version " + version);
+		frames = buffer.getInt();
+		sampleRate = buffer.getFloat();
+		hopSize = buffer.getInt();
+		if (frames < 0 || buffer.remaining() < (long) frames * BinaryChromaFormat.ROW_SIZE)
+			throw new IOException("truncated binary chroma file");
+		values = buffer.slice().order(BinaryChromaFormat.ORDER).asFloatBuffer();
+	}
+
+	/** map a binary chroma file */
+	public static BinaryChromaReader open(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return new BinaryChromaReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/** read a binary chroma file from a stream, header included */
+	public static BinaryChromaReader read(InputStream is) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		byte[] buf = new byte[64 * 1024];
+		int n;
+		while ((n = is.read(buf)) != -1)
+			bytes.write(buf, 0, n);
+		return new BinaryChromaReader(ByteBuffer.wrap(bytes.toByteArray()));
+	}
+
+	/** @return true if the file starts with the magic bytes of the binary format */
+	public static boolean isBinary(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer head = ByteBuffer.allocate(BinaryChromaFormat.MAGIC.length);
+			while (head.hasRemaining() && channel.read(head) != -1)
+				;
+			return BinaryChromaFormat.hasMagic(head.array(), head.position());
+		}
+	}
+
+	public int getFrameCount() {
+		return frames;
+	}
+
+	/** @return sample rate of the analysed audio, 0 if unknown */
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	/** @return hop size in samples, 0 if unknown */
+	public int getHopSize() {
+		return hopSize;
+	}
+
+	/** @return the chroma value of a pitch class in a frame */
+	public float get(int frame, int pitch) {
+		return values.get(frame * BinaryChromaFormat.PITCHES + pitch);
+	}
+
+	/** copy the 12 values of a frame into dst, starting at offset */
+	public void copyFrame(int frame, float[] dst, int offset) {
+		for (int i = 0; i < BinaryChromaFormat.PITCHES; i++)
+			dst[offset + i] = values.get(frame * BinaryChromaFormat.PITCHES + i);
+	}
+
+	/** @return the chroma vector of a frame */
+	public ChromaVector getChromaVector(int frame) {
+		float[] v = new float[BinaryChromaFormat.PITCHES];
+		copyFrame(frame, v, 0);
+		return new ChromaVector(v);
+	}
+}
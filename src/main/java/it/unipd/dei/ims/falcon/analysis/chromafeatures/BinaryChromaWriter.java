@@ -0,0 +1,94 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes chroma files in binary format (see {@link BinaryChromaReader}).
+ * Rows are appended as they come, so the writer can be passed as a
+ * {@link ChromaFrameListener} to the extractors; the number of frames in the
+ * header is filled in when the writer is closed.
+ */
+public class BinaryChromaWriter implements ChromaFrameListener, Closeable {
+
+	private final FileChannel channel;
+	private final float sampleRate;
+	private final int hopSize;
+	private final ByteBuffer buffer = ByteBuffer.allocate(BinaryChromaFormat.ROW_SIZE * 1024).order(BinaryChromaFormat.ORDER);
+	private int frames = 0;
+
+	/**
+	 * @param file output file; overwritten if it exists
+	 * @param sampleRate sample rate of the analysed audio, 0 if unknown
+	 * @param hopSize hop size in samples, 0 if unknown
+	 */
+	public BinaryChromaWriter(File file, float sampleRate, int hopSize) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.sampleRate = sampleRate;
+		this.hopSize = hopSize;
+		buffer.put(BinaryChromaFormat.header(0, sampleRate, hopSize));
+	}
+
+	public void onFrame(int frame, ChromaVector chroma) throws IOException {
+		write(chroma);
+	}
+
+	public void write(ChromaVector chroma) throws IOException {
+		if (buffer.remaining() < BinaryChromaFormat.ROW_SIZE)
+			flush();
+		for (double v : chroma.getChromaValues())
+			buffer.putFloat((float) v);
+		frames++;
+	}
+
+	/** append the 12 values starting at offset as a row */
+	public void write(float[] values, int offset) throws IOException {
+		if (buffer.remaining() < BinaryChromaFormat.ROW_SIZE)
+			flush();
+		for (int i = 0; i < BinaryChromaFormat.PITCHES; i++)
+			buffer.putFloat(values[offset + i]);
+		frames++;
+	}
+
+	public int getFrameCount() {
+		return frames;
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	public void close() throws IOException {
+		try {
+			flush();
+			ByteBuffer header = BinaryChromaFormat.header(frames, sampleRate, hopSize);
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unipd.dei.ims.falcon.audio.AudioReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts a tree of audio files into chroma files in text or binary format, one
+ * "&lt;audio file name&gt;.chroma" file per audio file, on a pool of worker
+ * threads. Each worker streams the chroma vectors of its file straight to the
+ * output, so memory does not depend on the length of the recordings, and the
+ * number of files being processed or waiting for a worker is bounded.
+ * <p>
+ * Outputs that are newer than their audio file are considered up to date and
+ * are not recomputed; outputs are written to a temporary file which is renamed
+ * only when complete, so an interrupted run never leaves truncated outputs.
+ */
+public class ChromaBatchExtraction {
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(ChromaBatchExtraction.class);
+	public final static String CHROMA_EXTENSION = ".chroma";
+
+	/**
+	 * Extracts chroma features from all the audio files in a directory tree.
+	 *
+	 * @param input audio file, or directory whose files (recursively) are processed; hidden files are skipped
+	 * @param output directory where chroma files are written, mirroring the structure of the input tree
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param analysisRate if positive, audio is decimated to (at least) this rate before the analysis
+	 * @param silenceThreshold frames whose RMS is below this value are not written; 0 keeps all frames
+	 * @param threads number of worker threads
+	 * @param maxInFlight maximum number of files being processed or waiting for a worker
+	 * @param binary write chroma files in binary format (see {@link BinaryChromaReader}) instead of text
+	 * @param verbose print throughput and frames skipped by silence gating for each file
+	 */
+	public static void extract(final File input, final File output, final double winLenInMs, final int hopsizeRatio,
+			final float analysisRate, final double silenceThreshold, final int threads, final int maxInFlight,
+			final boolean binary, final boolean verbose) throws IOException, InterruptedException {
+		if (!input.canRead())
+			throw new IOException("cannot read input path");
+		if (!output.exists() && !output.mkdirs())
+			throw new IOException("cannot create output directory");
+		if (threads < 1 || maxInFlight < threads)
+			throw new IllegalArgumentException("at least one thread and no less files in flight than threads are required");
+
+		final List<File> files = new ArrayList<File>();
+		listAudioFiles(input, files);
+
+		final long startTime = System.nanoTime();
+		final AtomicLong audioNanos = new AtomicLong();
+		final AtomicInteger done = new AtomicInteger();
+		final AtomicInteger skipped = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicLong gatedFrames = new AtomicLong();
+		final ThreadLocal<ChromaExtractor> extractors = new ThreadLocal<ChromaExtractor>();
+		final Semaphore inFlight = new Semaphore(maxInFlight);
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			for (final File file : files) {
+				final File out = outputFile(input, output, file);
+				if (out.exists() && out.lastModified() >= file.lastModified()) {
+					skipped.incrementAndGet();
+					continue;
+				}
+				inFlight.acquire();
+				pool.submit(new Runnable() {
+					public void run() {
+						try {
+							long start = System.nanoTime();
+							Extracted extracted = extractFile(file, out, extractors, winLenInMs, hopsizeRatio, analysisRate, silenceThreshold, binary);
+							long elapsed = System.nanoTime() - start;
+							audioNanos.addAndGet((long) (extracted.seconds * 1e9));
+							gatedFrames.addAndGet(extracted.gatedFrames);
+							done.incrementAndGet();
+							if (verbose)
+								System.out.println(String.format("%10.1fs audio %8.2fs wall %8.1fx %8d frames %8d gated - %s",
+										extracted.seconds, elapsed / 1e9, extracted.seconds / (elapsed / 1e9),
+										extracted.frames, extracted.gatedFrames, file.getPath()));
+						} catch (IOException | UnsupportedAudioFileException | RuntimeException ex) {
+							failed.incrementAndGet();
+							LOGGER.error("cannot extract chroma features from " + file.getPath(), ex);
+						} finally {
+							inFlight.release();
+						}
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(1000, TimeUnit.DAYS);
+		}
+
+		double wall = (System.nanoTime() - startTime) / 1e9;
+		double audio = audioNanos.get() / 1e9;
+		System.out.println(String.format("[EXTRACTION] - %d extracted, %d up to date, %d failed - %.1fs audio in %.2fs (%.1f audio s/s) - %d frames gated",
+				done.get(), skipped.get(), failed.get(), audio, wall, audio / wall, gatedFrames.get()));
+	}
+
+	/** outcome of the extraction of a file */
+	private static final class Extracted {
+
+		// length of the audio file in seconds
+		final double seconds;
+		// number of frames, including those skipped by silence gating
+		final int frames;
+		final int gatedFrames;
+
+		Extracted(double seconds, int frames, int gatedFrames) {
+			this.seconds = seconds;
+			this.frames = frames;
+			this.gatedFrames = gatedFrames;
+		}
+	}
+
+	private static Extracted extractFile(File file, File out, ThreadLocal<ChromaExtractor> extractors, double winLenInMs,
+			int hopsizeRatio, float analysisRate, double silenceThreshold, boolean binary) throws IOException, UnsupportedAudioFileException {
+		final File tmp = new File(out.getParentFile(), out.getName() + ".tmp");
+		out.getParentFile().mkdirs();
+		try (AudioReader reader = analysisRate > 0 ? new AudioReader(file, analysisRate) : new AudioReader(file)) {
+			ChromaExtractor extractor = extractors.get();
+			if (extractor == null || extractor.getSampleRate() != reader.getSampleRate()) {
+				extractor = new ChromaExtractor(reader.getSampleRate(), winLenInMs, hopsizeRatio, silenceThreshold);
+				extractors.set(extractor);
+			}
+			final int frames;
+			if (binary) {
+				try (BinaryChromaWriter writer = new BinaryChromaWriter(tmp, reader.getSampleRate(), extractor.getHopSize())) {
+					frames = extractor.extractChromaFeatures(reader, writer);
+				}
+			} else try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.US_ASCII))) {
+				frames = extractor.extractChromaFeatures(reader,
+						(frame, chroma) -> ChromaMatrixUtils.writeChromaVector(writer, chroma));
+			}
+			Files.move(tmp.toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return new Extracted((double) (frames + hopsizeRatio - 1) * extractor.getHopSize() / reader.getSampleRate(),
+					frames, extractor.getGatedFrames());
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	private static void listAudioFiles(File f, List<File> files) {
+		if (f.getName().startsWith("."))
+			return;
+		if (f.isDirectory()) {
+			File[] children = f.listFiles();
+			if (children != null)
+				for (File c : children)
+					listAudioFiles(c, files);
+		} else if (!f.getName().endsWith(CHROMA_EXTENSION) && !f.getName().endsWith(CHROMA_EXTENSION + ".tmp")) {
+			files.add(f);
+		}
+	}
+
+	/** @return the chroma file for an audio file, at the same position relative to output as file to input */
+	private static File outputFile(File input, File output, File file) {
+		String relative = input.isDirectory()
+				? input.toPath().relativize(file.toPath()).toString()
+				: file.getName();
+		return new File(output, relative + CHROMA_EXTENSION);
+	}
+}
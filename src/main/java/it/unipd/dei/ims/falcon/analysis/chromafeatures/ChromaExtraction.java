@@ -15,25 +15,36 @@ package it.unipd.dei.ims.falcon.analysis.chromafeatures;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
 import it.unipd.dei.ims.falcon.audio.AudioReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.DoubleUnaryOperator;
 
-import static java.util.stream.Collectors.toList;
 import static java.util.stream.IntStream.range;
 
 public class ChromaExtraction {
     private final static Logger LOGGER = LoggerFactory.getLogger(ChromaExtraction.class);
 	private final static double A0 = 440. / 16.;
+	private final static ThreadLocal<ChromaExtractor> EXTRACTORS = new ThreadLocal<ChromaExtractor>();
+
+	/** available chroma extraction engines */
+	public enum Engine {
+		/** full FFT per hop, see {@link ChromaExtractor} */
+		FFT,
+		/** sliding DFT over the bins of a pitch band, see {@link SlidingDftChromaExtractor} */
+		SLIDING_DFT,
+		/** single precision FFT, see {@link FloatChromaExtractor} */
+		FFT_FLOAT
+	}
 
-	private static double[] getHammingWindow(final int N) {
+	static double[] getHammingWindow(final int N) {
 		return range(0, N)
                 .mapToDouble(index -> .54 - .46 * Math.cos(2 * Math.PI * index / (N - 1)))
                 .toArray();
@@ -66,43 +77,21 @@ public class ChromaExtraction {
                     .andThen(value -> value % 12);
 
 
-	private static int closestPitch(final double frequency) {
+	static int closestPitch(final double frequency) {
 	    return (int) closestPitch.applyAsDouble(frequency);
 	}
 
+	/** @return the analysis window length, i.e. winLenInMs rounded to the closest power of two samples */
+	static int windowLength(float sampleRate, double winLenInMs) {
+		return closestPowerOfTwo((int) (sampleRate * (winLenInMs / 1000.)));
+	}
+
 	static double octave(final double frequency) {
         final double octave = Math.log10(frequency / A0) / Math.log10(2);
 	    LOGGER.debug("Frequency {} belongs to octave {}", frequency, octave);
 	    return octave;
     }
 
-	/**
-	 * shift the audio buffer left, and read;
-	 * @return true if all n samples were read; false otherise
-	 */
-	private static boolean shiftAndRead(double[] buffer, AudioReader reader, int n) throws IOException {
-		double[] tmp = reader.readDoubleSamples(n);
-		if (tmp.length < n)
-			return false;
-
-        for (int i = 0; i < buffer.length - n; i++)
-            buffer[i] = buffer[i + n];
-
-		for (int i = 0; i < n; i++)
-			buffer[buffer.length - n + i] = tmp[i];
-		return true;
-	}
-
-	private static double[] peakPick(double[] spectrum) {
-		double[] pp = new double[spectrum.length];
-		for (int i = 1; i < spectrum.length - 1; i++)
-			if (spectrum[i] > spectrum[i - 1] && spectrum[i] > spectrum[i + 1])
-				pp[i] = spectrum[i];
-			else
-				pp[i] = 0;
-		return pp;
-	}
-
 	/**
 	 * Returns a matrix of chroma features, each chroma is a row
      *
@@ -112,44 +101,151 @@ public class ChromaExtraction {
 	 * @return 
 	 */
 	public static List<ChromaVector> getChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio) throws IOException {
+		return extractor(reader.getSampleRate(), winLenInMs, hopsizeRatio).getChromaFeatures(reader);
+	}
 
-		int winLen = closestPowerOfTwo((int) (reader.getSampleRate() * (winLenInMs / 1000.)));
-		int hopSize = winLen / hopsizeRatio;
+	/**
+	 * Returns a matrix of chroma features computed by the given engine, each chroma is a row
+	 *
+	 * @param reader audio stream
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param engine chroma extraction engine
+	 */
+	public static List<ChromaVector> getChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio,
+			Engine engine) throws IOException {
+		switch (engine) {
+			case FFT:
+				return getChromaFeatures(reader, winLenInMs, hopsizeRatio);
+			case SLIDING_DFT:
+				return new SlidingDftChromaExtractor(reader.getSampleRate(), winLenInMs, hopsizeRatio).getChromaFeatures(reader);
+			case FFT_FLOAT:
+				ChromaMatrix matrix = new FloatChromaExtractor(reader.getSampleRate(), winLenInMs, hopsizeRatio).getChromaMatrix(reader);
+				List<ChromaVector> chromas = new ArrayList<ChromaVector>(matrix.size());
+				for (int i = 0; i < matrix.size(); i++)
+					chromas.add(matrix.getChromaVector(i));
+				return chromas;
+			default:
+				throw new IllegalArgumentException("unknown engine " + engine);
+		}
+	}
 
-		List<float[]> chromas_floats = new LinkedList<float[]>();
-		double[] hammingwin = getHammingWindow(winLen);
+	/**
+	 * Returns the chroma matrix computed by the given engine, ready to be
+	 * hashed; with {@link Engine#FFT_FLOAT} the frames are never converted to
+	 * double precision {@link ChromaVector}'s.
+	 *
+	 * @param reader audio stream
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param engine chroma extraction engine
+	 */
+	public static ChromaMatrix getChromaMatrix(AudioReader reader, double winLenInMs, int hopsizeRatio,
+			Engine engine) throws IOException {
+		if (engine == Engine.FFT_FLOAT)
+			return new FloatChromaExtractor(reader.getSampleRate(), winLenInMs, hopsizeRatio).getChromaMatrix(reader);
+		List<ChromaVector> chromas = getChromaFeatures(reader, winLenInMs, hopsizeRatio, engine);
+		return new ChromaMatrix(chromas.toArray(new ChromaVector[chromas.size()]));
+	}
 
+	/**
+	 * Streams chroma features to a listener as soon as each frame is computed,
+	 * so that downstream stages can run while the audio is being decoded.
+	 *
+	 * @param reader audio stream
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param listener receives each chroma vector, in frame order
+	 * @return the number of frames
+	 */
+	public static int extractChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio,
+			ChromaFrameListener listener) throws IOException {
+		return extractor(reader.getSampleRate(), winLenInMs, hopsizeRatio).extractChromaFeatures(reader, listener);
+	}
 
-		double[] audio = new double[winLen];
-		shiftAndRead(audio, reader, hopSize * (hopsizeRatio - 1));
+	/**
+	 * Returns the same matrix of chroma features as
+	 * {@link #getChromaFeatures(AudioReader, double, int)}, splitting the frames
+	 * of the decoded signal into ranges that are processed in parallel on the
+	 * given pool, each worker thread using its own {@link ChromaExtractor}.
+	 * The whole signal is decoded in memory before the analysis starts.
+	 *
+	 * @param reader audio stream
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param pool pool where frame ranges are computed
+	 */
+	public static List<ChromaVector> getChromaFeatures(AudioReader reader, double winLenInMs, int hopsizeRatio,
+			ForkJoinPool pool) throws IOException {
+		final float sampleRate = reader.getSampleRate();
+		final double[] signal = readAll(reader);
+		final ChromaVector[] chromas = new ChromaVector[
+				extractor(sampleRate, winLenInMs, hopsizeRatio).frameCount(signal.length)];
+		pool.invoke(new FrameRangeTask(signal, chromas, 0, chromas.length, sampleRate, winLenInMs, hopsizeRatio));
+		return Arrays.asList(chromas);
+	}
 
-		DoubleFFT_1D fftizer = new DoubleFFT_1D(winLen);
+	/** computes the chroma vectors of the frames in [from, to), splitting the range when too large */
+	private static final class FrameRangeTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int MIN_FRAMES = 256;
+
+		private final double[] signal;
+		private final ChromaVector[] chromas;
+		private final int from;
+		private final int to;
+		private final float sampleRate;
+		private final double winLenInMs;
+		private final int hopsizeRatio;
+
+		FrameRangeTask(double[] signal, ChromaVector[] chromas, int from, int to,
+				float sampleRate, double winLenInMs, int hopsizeRatio) {
+			this.signal = signal;
+			this.chromas = chromas;
+			this.from = from;
+			this.to = to;
+			this.sampleRate = sampleRate;
+			this.winLenInMs = winLenInMs;
+			this.hopsizeRatio = hopsizeRatio;
+		}
 
-		int[] closestPitches = new int[winLen / 2];
-		for (int i = 0; i < closestPitches.length; i++) {
-			double f = i / reader.getSampleRate();
-			closestPitches[i] = closestPitch(f);
+		@Override
+		protected void compute() {
+			if (to - from > MIN_FRAMES) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new FrameRangeTask(signal, chromas, from, mid, sampleRate, winLenInMs, hopsizeRatio),
+						new FrameRangeTask(signal, chromas, mid, to, sampleRate, winLenInMs, hopsizeRatio));
+			} else {
+				ChromaExtractor extractor = extractor(sampleRate, winLenInMs, hopsizeRatio);
+				for (int i = from; i < to; i++)
+					chromas[i] = extractor.getChromaFeature(signal, i);
+			}
 		}
+	}
 
-		while (true) {
-			if (!shiftAndRead(audio, reader, hopSize))
-				break;
-			double[] fft = Arrays.copyOf(audio, winLen);       // copy buffer 
-			for (int i = 0; i < winLen; i++)                    // do windowing
-				fft[i] *= hammingwin[i];
-			fftizer.realForward(fft);                          // do fft
-			double[] spectrum = new double[winLen / 2];          // compute abs fft
-			for (int i = 0; i < Math.min(spectrum.length, 10000 / reader.getSampleRate() * winLen); i++)
-				spectrum[i] = Math.sqrt(fft[2 * i] * fft[2 * i] + fft[2 * i + 1] * fft[2 * i + 1]);
-			spectrum = peakPick(spectrum);                     // spectrum peaks
-			float[] chroma = new float[12];
-			for (int i = 0; i < chroma.length; i++)
-				chroma[i] = 0;
-			for (int i = 0; i < closestPitches.length; i++)
-				chroma[closestPitches[i]] += spectrum[i];
-			chromas_floats.add(chroma);
+	/** read the whole stream */
+	private static double[] readAll(AudioReader reader) throws IOException {
+		double[] signal = new double[(int) reader.getSampleRate() * 60];
+		int length = 0;
+		int read;
+		while ((read = reader.read(signal, length, signal.length - length)) > 0) {
+			length += read;
+			if (length == signal.length)
+				signal = Arrays.copyOf(signal, signal.length * 2);
 		}
+		return length == signal.length ? signal : Arrays.copyOf(signal, length);
+	}
 
-		return chromas_floats.stream().map(ChromaVector::new).collect(toList());
+	/**
+	 * @return an extractor for the given parameters, reusing the one of the
+	 *         previous call from the same thread when the parameters match
+	 */
+	static ChromaExtractor extractor(float sampleRate, double winLenInMs, int hopsizeRatio) {
+		ChromaExtractor extractor = EXTRACTORS.get();
+		if (extractor == null || !extractor.matches(sampleRate, windowLength(sampleRate, winLenInMs), hopsizeRatio)) {
+			extractor = new ChromaExtractor(sampleRate, winLenInMs, hopsizeRatio);
+			EXTRACTORS.set(extractor);
+		}
+		return extractor;
 	}
 }
@@ -0,0 +1,258 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import edu.emory.mathcs.jtransforms.fft.DoubleFFT_1D;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chroma extraction engine for a given sample rate, window length and hop
+ * ratio. The Hamming window, the FFT plan and the bin-to-pitch map are
+ * computed once at construction time, and all the per-frame buffers are
+ * reused, so that the only allocation in the frame loop is the returned
+ * {@link ChromaVector}.
+ * <p>
+ * Instances are not thread safe: the intended usage is one extractor per
+ * worker thread, shared across all the files that thread processes.
+ */
+public class ChromaExtractor {
+
+	/**
+	 * Circular audio buffer holding the last winLen samples read; the oldest
+	 * sample is at position head. Advancing by a hop overwrites the oldest
+	 * samples in place, so no shifting nor allocation is needed.
+	 */
+	private static final class SampleWindow {
+		private final double[] ring;
+		private int head = 0;
+
+		SampleWindow(int winLen) {
+			ring = new double[winLen];
+		}
+
+		/**
+		 * read n samples into the window, discarding the n oldest ones;
+		 * @return true if all n samples were read; false otherwise
+		 */
+		boolean advance(AudioReader reader, int n) throws IOException {
+			int first = Math.min(n, ring.length - head);
+			if (reader.read(ring, head, first) < first)
+				return false;
+			if (n > first && reader.read(ring, 0, n - first) < n - first)
+				return false;
+			head = (head + n) % ring.length;
+			return true;
+		}
+
+		/**
+		 * copy the window, oldest sample first, into dst, multiplying by the given weights
+		 * @return the energy of the weighted window
+		 */
+		double copyTo(double[] dst, double[] weights) {
+			double energy = 0;
+			int tail = ring.length - head;
+			for (int i = 0; i < tail; i++) {
+				dst[i] = ring[head + i] * weights[i];
+				energy += dst[i] * dst[i];
+			}
+			for (int i = tail; i < ring.length; i++) {
+				dst[i] = ring[i - tail] * weights[i];
+				energy += dst[i] * dst[i];
+			}
+			return energy;
+		}
+	}
+
+	private final float sampleRate;
+	private final int winLen;
+	private final int hopsizeRatio;
+	private final int hopSize;
+
+	private final double[] hammingwin;
+	private final DoubleFFT_1D fftizer;
+	private final int[] closestPitches;
+	// number of spectrum bins below 10kHz
+	private final int nBins;
+
+	// frames whose windowed energy is below this value are not analyzed
+	private final double minEnergy;
+	private int gatedFrames;
+
+	// per-frame buffers
+	private final double[] fft;
+	private final double[] spectrum;
+	private final float[] chroma = new float[12];
+
+	/**
+	 * @param sampleRate sample rate of the audio streams to analyze
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 */
+	public ChromaExtractor(float sampleRate, double winLenInMs, int hopsizeRatio) {
+		this(sampleRate, winLenInMs, hopsizeRatio, 0);
+	}
+
+	/**
+	 * @param sampleRate sample rate of the audio streams to analyze
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param silenceThreshold frames whose RMS after windowing is below this
+	 *            value are skipped without computing their FFT; 0 disables gating
+	 */
+	public ChromaExtractor(float sampleRate, double winLenInMs, int hopsizeRatio, double silenceThreshold) {
+		this.sampleRate = sampleRate;
+		this.winLen = ChromaExtraction.windowLength(sampleRate, winLenInMs);
+		this.hopsizeRatio = hopsizeRatio;
+		this.hopSize = winLen / hopsizeRatio;
+
+		hammingwin = ChromaExtraction.getHammingWindow(winLen);
+		fftizer = new DoubleFFT_1D(winLen);
+		closestPitches = new int[winLen / 2];
+		for (int i = 0; i < closestPitches.length; i++) {
+			double f = i / sampleRate;
+			closestPitches[i] = ChromaExtraction.closestPitch(f);
+		}
+		minEnergy = silenceThreshold * silenceThreshold * winLen;
+		nBins = (int) Math.ceil(Math.min(winLen / 2, 10000 / sampleRate * winLen));
+
+		fft = new double[winLen];
+		spectrum = new double[winLen / 2];
+	}
+
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	public int getWindowLength() {
+		return winLen;
+	}
+
+	public int getHopsizeRatio() {
+		return hopsizeRatio;
+	}
+
+	public int getHopSize() {
+		return hopSize;
+	}
+
+	/** @return number of frames skipped by silence gating during the last extraction from an {@link AudioReader} */
+	public int getGatedFrames() {
+		return gatedFrames;
+	}
+
+	/** @return true if this extractor was built for the given parameters, without silence gating */
+	public boolean matches(float sampleRate, int winLen, int hopsizeRatio) {
+		return this.sampleRate == sampleRate && this.winLen == winLen && this.hopsizeRatio == hopsizeRatio
+				&& minEnergy == 0;
+	}
+
+	/**
+	 * Returns a matrix of chroma features, each chroma is a row
+	 *
+	 * @param reader audio stream, whose sample rate must be the one of this extractor
+	 */
+	public List<ChromaVector> getChromaFeatures(AudioReader reader) throws IOException {
+		final List<ChromaVector> chromas = new ArrayList<ChromaVector>();
+		extractChromaFeatures(reader, (frame, chroma) -> chromas.add(chroma));
+		return chromas;
+	}
+
+	/**
+	 * Streams the chroma features to a listener, frame by frame, as soon as
+	 * each of them is computed; memory usage does not depend on the length of
+	 * the recording. Frames skipped by silence gating are not notified, but
+	 * still count in the frame numbering.
+	 *
+	 * @param reader audio stream, whose sample rate must be the one of this extractor
+	 * @param listener receives each chroma vector
+	 * @return the number of frames
+	 */
+	public int extractChromaFeatures(AudioReader reader, ChromaFrameListener listener) throws IOException {
+		if (reader.getSampleRate() != sampleRate)
+			throw new IllegalArgumentException("extractor is configured for sample rate " + sampleRate
+					+ ", got " + reader.getSampleRate());
+
+		int frame = 0;
+		gatedFrames = 0;
+		SampleWindow audio = new SampleWindow(winLen);
+		audio.advance(reader, hopSize * (hopsizeRatio - 1));
+		while (audio.advance(reader, hopSize)) {
+			double energy = audio.copyTo(fft, hammingwin);     // copy buffer and do windowing
+			if (energy < minEnergy)
+				gatedFrames++;
+			else
+				listener.onFrame(frame, new ChromaVector(computeChroma(fft)));
+			frame++;
+		}
+		return frame;
+	}
+
+	/**
+	 * @param length number of samples in the signal
+	 * @return the number of frames in a signal of the given length, including
+	 *         those skipped by silence gating
+	 */
+	public int frameCount(int length) {
+		int prefill = hopSize * (hopsizeRatio - 1);
+		return length < prefill ? 0 : (length - prefill) / hopSize;
+	}
+
+	/**
+	 * Compute the chroma vector of a single frame of a fully decoded signal;
+	 * the result is the same as the one of the same frame in
+	 * {@link #getChromaFeatures(AudioReader)}.
+	 *
+	 * @param signal the decoded audio
+	 * @param frame frame number, less than {@link #frameCount(int)}
+	 * @return the chroma vector, or null if the frame is skipped by silence gating
+	 */
+	public ChromaVector getChromaFeature(double[] signal, int frame) {
+		// the window ends where the reader would be after the prefill and frame+1 hops
+		int start = hopSize * (hopsizeRatio - 1) + (frame + 1) * hopSize - winLen;
+		int zeros = Math.max(0, -start);
+		for (int i = 0; i < zeros; i++)
+			fft[i] = 0;
+		double energy = 0;
+		for (int i = zeros; i < winLen; i++) {
+			fft[i] = signal[start + i] * hammingwin[i];
+			energy += fft[i] * fft[i];
+		}
+		return energy < minEnergy ? null : new ChromaVector(computeChroma(fft));
+	}
+
+	/**
+	 * Compute the chroma of a windowed frame.
+	 *
+	 * @param frame windowed audio frame of length winLen; overwritten by its fft
+	 * @return the chroma values; the array is reused by the next call
+	 */
+	float[] computeChroma(double[] frame) {
+		fftizer.realForward(frame);                            // do fft
+		for (int i = 0; i < nBins; i++)                        // compute abs fft
+			spectrum[i] = Math.sqrt(frame[2 * i] * frame[2 * i] + frame[2 * i + 1] * frame[2 * i + 1]);
+		for (int i = 0; i < chroma.length; i++)
+			chroma[i] = 0;
+		// only spectrum peaks contribute; bins above nBins are always zero
+		for (int i = 1; i < Math.min(nBins, spectrum.length - 1); i++)
+			if (spectrum[i] > spectrum[i - 1] && spectrum[i] > spectrum[i + 1])
+				chroma[closestPitches[i]] += spectrum[i];
+		return chroma;
+	}
+}
@@ -0,0 +1,33 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+
+/**
+ * Receives chroma vectors as soon as they are computed by a {@link ChromaExtractor}.
+ */
+public interface ChromaFrameListener {
+
+	/**
+	 * Called once per frame, in frame order.
+	 *
+	 * @param frame frame number, starting from 0
+	 * @param chroma chroma vector of the frame
+	 * @throws IOException aborts the extraction, and is rethrown to its caller
+	 */
+	void onFrame(int frame, ChromaVector chroma) throws IOException;
+}
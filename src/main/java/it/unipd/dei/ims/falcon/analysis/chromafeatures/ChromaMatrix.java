@@ -0,0 +1,252 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Arrays;
+
+/**
+ * A sequence of chroma vectors stored as a struct of arrays: the normalized
+ * values of all frames in a single float array, 12 consecutive values per
+ * frame, and energy and kurtosis in parallel primitive arrays. It replaces
+ * arrays of {@link ChromaVector} where whole songs are processed, without an
+ * object per frame.
+ * <p>
+ * Frames are normalized with 2-norm when they are added, and their kurtosis
+ * is computed at the same time from the double precision values, so energy
+ * and kurtosis are the same as those of the corresponding {@link ChromaVector}.
+ * Rank representations are computed on the stored single precision values.
+ */
+public class ChromaMatrix {
+
+	public static final int PITCHES = 12;
+
+	private float[] values;
+	private float[] energies;
+	private double[] kurtoses;
+	private int size = 0;
+	private final double[] scratch = new double[PITCHES];
+
+	public ChromaMatrix() {
+		this(1024);
+	}
+
+	/** @param capacity number of frames that can be added before growing the arrays */
+	public ChromaMatrix(int capacity) {
+		capacity = Math.max(capacity, 1);
+		values = new float[PITCHES * capacity];
+		energies = new float[capacity];
+		kurtoses = new double[capacity];
+	}
+
+	/** build a matrix holding the same values as the given vectors */
+	public ChromaMatrix(ChromaVector[] vectors) {
+		this(vectors.length);
+		for (ChromaVector v : vectors)
+			add(v);
+	}
+
+	private int append() {
+		if (size == energies.length) {
+			int capacity = 2 * energies.length;
+			values = Arrays.copyOf(values, PITCHES * capacity);
+			energies = Arrays.copyOf(energies, capacity);
+			kurtoses = Arrays.copyOf(kurtoses, capacity);
+		}
+		return size++;
+	}
+
+	/**
+	 * append a frame, normalizing it
+	 * @param values array holding the (non normalized) chroma values
+	 * @param offset position of the first of the 12 chroma values
+	 * @throws IllegalArgumentException if the values do not sum to a positive number
+	 */
+	public void add(double[] values, int offset) {
+		float energy = ChromaVector.normalize(values, offset, scratch);
+		int frame = append();
+		for (int i = 0; i < PITCHES; i++)
+			this.values[PITCHES * frame + i] = (float) scratch[i];
+		energies[frame] = energy;
+		kurtoses[frame] = ChromaVector.kurtosis(scratch);
+	}
+
+	/**
+	 * append a frame in packed rows of frames, normalizing it
+	 * @see #add(double[], int)
+	 */
+	public void add(float[] values, int offset) {
+		for (int i = 0; i < PITCHES; i++)
+			scratch[i] = values[offset + i];
+		add(scratch, 0);
+	}
+
+	/** append all the frames in an array of packed rows of 12 values */
+	public void addAll(double[] values, int frames) {
+		for (int f = 0; f < frames; f++)
+			add(values, PITCHES * f);
+	}
+
+	/** append a chroma vector, which is already normalized */
+	public void add(ChromaVector vector) {
+		int frame = append();
+		double[] v = vector.getChromaValues();
+		for (int i = 0; i < PITCHES; i++)
+			values[PITCHES * frame + i] = (float) v[i];
+		energies[frame] = vector.getEnergy();
+		kurtoses[frame] = vector.getKurtosis();
+	}
+
+	/** @return number of frames */
+	public int size() {
+		return size;
+	}
+
+	/** @return the normalized value of a pitch class in a frame */
+	public float get(int frame, int pitch) {
+		return values[PITCHES * frame + pitch];
+	}
+
+	/**
+	 * @return the array backing the matrix; frame f starts at 12 * f and only
+	 *         the first 12 * size() values are meaningful
+	 */
+	public float[] getValues() {
+		return values;
+	}
+
+	/** @return the energy that the frame had before normalization */
+	public float getEnergy(int frame) {
+		return energies[frame];
+	}
+
+	/** @return the kurtosis of a frame */
+	public double getKurtosis(int frame) {
+		return kurtoses[frame];
+	}
+
+	/** rotate (to the left) the chroma values of all frames, as {@link ChromaVector#rotate(int)} */
+	public void rotate(int n) {
+		n = ((n % PITCHES) + PITCHES) % PITCHES;
+		if (n == 0)
+			return;
+		float[] tmp = new float[PITCHES];
+		for (int f = 0; f < size; f++) {
+			int offset = PITCHES * f;
+			for (int i = 0; i < PITCHES; i++)
+				tmp[i] = values[offset + (i + n) % PITCHES];
+			System.arraycopy(tmp, 0, values, offset, PITCHES);
+		}
+	}
+
+	/** @see ChromaVector#rankRepresentation(int) */
+	public int rankRepresentation(int frame, int k) {
+		return ChromaVector.rankRepresentation(values, PITCHES * frame, k);
+	}
+
+	/**
+	 * compute the rank representation of all frames
+	 * @param k ranks to consider - NOTE MUST BE leq 7
+	 * @param minKurtosis frames with lower kurtosis get -1 instead of their representation
+	 */
+	public int[] rankRepresentations(int k, double minKurtosis) {
+		int[] hashes = new int[size];
+		for (int f = 0; f < size; f++)
+			hashes[f] = kurtoses[f] >= minKurtosis ? ChromaVector.rankRepresentation(values, PITCHES * f, k) : -1;
+		return hashes;
+	}
+
+	/**
+	 * compute the rank representation of all frames for several rotations at
+	 * once; each frame is ranked once, and the representation of a rotated
+	 * frame is derived by shifting the ranked pitch classes, with the same
+	 * result as rotating the matrix and calling
+	 * {@link #rankRepresentations(int, double)}
+	 * @param k ranks to consider - NOTE MUST BE leq 7
+	 * @param minKurtosis frames with lower kurtosis get -1 instead of their representation
+	 * @param rotations amounts of rotation (to the left) as in {@link #rotate(int)}
+	 * @return for each rotation, the representations of all frames
+	 */
+	public int[][] rankRepresentations(int k, double minKurtosis, int[] rotations) {
+		int[][] hashes = new int[rotations.length][size];
+		int[] shifts = new int[rotations.length];
+		for (int r = 0; r < rotations.length; r++)
+			shifts[r] = ((rotations[r] % PITCHES) + PITCHES) % PITCHES;
+		int[] order = new int[PITCHES];
+		int[] groupEnd = new int[PITCHES];
+		for (int f = 0; f < size; f++) {
+			if (kurtoses[f] < minKurtosis) {
+				for (int r = 0; r < rotations.length; r++)
+					hashes[r][f] = -1;
+				continue;
+			}
+			rank(PITCHES * f, order, groupEnd);
+			for (int r = 0; r < rotations.length; r++)
+				hashes[r][f] = rankRepresentation(order, groupEnd, k, shifts[r]);
+		}
+		return hashes;
+	}
+
+	/**
+	 * sort the pitch classes of a frame by decreasing value, ties by increasing
+	 * pitch class; groupEnd[i] is the end of the group of equal values which
+	 * position i belongs to
+	 */
+	private void rank(int offset, int[] order, int[] groupEnd) {
+		for (int i = 0; i < PITCHES; i++) {
+			float v = values[offset + i];
+			int j = i;
+			for (; j > 0 && values[offset + order[j - 1]] < v; j--)
+				order[j] = order[j - 1];
+			order[j] = i;
+		}
+		for (int i = PITCHES - 1; i >= 0; i--)
+			groupEnd[i] = i < PITCHES - 1 && values[offset + order[i]] == values[offset + order[i + 1]] ? groupEnd[i + 1] : i + 1;
+	}
+
+	/**
+	 * rank representation of a ranked frame rotated by shift: among equal
+	 * values the smallest rotated pitch class comes first, i.e. each group is
+	 * visited cyclically starting from its first pitch class not below shift
+	 */
+	private static int rankRepresentation(int[] order, int[] groupEnd, int k, int shift) {
+		int representation = 0;
+		int rank = 0;
+		while (rank < k) {
+			int end = groupEnd[rank];
+			if (end == rank + 1) {
+				// no ties
+				int rotated = order[rank] - shift;
+				representation = (representation << 4) | ((rotated < 0 ? rotated + PITCHES : rotated) + 1);
+				rank++;
+				continue;
+			}
+			int start = rank;
+			int first = start;
+			while (first < end && order[first] < shift)
+				first++;
+			for (int i = first; i < end && rank < k; i++, rank++)
+				representation = (representation << 4) | (order[i] - shift + 1);
+			for (int i = start; i < first && rank < k; i++, rank++)
+				representation = (representation << 4) | (order[i] - shift + PITCHES + 1);
+		}
+		return representation;
+	}
+
+	/** @return a chroma vector holding the values of a frame */
+	public ChromaVector getChromaVector(int frame) {
+		return new ChromaVector(Arrays.copyOfRange(values, PITCHES * frame, PITCHES * (frame + 1)));
+	}
+}
@@ -18,26 +18,35 @@ package it.unipd.dei.ims.falcon.analysis.chromafeatures;
 
 import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 /**
  * Utility class containing methods for reading/writing Chroma feature matrices.
+ * Chroma matrices are read either in text format (one line of 12 comma
+ * separated values per frame) or in binary format (see
+ * {@link BinaryChromaReader}); the format is detected from the first bytes.
  * 
  */
 public class ChromaMatrixUtils {
 
 
-	private static ChromaVector[] readChromaMatrixFromStream(final InputStreamReader is, final int subsampling) throws IOException, NumberFormatException {
+	/** parse text chroma matrices from a character stream; see {@link ChromaTextParser} for the byte level parser */
+	static ChromaVector[] readChromaMatrixFromStream(final InputStreamReader is, final int subsampling) throws IOException, NumberFormatException {
 		try (final BufferedReader in = new BufferedReader(is)) {
 			final AtomicInteger counter = new AtomicInteger();
 			return in.lines()
@@ -51,6 +60,20 @@ public class ChromaMatrixUtils {
 		}
 	}
 
+	private static ChromaMatrix readChromaMatrix(final BinaryChromaReader reader, final int subsampling) {
+		final ChromaMatrix matrix = new ChromaMatrix(reader.getFrameCount() / subsampling + 1);
+		final float[] v = new float[12];
+		for (int f = 0; f < reader.getFrameCount(); f += subsampling) {
+			reader.copyFrame(f, v, 0);
+			float vsum = 0;
+			for (float vi : v)
+				vsum += vi;
+			if (vsum > 0) // do not add zero vectors
+				matrix.add(v, 0);
+		}
+		return matrix;
+	}
+
 /*
 	private static ChromaVector[] readChromaMatrixFromStream(InputStreamReader is, int subsampling) throws IOException, NumberFormatException {
 		List<ChromaVector> matrix  = new LinkedList<>();
@@ -76,24 +99,10 @@ public class ChromaMatrixUtils {
 		return matrix.toArray(new ChromaVector[0]);
 	}
 */
-	/** transform into hash representation */
-	private static void convertChromaMatrixIntoHashesStream(
-	        final ChromaVector[] vector,
-            final OutputStream outputStream,
-            final int nranks,
-            final double minkurtosis) throws IOException {
-		final Integer[] hashes = new Integer[vector.length];
-
-		for (int i = 0; i < vector.length; i++) {
-			if (vector[i].getKurtosis() >= minkurtosis) {
-				hashes[i] = vector[i].rankRepresentation(nranks);
-			} else {
-				hashes[i] = -1;
-			}
-		}
-
+	/** write hashes as text */
+	private static void writeHashesStream(final int[] hashes, final OutputStream outputStream) throws IOException {
 		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(outputStream));
-		for (Integer i : hashes)
+		for (int i : hashes)
 			writer.write("" + i + " ");
 		writer.close();
 	}
@@ -117,31 +126,250 @@ public class ChromaMatrixUtils {
 			final double minkurtosis,
 			final int subsampling) throws IOException {
 
-		final ChromaVector[] c = ChromaMatrixUtils.readChromaMatrixFromStream(is, subsampling);
+		convertChromaMatrixIntoHashesStreams(new ChromaMatrix(readChromaMatrixFromStream(is, subsampling)), os, nranks, transpEst, minkurtosis);
+	}
+
+	/**
+	 * Convert a chroma matrix stream, in either text or binary format, into
+	 * hash sequences written to channels, one for each transposition; the
+	 * number of transpositions is equal to the number of channels. Channels
+	 * are closed when complete; if anything fails, the channels not yet
+	 * complete are failed with the same error, which is also rethrown.
+	 * @see #convertChromaStreamIntoHashesStream(InputStreamReader, List, int, TranspositionEstimator, double, int)
+	 */
+	public static void convertChromaStreamIntoHashChannels(
+			final InputStream is,
+			final List<HashChannel> channels,
+			final int nranks,
+			final TranspositionEstimator transpEst,
+			final double minkurtosis,
+			final int subsampling) throws IOException {
+
+		final ChromaMatrix c;
+		try {
+			c = readChromaMatrix(is, subsampling, dropKurtosis(transpEst, minkurtosis));
+		} catch (IOException | RuntimeException ex) {
+			for (HashChannel channel : channels)
+				channel.fail(ex);
+			throw ex;
+		}
+		convertChromaMatrixIntoHashChannels(c, channels, nranks, transpEst, minkurtosis);
+	}
+
+	/**
+	 * Convert a chroma file, in either text or binary format, into hash
+	 * sequences written to channels, as
+	 * {@link #convertChromaStreamIntoHashChannels(InputStream, List, int, TranspositionEstimator, double, int)}.
+	 */
+	public static void convertChromaFileIntoHashChannels(
+			final File f,
+			final List<HashChannel> channels,
+			final int nranks,
+			final TranspositionEstimator transpEst,
+			final double minkurtosis,
+			final int subsampling) throws IOException {
+
+		final ChromaMatrix c;
+		try {
+			c = readChromaMatrix(f, subsampling, dropKurtosis(transpEst, minkurtosis));
+		} catch (IOException | RuntimeException ex) {
+			for (HashChannel channel : channels)
+				channel.fail(ex);
+			throw ex;
+		}
+		convertChromaMatrixIntoHashChannels(c, channels, nranks, transpEst, minkurtosis);
+	}
+
+	/**
+	 * Convert a chroma matrix into hash sequences written to channels, as
+	 * {@link #convertChromaStreamIntoHashChannels(InputStream, List, int, TranspositionEstimator, double, int)}.
+	 */
+	public static void convertChromaMatrixIntoHashChannels(
+			final ChromaMatrix c,
+			final List<HashChannel> channels,
+			final int nranks,
+			final TranspositionEstimator transpEst,
+			final double minkurtosis) throws IOException {
+
+		int written = 0;
+		try {
+			for (int[] hashes : computeHashes(c, channels.size(), nranks, transpEst, minkurtosis)) {
+				channels.get(written).write(hashes);
+				channels.get(written++).close();
+			}
+		} catch (IOException | RuntimeException ex) {
+			for (int k = written; k < channels.size(); k++)
+				channels.get(k).fail(ex);
+			throw ex;
+		}
+	}
+
+	/**
+	 * without transposition estimation, vectors under the kurtosis threshold
+	 * only give -1 hashes, so they can be dropped while parsing
+	 */
+	private static double dropKurtosis(final TranspositionEstimator transpEst, final double minkurtosis) {
+		return transpEst == null ? minkurtosis : Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Convert a chroma matrix into integer hashes streams, one for each
+	 * transposition.
+	 */
+	public static void convertChromaMatrixIntoHashesStreams(
+			final ChromaMatrix c,
+			final List<OutputStream> os,
+			final int nranks,
+			final TranspositionEstimator transpEst,
+			final double minkurtosis) throws IOException {
+
+		final int[][] hashes = computeHashes(c, os.size(), nranks, transpEst, minkurtosis);
+		for (int k = 0; k < hashes.length; k++) {
+			writeHashesStream(hashes[k], os.get(k));
+			for (OutputStream o : os)
+				o.flush();
+		}
+	}
+
+	/**
+	 * Compute the hash sequences of a chroma matrix for the most probable
+	 * transpositions; frames under the kurtosis threshold get hash -1.
+	 * @param ntransp number of transpositions (only 1 if transpEst is null)
+	 * @return one hash sequence for each transposition
+	 */
+	public static int[][] computeHashes(
+			final ChromaMatrix c,
+			final int ntransp,
+			final int nranks,
+			final TranspositionEstimator transpEst,
+			final double minkurtosis) {
 
 		// init to 0-transp if no transposition estimator specified
-		int[] keys = transpEst != null ? transpEst.findKey(c, os.size()) : new int[]{0};
-		for (int k = 0; k < keys.length; k++) {
-			// incremental in-place rotation
+		int[] keys = transpEst != null ? transpEst.findKey(c, ntransp) : new int[]{0};
+		// same cumulative rotations as the former incremental in-place rotation
+		final int[] rotations = new int[keys.length];
+		for (int k = 0, total = 0; k < keys.length; k++) {
 			int transp = keys[k];
 			for (int j = 0; j < k; j++) {
 				transp -= keys[j];
 			}
-			transp = transp % 12;
-			for (int i = 0; i < c.length; i++)
-				c[i].rotate(transp);
-			// conversion
-			convertChromaMatrixIntoHashesStream(c, os.get(k), nranks, minkurtosis);
-			for (OutputStream o : os)
-				o.flush();
+			total += transp % 12;
+			rotations[k] = total;
+		}
+		// each frame is ranked once for all the rotations
+		return c.rankRepresentations(nranks, minkurtosis, rotations);
+	}
+
+	/**
+	 * Write a chroma vector as a line of a chroma file in text format, i.e.
+	 * its 12 values separated by commas.
+	 */
+	public static void writeChromaVector(final Writer writer, final ChromaVector vector) throws IOException {
+		final double[] values = vector.getChromaValues();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0)
+				writer.write(',');
+			writer.write(Double.toString(values[i]));
 		}
+		writer.write('\n');
+	}
+
+	/**
+	 * Convert a chroma file in text format into the binary format.
+	 * Sample rate and hop size are not known from text files and are left to 0.
+	 */
+	public static void convertTextChromaFileIntoBinary(File text, File binary) throws IOException {
+		try (BinaryChromaWriter writer = new BinaryChromaWriter(binary, 0, 0)) {
+			for (ChromaVector v : readChromaMatrixFromStream(new InputStreamReader(new FileInputStream(text)), 1))
+				writer.write(v);
+		}
+	}
+
+	/** read a chroma matrix in text or binary format from a stream */
+	private static ChromaMatrix readChromaMatrix(final InputStream is, final int subsampling, final double dropKurtosis) throws IOException {
+		final BufferedInputStream in = new BufferedInputStream(is);
+		final byte[] head = new byte[BinaryChromaFormat.MAGIC.length];
+		in.mark(head.length);
+		int n = 0, r;
+		while (n < head.length && (r = in.read(head, n, head.length - n)) != -1)
+			n += r;
+		in.reset();
+		try {
+			if (BinaryChromaFormat.hasMagic(head, n))
+				return readChromaMatrix(BinaryChromaReader.read(in), subsampling);
+			final ChromaTextParser parser = new ChromaTextParser(subsampling, dropKurtosis);
+			parser.parse(ByteBuffer.wrap(readFully(in)));
+			return parser.toChromaMatrix();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static byte[] readFully(final InputStream in) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final byte[] buf = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buf)) != -1)
+			bytes.write(buf, 0, n);
+		return bytes.toByteArray();
 	}
 
 	/**
 	 * Convenience method for reading a chroma file.
 	 */
 	public static ChromaVector[] readChromaFile(File f) throws FileNotFoundException, IOException {
-		InputStreamReader is = new InputStreamReader(new FileInputStream(f));
-		return readChromaMatrixFromStream(is, 1);
+		return readChromaFile(f, 1);
+	}
+
+	/**
+	 * Read a chroma file in text or binary format, retaining only one chroma
+	 * vector out of subsampling. Files are memory mapped; text files are
+	 * parsed by {@link ChromaTextParser}.
+	 */
+	public static ChromaVector[] readChromaFile(File f, int subsampling) throws FileNotFoundException, IOException {
+		return readChromaFile(f, subsampling, Double.NEGATIVE_INFINITY);
+	}
+
+	private static ChromaVector[] readChromaFile(File f, int subsampling, double dropKurtosis) throws IOException {
+		if (BinaryChromaReader.isBinary(f)) {
+			final ChromaMatrix matrix = readChromaMatrix(BinaryChromaReader.open(f), subsampling);
+			final ChromaVector[] vectors = new ChromaVector[matrix.size()];
+			for (int i = 0; i < vectors.length; i++)
+				vectors[i] = matrix.getChromaVector(i);
+			return vectors;
+		}
+		return ChromaTextParser.parse(f, subsampling, dropKurtosis).toChromaVectors();
+	}
+
+	/**
+	 * Read a chroma file in text or binary format into a {@link ChromaMatrix}.
+	 */
+	public static ChromaMatrix readChromaMatrix(File f) throws IOException {
+		return readChromaMatrix(f, 1, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Read a chroma file in text or binary format into a {@link ChromaMatrix},
+	 * retaining only one chroma vector out of subsampling.
+	 */
+	public static ChromaMatrix readChromaMatrix(File f, int subsampling) throws IOException {
+		return readChromaMatrix(f, subsampling, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Read a chroma file in text or binary format into a {@link ChromaMatrix}
+	 * to be hashed by {@link #computeHashes} with the same transposition
+	 * estimator and kurtosis threshold; the hashes are the same as the ones
+	 * of {@link #convertChromaFileIntoHashChannels}.
+	 */
+	public static ChromaMatrix readChromaMatrix(File f, int subsampling, TranspositionEstimator transpEst,
+			double minkurtosis) throws IOException {
+		return readChromaMatrix(f, subsampling, dropKurtosis(transpEst, minkurtosis));
+	}
+
+	private static ChromaMatrix readChromaMatrix(File f, int subsampling, double dropKurtosis) throws IOException {
+		if (BinaryChromaReader.isBinary(f))
+			return readChromaMatrix(BinaryChromaReader.open(f), subsampling);
+		return ChromaTextParser.parse(f, subsampling, dropKurtosis).toChromaMatrix();
 	}
 }
@@ -0,0 +1,312 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Parser for chroma matrices in text format working directly on the bytes of
+ * the input, typically a memory mapped file. Lines excluded by subsampling are
+ * skipped without being tokenized, values are decoded in place and frames are
+ * stored in a packed array of doubles, 12 values per frame.
+ * <p>
+ * The accepted input is the same as with lines split on commas and values
+ * parsed with {@link Double#parseDouble}: lines are terminated by "\n", "\r"
+ * or "\r\n", lines that do not have exactly 12 values (trailing empty values
+ * do not count) are ignored, and a malformed value in a line of 12 values
+ * throws a {@link NumberFormatException}. Values are decoded to the same
+ * doubles as {@link Double#parseDouble}: short decimals are converted exactly
+ * with a single multiplication or division, decimals of up to 18 significant
+ * digits with the Eisel-Lemire algorithm (D. Lemire, "Number Parsing at a
+ * Gigabyte per Second", 2021), and anything else is handed over to
+ * {@link Double#parseDouble}.
+ * <p>
+ * Frames whose values do not sum to a positive number are dropped, as they
+ * have no chroma, and so are frames with a kurtosis below the given threshold.
+ */
+final class ChromaTextParser {
+
+	private static final int PITCHES = 12;
+	/** powers of ten which are exactly representable as doubles */
+	private static final double[] POWERS_OF_TEN = new double[23];
+
+	/** range of decimal exponents covered by the Eisel-Lemire tables */
+	private static final int MIN_POWER_OF_FIVE = -64, MAX_POWER_OF_FIVE = 64;
+	/** high and low 64 bits of 5^q, normalized to 128 bits with the most significant bit set */
+	private static final long[] POWERS_OF_FIVE_HIGH = new long[MAX_POWER_OF_FIVE - MIN_POWER_OF_FIVE + 1];
+	private static final long[] POWERS_OF_FIVE_LOW = new long[MAX_POWER_OF_FIVE - MIN_POWER_OF_FIVE + 1];
+
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		// same construction as the tables of the reference implementation
+		for (int q = MIN_POWER_OF_FIVE; q <= MAX_POWER_OF_FIVE; q++) {
+			BigInteger c;
+			if (q >= 0) {
+				c = BigInteger.valueOf(5).pow(q);
+				if (c.bitLength() < 128)
+					c = c.shiftLeft(128 - c.bitLength());
+				else
+					c = c.shiftRight(c.bitLength() - 128);
+			} else {
+				BigInteger power5 = BigInteger.valueOf(5).pow(-q);
+				int z = power5.subtract(BigInteger.ONE).bitLength(); // smallest z with 2^z >= 5^-q
+				int b = q >= -27 ? z + 127 : 2 * z + 128;
+				c = BigInteger.ONE.shiftLeft(b).divide(power5).add(BigInteger.ONE);
+				if (c.bitLength() > 128)
+					c = c.shiftRight(c.bitLength() - 128);
+			}
+			POWERS_OF_FIVE_HIGH[q - MIN_POWER_OF_FIVE] = c.shiftRight(64).longValue();
+			POWERS_OF_FIVE_LOW[q - MIN_POWER_OF_FIVE] = c.longValue();
+		}
+	}
+
+	private final int subsampling;
+	private final double minKurtosis;
+	private final int[] starts = new int[PITCHES];
+	private final int[] ends = new int[PITCHES];
+	private final double[] scratch = new double[PITCHES];
+	private double[] frames = new double[PITCHES * 1024];
+	private int frameCount = 0;
+
+	/**
+	 * @param subsampling retain only one line out of subsampling
+	 * @param minKurtosis frames with a lower kurtosis are dropped; use
+	 *        {@link Double#NEGATIVE_INFINITY} to keep all of them
+	 */
+	ChromaTextParser(int subsampling, double minKurtosis) {
+		if (subsampling < 1)
+			throw new IllegalArgumentException("subsampling must be positive");
+		this.subsampling = subsampling;
+		this.minKurtosis = minKurtosis;
+	}
+
+	/** parse a whole chroma file, which is memory mapped */
+	static ChromaTextParser parse(File file, int subsampling, double minKurtosis) throws IOException {
+		ChromaTextParser parser = new ChromaTextParser(subsampling, minKurtosis);
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			parser.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		return parser;
+	}
+
+	/** parse the remaining bytes of the buffer, appending frames to the ones already parsed */
+	void parse(ByteBuffer buffer) {
+		final int limit = buffer.limit();
+		int pos = buffer.position();
+		int line = 0;
+		while (pos < limit) {
+			int end = pos;
+			if (line++ % subsampling == 0) {
+				// tokenize, remembering the first 12 values
+				int tokens = 0, nonEmpty = 0, start = pos;
+				byte b = 0;
+				while (end < limit && (b = buffer.get(end)) != '\n' && b != '\r') {
+					if (b == ',') {
+						if (tokens < PITCHES) {
+							starts[tokens] = start;
+							ends[tokens] = end;
+						}
+						if (end > start)
+							nonEmpty = tokens + 1;
+						tokens++;
+						start = end + 1;
+					}
+					end++;
+				}
+				if (tokens < PITCHES) {
+					starts[tokens] = start;
+					ends[tokens] = end;
+				}
+				if (end > start)
+					nonEmpty = tokens + 1;
+				if (nonEmpty == PITCHES)
+					addFrame(buffer);
+			} else {
+				while (end < limit && buffer.get(end) != '\n' && buffer.get(end) != '\r')
+					end++;
+			}
+			// skip the line terminator, "\r\n" being a single one
+			if (end < limit)
+				end += buffer.get(end) == '\r' && end + 1 < limit && buffer.get(end + 1) == '\n' ? 2 : 1;
+			pos = end;
+		}
+		buffer.position(limit);
+	}
+
+	private void addFrame(ByteBuffer buffer) {
+		if (frames.length < PITCHES * (frameCount + 1))
+			frames = Arrays.copyOf(frames, 2 * frames.length);
+		final int offset = PITCHES * frameCount;
+		float sum = 0;
+		for (int i = 0; i < PITCHES; i++) {
+			double v = parseDouble(buffer, starts[i], ends[i]);
+			frames[offset + i] = v;
+			sum += v;
+		}
+		if (sum > 0 && (minKurtosis == Double.NEGATIVE_INFINITY || ChromaVector.kurtosis(frames, offset, scratch) >= minKurtosis))
+			frameCount++;
+	}
+
+	/** decode the value in [start, end) to the same double as {@link Double#parseDouble} */
+	static double parseDouble(ByteBuffer buffer, int start, int end) {
+		int s = start, e = end;
+		// same trimming as String.trim
+		while (s < e && (buffer.get(s) & 0xff) <= ' ')
+			s++;
+		while (e > s && (buffer.get(e - 1) & 0xff) <= ' ')
+			e--;
+		int i = s;
+		boolean negative = false;
+		if (i < e && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+			negative = buffer.get(i++) == '-';
+		long mantissa = 0;
+		int digits = 0, significant = 0, exponent = 0;
+		boolean dot = false;
+		for (; i < e; i++) {
+			byte b = buffer.get(i);
+			if (b >= '0' && b <= '9') {
+				digits++;
+				if (dot)
+					exponent--;
+				if (mantissa > 0 || b != '0') {
+					if (++significant > 18)
+						return slowParseDouble(buffer, start, end);
+					mantissa = 10 * mantissa + (b - '0');
+				}
+			} else if (b == '.' && !dot) {
+				dot = true;
+			} else {
+				break;
+			}
+		}
+		if (digits == 0)
+			return slowParseDouble(buffer, start, end);
+		if (i < e && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+			i++;
+			boolean negativeExponent = false;
+			if (i < e && (buffer.get(i) == '-' || buffer.get(i) == '+'))
+				negativeExponent = buffer.get(i++) == '-';
+			int exp = 0, expDigits = 0;
+			for (; i < e && buffer.get(i) >= '0' && buffer.get(i) <= '9'; i++) {
+				if (++expDigits > 4)
+					return slowParseDouble(buffer, start, end);
+				exp = 10 * exp + (buffer.get(i) - '0');
+			}
+			if (expDigits == 0)
+				return slowParseDouble(buffer, start, end);
+			exponent += negativeExponent ? -exp : exp;
+		}
+		if (i < e)
+			return slowParseDouble(buffer, start, end);
+		double value;
+		if (mantissa == 0)
+			value = 0;
+		else if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22)
+			// both operands are exact, so the result is correctly rounded
+			value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		else if ((value = eiselLemire(mantissa, exponent)) < 0)
+			return slowParseDouble(buffer, start, end);
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Correctly rounded conversion of w * 10^q, for w &gt; 0 exact.
+	 * @return the converted value, or -1 if the exponent is out of the
+	 *         supported range or the result is not a normal double
+	 */
+	private static double eiselLemire(long w, int q) {
+		if (q < MIN_POWER_OF_FIVE || q > MAX_POWER_OF_FIVE)
+			return -1;
+		final int lz = Long.numberOfLeadingZeros(w);
+		w <<= lz;
+		final int index = q - MIN_POWER_OF_FIVE;
+		long high = unsignedMultiplyHigh(w, POWERS_OF_FIVE_HIGH[index]);
+		long low = w * POWERS_OF_FIVE_HIGH[index];
+		if ((high & 0x1FF) == 0x1FF) {
+			// the truncated product might be off, refine with the low bits of the power
+			final long secondHigh = unsignedMultiplyHigh(w, POWERS_OF_FIVE_LOW[index]);
+			low += secondHigh;
+			if (Long.compareUnsigned(secondHigh, low) > 0)
+				high++;
+		}
+		final int upperbit = (int) (high >>> 63);
+		final int shift = upperbit + 9;
+		long mantissa = high >>> shift;
+		int power2 = ((((152170 + 65536) * q) >> 16) + 63) + upperbit - lz + 1023;
+		if (power2 <= 0)
+			return -1;
+		// halfway cases are rounded to even
+		if (Long.compareUnsigned(low, 1) <= 0 && q >= -4 && q <= 23 && (mantissa & 3) == 1 && (mantissa << shift) == high)
+			mantissa &= ~1L;
+		mantissa += mantissa & 1;
+		mantissa >>>= 1;
+		if (mantissa >= (2L << 52)) {
+			mantissa = 1L << 52;
+			power2++;
+		}
+		mantissa &= ~(1L << 52);
+		if (power2 >= 2047)
+			return -1;
+		return Double.longBitsToDouble(mantissa | (long) power2 << 52);
+	}
+
+	/** high 64 bits of the unsigned 128 bit product x * y */
+	private static long unsignedMultiplyHigh(long x, long y) {
+		final long x0 = x & 0xFFFFFFFFL, x1 = x >>> 32;
+		final long y0 = y & 0xFFFFFFFFL, y1 = y >>> 32;
+		final long t = x1 * y0 + ((x0 * y0) >>> 32);
+		final long w1 = x0 * y1 + (t & 0xFFFFFFFFL);
+		return x1 * y1 + (t >>> 32) + (w1 >>> 32);
+	}
+
+	private static double slowParseDouble(ByteBuffer buffer, int start, int end) {
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = buffer.get(start + i);
+		return Double.parseDouble(new String(bytes, StandardCharsets.ISO_8859_1));
+	}
+
+	int getFrameCount() {
+		return frameCount;
+	}
+
+	/** @return frames packed 12 values per frame; only the first 12 * getFrameCount() values are meaningful */
+	double[] getFrames() {
+		return frames;
+	}
+
+	ChromaMatrix toChromaMatrix() {
+		ChromaMatrix matrix = new ChromaMatrix(frameCount);
+		matrix.addAll(frames, frameCount);
+		return matrix;
+	}
+
+	ChromaVector[] toChromaVectors() {
+		ChromaVector[] vectors = new ChromaVector[frameCount];
+		for (int f = 0; f < frameCount; f++)
+			vectors[f] = new ChromaVector(frames, PITCHES * f);
+		return vectors;
+	}
+}
@@ -38,12 +38,51 @@ public class ChromaVector {
 	 * @param values
 	 */
 	public ChromaVector(double[] values) {
+		this(values, 0);
+	}
+
+	/**
+	 * constructor - automatically normalizes values with 2-norm
+	 * @param values array holding the chroma vector
+	 * @param offset position of the first of the 12 chroma values
+	 */
+	public ChromaVector(double[] values, int offset) {
 		chromavalues = new double[12];
+		energy = normalize(values, offset, chromavalues);
+		// compute mean, variance and kurtosis (without subtracting 3)
+		mean = mean(chromavalues);
+		var = variance(chromavalues, mean);
+		kurtosis = kurtosis(chromavalues, mean, var);
+	}
+
+	/**
+	 * compute the kurtosis that a chroma vector built from the given values
+	 * would have, without building it
+	 * @param values array holding the (non normalized) chroma values
+	 * @param offset position of the first of the 12 chroma values
+	 * @param scratch array of at least 12 elements, overwritten
+	 */
+	static double kurtosis(double[] values, int offset, double[] scratch) {
+		normalize(values, offset, scratch);
+		return kurtosis(scratch);
+	}
+
+	/** compute the kurtosis of already normalized chroma values */
+	static double kurtosis(double[] normalized) {
+		double mean = mean(normalized);
+		return kurtosis(normalized, mean, variance(normalized, mean));
+	}
+
+	/**
+	 * normalize 12 chroma values with 2-norm, as done by the constructor
+	 * @return the energy before normalization
+	 */
+	static float normalize(double[] values, int offset, double[] dst) {
 		float sum = 0;
-		energy = 0;
+		float energy = 0;
 		for (int i = 0; i < 12; i++) {
-			double v = values[i];
-			chromavalues[i] = v;
+			double v = values[offset + i];
+			dst[i] = v;
 			energy += v * v;
 			sum += v;
 		}
@@ -51,27 +90,50 @@ public class ChromaVector {
 		float norm2 = (float) Math.sqrt(energy);
 		if (sum > 0)
 			for (int i = 0; i < 12; i++)
-				chromavalues[i] /= norm2;
+				dst[i] /= norm2;
 		else
 			throw new IllegalArgumentException("zero vector is not allowed");
-		// compute mean, variance and kurtosis (without subtracting 3)
-		double k = 0;
-		mean = 0;
+		return energy;
+	}
+
+	private static double mean(double[] v) {
+		double mean = 0;
 		for (int i = 0; i < 12; i++)
-			mean += chromavalues[i];
-		mean /= 12;
-		var = 0;
+			mean += v[i];
+		return mean / 12;
+	}
+
+	private static double variance(double[] v, double mean) {
+		double var = 0;
 		for (int i = 0; i < 12; i++)
-			var += (chromavalues[i] - mean) * (chromavalues[i] - mean);
-		var /= 11;
+			var += (v[i] - mean) * (v[i] - mean);
+		return var / 11;
+	}
+
+	private static double kurtosis(double[] v, double mean, double var) {
+		double k = 0;
 		for (int i = 0; i < 12; i++) {
-			double x = (chromavalues[i] - mean);
+			double x = (v[i] - mean);
 			x *= x;
 			x *= x;
 			k += x;
 		}
-		k /= (12 * var * var);
-		kurtosis = k;
+		return k / (12 * var * var);
+	}
+
+	/**
+	 * constructor - single precision values, see {@link #ChromaVector(double[])}
+	 * @param values
+	 */
+	public ChromaVector(float[] values) {
+		this(toDouble(values));
+	}
+
+	private static double[] toDouble(float[] values) {
+		double[] v = new double[values.length];
+		for (int i = 0; i < values.length; i++)
+			v[i] = values[i];
+		return v;
 	}
 
 	public double[] getChromaValues() {
@@ -102,6 +164,30 @@ public class ChromaVector {
 		return rankRep;
 	}
 
+	/**
+	 * compute the rank-based representation of a chroma vector stored in a
+	 * float array, with the same result as {@link #rankRepresentation(int)};
+	 * since ranks do not change with scaling, values need not be normalized
+	 *
+	 * @param values array holding the chroma vector
+	 * @param offset position of the first of the 12 chroma values
+	 * @param k ranks to consider - NOTE MUST BE leq 7
+	 */
+	public static int rankRepresentation(float[] values, int offset, int k) {
+		int representation = 0;
+		int taken = 0; // bit mask of the pitches already ranked
+		for (int i = 0; i < k; i++) {
+			// find i-th largest
+			int largest = -1;
+			for (int j = 0; j < 12; j++)
+				if ((taken & (1 << j)) == 0 && (largest < 0 || values[offset + j] > values[offset + largest]))
+					largest = j;
+			representation += (largest + 1) * Integer.rotateLeft(1, 4 * (k - i - 1));
+			taken |= 1 << largest;
+		}
+		return representation;
+	}
+
 	/**
 	 * @return the rank representation - or null if it hasn't already been
 	 *         computed
@@ -0,0 +1,136 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import edu.emory.mathcs.jtransforms.fft.FloatFFT_1D;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Single precision version of {@link ChromaExtractor}: samples, decoded
+ * straight into float by the {@link AudioReader}, window, FFT and chroma
+ * values are all float, which halves the memory traffic of the frame loop.
+ * The chroma values are added to a {@link ChromaMatrix}, which stores them
+ * as float too, instead of one {@link ChromaVector} per frame, and can be
+ * hashed directly.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class FloatChromaExtractor {
+
+	/** circular float audio buffer, see {@link ChromaExtractor} */
+	private static final class SampleWindow {
+		private final float[] ring;
+		private int head = 0;
+
+		SampleWindow(int winLen) {
+			ring = new float[winLen];
+		}
+
+		boolean advance(AudioReader reader, int n) throws IOException {
+			int first = Math.min(n, ring.length - head);
+			if (reader.read(ring, head, first) < first)
+				return false;
+			if (n > first && reader.read(ring, 0, n - first) < n - first)
+				return false;
+			head = (head + n) % ring.length;
+			return true;
+		}
+
+		void copyTo(float[] dst, float[] weights) {
+			int tail = ring.length - head;
+			for (int i = 0; i < tail; i++)
+				dst[i] = ring[head + i] * weights[i];
+			for (int i = tail; i < ring.length; i++)
+				dst[i] = ring[i - tail] * weights[i];
+		}
+	}
+
+	private final float sampleRate;
+	private final int winLen;
+	private final int hopsizeRatio;
+	private final int hopSize;
+
+	private final float[] hammingwin;
+	private final FloatFFT_1D fftizer;
+	private final int[] closestPitches;
+	private final int nBins;
+
+	private final float[] fft;
+	private final float[] spectrum;
+	private final float[] chroma = new float[ChromaMatrix.PITCHES];
+
+	/**
+	 * @param sampleRate sample rate of the audio streams to analyze
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 */
+	public FloatChromaExtractor(float sampleRate, double winLenInMs, int hopsizeRatio) {
+		this.sampleRate = sampleRate;
+		this.winLen = ChromaExtraction.windowLength(sampleRate, winLenInMs);
+		this.hopsizeRatio = hopsizeRatio;
+		this.hopSize = winLen / hopsizeRatio;
+
+		double[] w = ChromaExtraction.getHammingWindow(winLen);
+		hammingwin = new float[winLen];
+		for (int i = 0; i < winLen; i++)
+			hammingwin[i] = (float) w[i];
+		fftizer = new FloatFFT_1D(winLen);
+		closestPitches = new int[winLen / 2];
+		for (int i = 0; i < closestPitches.length; i++)
+			closestPitches[i] = ChromaExtraction.closestPitch(i / sampleRate);
+		nBins = (int) Math.ceil(Math.min(winLen / 2, 10000 / sampleRate * winLen));
+
+		fft = new float[winLen];
+		spectrum = new float[winLen / 2];
+	}
+
+	/**
+	 * Returns the chroma matrix, one normalized frame for each hop.
+	 *
+	 * @param reader audio stream, whose sample rate must be the one of this extractor
+	 * @throws IllegalArgumentException if a frame has no energy, as {@link ChromaExtractor}
+	 */
+	public ChromaMatrix getChromaMatrix(AudioReader reader) throws IOException {
+		if (reader.getSampleRate() != sampleRate)
+			throw new IllegalArgumentException("extractor is configured for sample rate " + sampleRate
+					+ ", got " + reader.getSampleRate());
+
+		ChromaMatrix matrix = new ChromaMatrix();
+		SampleWindow audio = new SampleWindow(winLen);
+		audio.advance(reader, hopSize * (hopsizeRatio - 1));
+		while (audio.advance(reader, hopSize)) {
+			audio.copyTo(fft, hammingwin);
+			computeChroma(fft);
+			// normalized by the matrix
+			matrix.add(chroma, 0);
+		}
+		return matrix;
+	}
+
+	/** compute the chroma of a windowed frame into chroma; frame is overwritten */
+	private void computeChroma(float[] frame) {
+		fftizer.realForward(frame);
+		for (int i = 0; i < nBins; i++)
+			spectrum[i] = (float) Math.sqrt(frame[2 * i] * frame[2 * i] + frame[2 * i + 1] * frame[2 * i + 1]);
+		Arrays.fill(chroma, 0);
+		for (int i = 1; i < Math.min(nBins, spectrum.length - 1); i++)
+			if (spectrum[i] > spectrum[i - 1] && spectrum[i] > spectrum[i + 1])
+				chroma[closestPitches[i]] += spectrum[i];
+	}
+}
@@ -0,0 +1,137 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process channel carrying the hash sequence of a song from a producer
+ * thread to a consumer thread, as blocks of ints passed through a bounded
+ * queue. The producer ends the sequence with {@link #close()}, or with
+ * {@link #fail(Throwable)} to make the consumer fail with the same cause; a
+ * consumer giving up calls {@link #cancel()}, so that a producer blocked on a
+ * full queue fails instead of waiting forever.
+ */
+public class HashChannel {
+
+	private static final Object END = new Object();
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private final BlockingQueue<Object> queue;
+	private volatile Throwable failure = null;
+	private volatile boolean cancelled = false;
+	private boolean ended = false;
+
+	public HashChannel() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/** @param capacity maximum number of blocks written but not yet read */
+	public HashChannel(int capacity) {
+		queue = new ArrayBlockingQueue<Object>(capacity);
+	}
+
+	private void put(Object o) throws IOException {
+		// once the block is in the queue the consumer may read it and cancel
+		// at any time, so cancellation is only checked before and while waiting
+		if (cancelled)
+			throw new IOException("hash channel cancelled by the consumer");
+		try {
+			while (!queue.offer(o, 100, TimeUnit.MILLISECONDS))
+				if (cancelled)
+					throw new IOException("hash channel cancelled by the consumer");
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while writing hashes");
+		}
+	}
+
+	/** write a block of hashes; the array must not be modified afterwards */
+	public void write(int[] hashes) throws IOException {
+		put(hashes);
+	}
+
+	/** end the hash sequence */
+	public void close() throws IOException {
+		put(END);
+	}
+
+	/** end the hash sequence with an error, which is rethrown to the consumer */
+	public void fail(Throwable cause) {
+		failure = cause;
+		// wake up a consumer waiting on an empty queue; if the queue is full
+		// the consumer is not waiting and finds the failure at the next read
+		queue.offer(END);
+	}
+
+	/** tell the producer that no more hashes will be read */
+	public void cancel() {
+		cancelled = true;
+		queue.clear();
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable cause = failure;
+		if (cause != null)
+			throw cause instanceof IOException
+					? new IOException(cause.getMessage(), cause)
+					: new IOException("hash producer failed", cause);
+	}
+
+	/**
+	 * @return the next block of hashes, or null at the end of the sequence
+	 * @throws IOException if the producer failed
+	 */
+	public int[] readBlock() throws IOException {
+		if (ended)
+			return null;
+		checkFailure();
+		Object o;
+		try {
+			o = queue.take();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while reading hashes");
+		}
+		checkFailure();
+		if (o == END) {
+			ended = true;
+			return null;
+		}
+		return (int[]) o;
+	}
+
+	/** @return the whole remaining hash sequence */
+	public int[] readAll() throws IOException {
+		int[] all = new int[0];
+		int[] block;
+		while ((block = readBlock()) != null) {
+			if (all.length == 0) {
+				all = block;
+			} else {
+				int[] tmp = new int[all.length + block.length];
+				System.arraycopy(all, 0, tmp, 0, all.length);
+				System.arraycopy(block, 0, tmp, all.length, block.length);
+				all = tmp;
+			}
+		}
+		return all;
+	}
+}
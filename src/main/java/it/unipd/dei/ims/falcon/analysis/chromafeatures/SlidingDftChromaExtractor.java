@@ -0,0 +1,205 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unipd.dei.ims.falcon.audio.AudioReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Chroma extraction engine based on a recursive sliding DFT. Instead of a
+ * full FFT per hop, only the DFT bins within a pitch band (by default C2 to
+ * C7) are tracked, and each of them is updated once per input sample, so
+ * that the cost of a hop is proportional to hopSize * (number of bins in the
+ * band) rather than to winLen * log(winLen). This pays off for small hops
+ * and narrow bands; see ChromaEngineBenchmark in the test sources for a
+ * comparison with {@link ChromaExtractor}.
+ * <p>
+ * Frames are aligned as in {@link ChromaExtractor}, and bins are mapped to
+ * pitch classes in the same way, peak picking included. The Hamming window is
+ * applied in the frequency domain, hence in its periodic form. Since the
+ * recursion runs in double precision without damping, the accumulated
+ * round-off error stays negligible even for recordings of several hours.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class SlidingDftChromaExtractor {
+
+	public static final double DEFAULT_MIN_FREQUENCY = 65.406;   // C2
+	public static final double DEFAULT_MAX_FREQUENCY = 2093.005; // C7
+
+	private final float sampleRate;
+	private final int winLen;
+	private final int hopsizeRatio;
+	private final int hopSize;
+
+	// band bins are kFirst..kLast; the sliding DFT tracks two more bins on each
+	// side, for the frequency domain windowing and then for peak picking
+	private final int kFirst;
+	private final int kLast;
+	private final double[] twRe;
+	private final double[] twIm;
+	private final int[] closestPitches;
+
+	// sliding DFT state, index t is bin kFirst - 2 + t
+	private final double[] re;
+	private final double[] im;
+	// last winLen samples, oldest at head
+	private final double[] ring;
+	private int head;
+	// per-hop buffers
+	private final double[] incoming;
+	private final double[] delta;
+	private final double[] magnitude;
+	private final float[] chroma = new float[12];
+
+	public SlidingDftChromaExtractor(float sampleRate, double winLenInMs, int hopsizeRatio) {
+		this(sampleRate, winLenInMs, hopsizeRatio, DEFAULT_MIN_FREQUENCY, DEFAULT_MAX_FREQUENCY);
+	}
+
+	/**
+	 * @param sampleRate sample rate of the audio streams to analyze
+	 * @param winLenInMs length in ms; will be rounded to the closes power of two
+	 * @param hopsizeRatio 1 = no hopsize, 2 = 50% overlap, 3 = 66% overlap ...
+	 * @param minFrequency lowest frequency of the analyzed band, in Hz
+	 * @param maxFrequency highest frequency of the analyzed band, in Hz
+	 */
+	public SlidingDftChromaExtractor(float sampleRate, double winLenInMs, int hopsizeRatio,
+			double minFrequency, double maxFrequency) {
+		this.sampleRate = sampleRate;
+		this.winLen = ChromaExtraction.windowLength(sampleRate, winLenInMs);
+		this.hopsizeRatio = hopsizeRatio;
+		this.hopSize = winLen / hopsizeRatio;
+
+		kFirst = Math.max(3, (int) Math.ceil(minFrequency * winLen / sampleRate));
+		kLast = Math.min(winLen / 2 - 3, (int) Math.floor(maxFrequency * winLen / sampleRate));
+		if (kFirst > kLast)
+			throw new IllegalArgumentException("no DFT bin in [" + minFrequency + ", " + maxFrequency + "] Hz");
+
+		int tracked = kLast - kFirst + 5;
+		twRe = new double[tracked];
+		twIm = new double[tracked];
+		for (int t = 0; t < tracked; t++) {
+			double theta = 2 * Math.PI * (kFirst - 2 + t) / winLen;
+			twRe[t] = Math.cos(theta);
+			twIm[t] = Math.sin(theta);
+		}
+		closestPitches = new int[kLast - kFirst + 1];
+		for (int k = kFirst; k <= kLast; k++)
+			closestPitches[k - kFirst] = ChromaExtraction.closestPitch(k / sampleRate);
+
+		re = new double[tracked];
+		im = new double[tracked];
+		ring = new double[winLen];
+		incoming = new double[Math.max(hopSize, hopSize * (hopsizeRatio - 1))];
+		delta = new double[incoming.length];
+		magnitude = new double[tracked - 2];
+	}
+
+	public int getWindowLength() {
+		return winLen;
+	}
+
+	public int getHopSize() {
+		return hopSize;
+	}
+
+	/** @return the number of DFT bins updated for each input sample */
+	public int getTrackedBins() {
+		return re.length;
+	}
+
+	/**
+	 * Returns a matrix of chroma features, each chroma is a row
+	 *
+	 * @param reader audio stream, whose sample rate must be the one of this extractor
+	 */
+	public List<ChromaVector> getChromaFeatures(AudioReader reader) throws IOException {
+		final List<ChromaVector> chromas = new ArrayList<ChromaVector>();
+		extractChromaFeatures(reader, (frame, chroma) -> chromas.add(chroma));
+		return chromas;
+	}
+
+	/**
+	 * Streams the chroma features to a listener, frame by frame.
+	 *
+	 * @param reader audio stream, whose sample rate must be the one of this extractor
+	 * @param listener receives each chroma vector
+	 * @return the number of frames
+	 */
+	public int extractChromaFeatures(AudioReader reader, ChromaFrameListener listener) throws IOException {
+		if (reader.getSampleRate() != sampleRate)
+			throw new IllegalArgumentException("extractor is configured for sample rate " + sampleRate
+					+ ", got " + reader.getSampleRate());
+		Arrays.fill(re, 0);
+		Arrays.fill(im, 0);
+		Arrays.fill(ring, 0);
+		head = 0;
+
+		slide(reader, hopSize * (hopsizeRatio - 1));
+		int frame = 0;
+		while (slide(reader, hopSize))
+			listener.onFrame(frame++, new ChromaVector(computeChroma()));
+		return frame;
+	}
+
+	/**
+	 * read n samples and update the sliding DFT with them
+	 * @return true if all n samples were read; false otherwise
+	 */
+	private boolean slide(AudioReader reader, int n) throws IOException {
+		if (reader.read(incoming, 0, n) < n)
+			return false;
+		for (int i = 0; i < n; i++) {
+			int p = (head + i) % winLen;
+			delta[i] = incoming[i] - ring[p];
+			ring[p] = incoming[i];
+		}
+		head = (head + n) % winLen;
+		// S_k(n) = e^{j 2 pi k / N} (S_k(n-1) + x(n) - x(n-N)); bins are
+		// independent, so updating all of them per sample keeps the pipeline full
+		for (int i = 0; i < n; i++) {
+			final double d = delta[i];
+			for (int t = 0; t < re.length; t++) {
+				double a = re[t] + d;
+				double b = im[t];
+				re[t] = a * twRe[t] - b * twIm[t];
+				im[t] = a * twIm[t] + b * twRe[t];
+			}
+		}
+		return true;
+	}
+
+	/** @return the chroma values of the current window; the array is reused by the next call */
+	private float[] computeChroma() {
+		// Hamming window in the frequency domain: 0.54 X[k] - 0.23 (X[k-1] + X[k+1])
+		for (int m = 0; m < magnitude.length; m++) {
+			double wr = 0.54 * re[m + 1] - 0.23 * (re[m] + re[m + 2]);
+			double wi = 0.54 * im[m + 1] - 0.23 * (im[m] + im[m + 2]);
+			magnitude[m] = Math.sqrt(wr * wr + wi * wi);
+		}
+		for (int i = 0; i < chroma.length; i++)
+			chroma[i] = 0;
+		// magnitude[m] is bin kFirst - 1 + m
+		for (int m = 1; m < magnitude.length - 1; m++)
+			if (magnitude[m] > magnitude[m - 1] && magnitude[m] > magnitude[m + 1])
+				chroma[closestPitches[m - 1]] += magnitude[m];
+		return chroma;
+	}
+}
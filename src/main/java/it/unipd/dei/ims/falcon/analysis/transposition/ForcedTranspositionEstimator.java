@@ -1,6 +1,8 @@
 package it.unipd.dei.ims.falcon.analysis.transposition;
 
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrix;
 import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaVector;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -26,6 +28,11 @@ public class ForcedTranspositionEstimator extends TranspositionEstimator {
 		return res;
 	}
 
+	@Override
+	public String toString() {
+		return "forced" + Arrays.toString(transp);
+	}
+
 	@Override
 	public int[] findKey(ChromaVector profile, int n) {
 		return dumbres(n);
@@ -35,4 +42,9 @@ public class ForcedTranspositionEstimator extends TranspositionEstimator {
 	public int[] findKey(ChromaVector[] song, int nTransp) {
 		return dumbres(nTransp);
 	}
+
+	@Override
+	public int[] findKey(ChromaMatrix song, int nTransp) {
+		return dumbres(nTransp);
+	}
 }
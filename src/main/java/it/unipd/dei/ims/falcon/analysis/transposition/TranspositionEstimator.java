@@ -15,8 +15,10 @@ package it.unipd.dei.ims.falcon.analysis.transposition;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrix;
 import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaVector;
 
+import java.util.Arrays;
 import java.util.Random;
 
 /**
@@ -31,6 +33,12 @@ public class TranspositionEstimator {
 		return weights.clone();
 	}
 
+	/** @return a description of the estimator that identifies the transpositions it produces */
+	@Override
+	public String toString() {
+		return "estimated" + Arrays.toString(weights);
+	}
+
 	/**
 	 * constructor
 	 * 
@@ -105,6 +113,24 @@ public class TranspositionEstimator {
 		return profile;
 	}
 
+	/**
+	 * Extract a profile from a whole song, as {@link #getProfile(ChromaVector[])}
+	 */
+	public static float[] getProfile(ChromaMatrix song) {
+		float[] profile = new float[12];
+		float[] values = song.getValues();
+		for (int f = 0; f < song.size(); f++)
+			for (int i = 0; i < 12; i++)
+				profile[i] += values[12 * f + i];
+		float e = 0;
+		for (float f : profile)
+			e += f * f;
+		e = (float) Math.sqrt(e);
+		for (int i = 0; i < 12; i++)
+			profile[i] /= e;
+		return profile;
+	}
+
 	/**
 	 * Find the nTransp most probable traspositions for the given song
 	 * @param nTransp number of transpositions to return
@@ -112,4 +138,12 @@ public class TranspositionEstimator {
 	public int[] findKey(ChromaVector[] song, int nTransp) {
 		return findKey(new ChromaVector(getProfile(song)), nTransp);
 	}
+
+	/**
+	 * Find the nTransp most probable traspositions for the given song
+	 * @param nTransp number of transpositions to return
+	 */
+	public int[] findKey(ChromaMatrix song, int nTransp) {
+		return findKey(new ChromaVector(getProfile(song)), nTransp);
+	}
 }
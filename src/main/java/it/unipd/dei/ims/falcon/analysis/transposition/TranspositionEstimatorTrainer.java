@@ -1,5 +1,6 @@
 package it.unipd.dei.ims.falcon.analysis.transposition;
 
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrix;
 import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
 import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaVector;
 import java.io.BufferedReader;
@@ -35,8 +36,8 @@ public class TranspositionEstimatorTrainer {
 		private File second;
 		private int firstTransp;
 		private int secondTransp;
-		private ChromaVector[] firstChroma;
-		private ChromaVector[] secondChroma;
+		private ChromaMatrix firstChroma;
+		private ChromaMatrix secondChroma;
 		private float[] firstProfile;
 		private float[] secondProfile;
 
@@ -44,14 +45,12 @@ public class TranspositionEstimatorTrainer {
 		public FilePair(File f, File s) throws FileNotFoundException, IOException {
 			first = f;
 			second = s;
-			firstChroma = ChromaMatrixUtils.readChromaFile(first);
-			secondChroma = ChromaMatrixUtils.readChromaFile(second);
+			firstChroma = ChromaMatrixUtils.readChromaMatrix(first);
+			secondChroma = ChromaMatrixUtils.readChromaMatrix(second);
 			firstTransp = random.nextInt(12);
 			secondTransp = random.nextInt(12);
-			for (ChromaVector v : firstChroma)
-				v.rotate(firstTransp);
-			for (ChromaVector v : secondChroma)
-				v.rotate(secondTransp);
+			firstChroma.rotate(firstTransp);
+			secondChroma.rotate(secondTransp);
 			firstProfile = TranspositionEstimator.getProfile(firstChroma);
 			secondProfile = TranspositionEstimator.getProfile(secondChroma);
 		}
@@ -60,11 +59,11 @@ public class TranspositionEstimatorTrainer {
 			return firstTransp;
 		}
 
-		public ChromaVector[] getFirstChroma() {
+		public ChromaMatrix getFirstChroma() {
 			return firstChroma;
 		}
 
-		public ChromaVector[] getSecondChroma() {
+		public ChromaMatrix getSecondChroma() {
 			return secondChroma;
 		}
 
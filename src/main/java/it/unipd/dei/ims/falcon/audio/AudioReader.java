@@ -14,73 +14,80 @@ package it.unipd.dei.ims.falcon.audio;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.UnsupportedAudioFileException;
 import java.io.File;
 import java.io.IOException;
-
-import static java.util.stream.IntStream.range;
+import java.util.Arrays;
 
 /**
- * Read an audio file. Provided that the appropriate packages are in the 
- * classpath, mp3 and ogg should be readable too.
+ * Read an audio file as a mono signal. Uncompressed PCM WAV files are read
+ * through a memory-mapped view; any other format is decoded by javax.sound,
+ * so provided that the appropriate packages are in the classpath, mp3 and
+ * ogg should be readable too.
  * The safest route is to read from a MONO, WAV file.
  */
 public class AudioReader implements AutoCloseable {
 
-	private final AudioInputStream signedInputStream;
-	private final AudioInputStream inputStream;
+	private final SampleSource source;
 
 	public AudioReader(final File file) throws UnsupportedAudioFileException, IOException {
-		inputStream = AudioSystem.getAudioInputStream(file);
+		source = open(file);
+	}
+
+	/**
+	 * Read an audio file, decimating it to an analysis rate. The signal is
+	 * low-pass filtered and then decimated by the largest integer factor that
+	 * keeps the sample rate at or above analysisRate; if no such factor exists
+	 * the file is read at its own rate. Chroma analysis only uses frequencies
+	 * below 10 kHz, so analysis rates of about 20 kHz preserve all the spectrum
+	 * that is used, while lower rates also discard its upper part.
+	 *
+	 * @param analysisRate minimum sample rate of the decimated signal
+	 */
+	public AudioReader(final File file, final float analysisRate) throws UnsupportedAudioFileException, IOException {
+		final SampleSource s = open(file);
+		final int factor = (int) (s.getSampleRate() / analysisRate);
+		source = factor >= 2 ? new DecimatingSampleSource(s, factor) : s;
+	}
 
-		final AudioFormat audioFormat =
-                new AudioFormat(
-                        AudioFormat.Encoding.PCM_SIGNED,
-						inputStream.getFormat().getSampleRate(),
-						16,
-                        1,
-                        16 / 8 * 1,
-                        inputStream.getFormat().getSampleRate(),
-                        true);
-		signedInputStream = AudioSystem.getAudioInputStream(audioFormat, inputStream);
+	private static SampleSource open(final File file) throws UnsupportedAudioFileException, IOException {
+		final SampleSource mapped = MappedWavSampleSource.open(file);
+		return mapped != null ? mapped : new JavaSoundSampleSource(file);
 	}
 
-	/** Read next n samples (at most) from file (interleaved  if channels > 1). Return as double[]. */
+	/** Read next n samples (at most) from file. Return as double[]. */
 	public double[] readDoubleSamples(int n) throws IOException {
-		int fl = signedInputStream.getFormat().getFrameSize();
-		int ss = signedInputStream.getFormat().getSampleSizeInBits();
-		int ssB = ss / 8;
-		byte[] b = new byte[n * signedInputStream.getFormat().getChannels() * ssB];
-		int read = signedInputStream.read(b);
+		double[] samples = new double[n];
+		int read = read(samples, 0, samples.length);
+		return read == samples.length ? samples : Arrays.copyOf(samples, Math.max(read, 0));
+	}
+
+	/**
+	 * Read up to len samples into dst, starting at off. Fewer than len samples
+	 * are returned only at the end of the stream.
+	 *
+	 * @return the number of samples read, or -1 if the end of the stream has been reached
+	 */
+	public int read(double[] dst, int off, int len) throws IOException {
+		return source.read(dst, off, len);
+	}
 
-		return range(0, read / ssB)
-                .mapToDouble(index -> {
-                    switch (ss) {
-                        case 8:
-                            return ((b[index * ssB] & 0xFF) - 128) / 128.0;
-                        case 16:
-                            return ((b[index * ssB + 0] << 8) | (b[index * ssB + 1] & 0xFF)) / 32768.0;
-                        case 24:
-                            return ((b[index * ssB + 0] << 16) | ((b[index * ssB + 1] & 0xFF) << 8)
-                                    | (b[index * ssB + 2] & 0xFF)) / 8388606.0;
-                        case 32:
-                            return ((b[index * ssB + 0] << 24) | ((b[index * ssB + 1] & 0xFF) << 16)
-                                    | ((b[index * ssB + 2] & 0xFF) << 8) | (b[index * ssB + 3] & 0xFF)) / 2147483648.0;
-                        default:
-                            throw new IllegalArgumentException();}})
-                .toArray();
+	/**
+	 * Single precision version of {@link #read(double[], int, int)}; samples
+	 * are decoded straight into float.
+	 *
+	 * @return the number of samples read, or -1 if the end of the stream has been reached
+	 */
+	public int read(float[] dst, int off, int len) throws IOException {
+		return source.read(dst, off, len);
 	}
 
 	public float getSampleRate() {
-		return signedInputStream.getFormat().getSampleRate();
+		return source.getSampleRate();
 	}
 
 	@Override
 	public void close() throws IOException {
-		signedInputStream.close();
-		inputStream.close();
+		source.close();
 	}
-}
\ No newline at end of file
+}
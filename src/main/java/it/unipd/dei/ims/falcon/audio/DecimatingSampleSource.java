@@ -0,0 +1,135 @@
+package it.unipd.dei.ims.falcon.audio;
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.lang.reflect.Array;
+
+/**
+ * Reduces the sample rate of another source by an integer factor, after
+ * low-pass filtering it with a windowed-sinc FIR filter (Blackman window,
+ * cutoff at 90% of the new Nyquist frequency). Only the retained output
+ * samples are computed.
+ */
+class DecimatingSampleSource implements SampleSource {
+
+	private static final int TAPS_PER_FACTOR = 24;
+
+	private final SampleSource source;
+	private final int factor;
+	private final double[] taps;
+	private final float[] floatTaps;
+	// taps.length - 1 samples of history followed by the samples of the current block
+	private double[] buffer;
+	// same as buffer, for read(float[], int, int); a source is read with either of them
+	private float[] floatBuffer;
+
+	DecimatingSampleSource(final SampleSource source, final int factor) {
+		if (factor < 2)
+			throw new IllegalArgumentException("decimation factor must be at least 2");
+		this.source = source;
+		this.factor = factor;
+		this.taps = lowPass(TAPS_PER_FACTOR * factor + 1, 0.45 / factor);
+		this.buffer = new double[taps.length - 1];
+		this.floatTaps = new float[taps.length];
+		for (int k = 0; k < taps.length; k++)
+			floatTaps[k] = (float) taps[k];
+		this.floatBuffer = new float[taps.length - 1];
+	}
+
+	/**
+	 * @param n number of taps (odd)
+	 * @param fc cutoff frequency, as a fraction of the sample rate
+	 */
+	private static double[] lowPass(final int n, final double fc) {
+		final double[] h = new double[n];
+		final int m = n / 2;
+		double sum = 0;
+		for (int k = 0; k < n; k++) {
+			final double x = 2 * Math.PI * fc * (k - m);
+			final double sinc = k == m ? 1 : Math.sin(x) / x;
+			final double w = 0.42 - 0.5 * Math.cos(2 * Math.PI * k / (n - 1)) + 0.08 * Math.cos(4 * Math.PI * k / (n - 1));
+			h[k] = sinc * w;
+			sum += h[k];
+		}
+		for (int k = 0; k < n; k++) // unity gain at DC
+			h[k] /= sum;
+		return h;
+	}
+
+	@Override
+	public int read(final double[] dst, final int off, final int len) throws IOException {
+		buffer = (double[]) keepHistory(buffer, 0, len);
+		final int read = source.read(buffer, taps.length - 1, len * factor);
+		final int out = Math.max(read, 0) / factor;
+		if (out == 0 && len > 0)
+			return -1;
+		for (int j = 0; j < out; j++) {
+			double y = 0;
+			for (int k = 0, i = j * factor; k < taps.length; k++, i++)
+				y += taps[k] * buffer[i];
+			dst[off + j] = y;
+		}
+		keepHistory(buffer, out * factor, 0);
+		return out;
+	}
+
+	@Override
+	public int read(final float[] dst, final int off, final int len) throws IOException {
+		floatBuffer = (float[]) keepHistory(floatBuffer, 0, len);
+		final int read = source.read(floatBuffer, taps.length - 1, len * factor);
+		final int out = Math.max(read, 0) / factor;
+		if (out == 0 && len > 0)
+			return -1;
+		for (int j = 0; j < out; j++) {
+			float y = 0;
+			for (int k = 0, i = j * factor; k < floatTaps.length; k++, i++)
+				y += floatTaps[k] * floatBuffer[i];
+			dst[off + j] = y;
+		}
+		keepHistory(floatBuffer, out * factor, 0);
+		return out;
+	}
+
+	/**
+	 * Move the taps.length - 1 input samples of history starting at from to
+	 * the start of the buffer, which is replaced by a larger one if it cannot
+	 * hold the input of len more output samples after the history.
+	 * @param buffer the double or float buffer
+	 * @return the buffer holding the history
+	 */
+	private Object keepHistory(final Object buffer, final int from, final int len) {
+		final int history = taps.length - 1;
+		final int length = history + len * factor;
+		if (Array.getLength(buffer) >= length) {
+			if (from > 0)
+				System.arraycopy(buffer, from, buffer, 0, history);
+			return buffer;
+		}
+		final Object grown = Array.newInstance(buffer.getClass().getComponentType(), length);
+		System.arraycopy(buffer, from, grown, 0, history);
+		return grown;
+	}
+
+	@Override
+	public float getSampleRate() {
+		return source.getSampleRate() / factor;
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+}
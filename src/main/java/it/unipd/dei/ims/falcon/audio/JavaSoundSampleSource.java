@@ -0,0 +1,122 @@
+package it.unipd.dei.ims.falcon.audio;
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Decodes any format supported by javax.sound (mp3 and ogg too, provided that
+ * the appropriate packages are in the classpath), converting it to 16 bit mono.
+ */
+class JavaSoundSampleSource implements SampleSource {
+
+	private final AudioInputStream signedInputStream;
+	private final AudioInputStream inputStream;
+	// reused across calls to read
+	private byte[] byteBuffer = new byte[0];
+
+	JavaSoundSampleSource(final File file) throws UnsupportedAudioFileException, IOException {
+		inputStream = AudioSystem.getAudioInputStream(file);
+
+		final AudioFormat audioFormat =
+                new AudioFormat(
+                        AudioFormat.Encoding.PCM_SIGNED,
+						inputStream.getFormat().getSampleRate(),
+						16,
+                        1,
+                        16 / 8 * 1,
+                        inputStream.getFormat().getSampleRate(),
+                        true);
+		signedInputStream = AudioSystem.getAudioInputStream(audioFormat, inputStream);
+	}
+
+	/**
+	 * The underlying stream is read until len samples are available or the end of
+	 * the stream is reached; no memory is allocated once the internal byte buffer
+	 * has grown to the largest requested size.
+	 */
+	@Override
+	public int read(double[] dst, int off, int len) throws IOException {
+		final int ssB = signedInputStream.getFormat().getSampleSizeInBits() / 8;
+		final double scale = SampleSource.fullScale(ssB);
+		final int read = fill(len);
+		for (int i = 0, j = 0; i < read; i++, j += ssB)
+			dst[off + i] = raw(byteBuffer, j, ssB) / scale;
+		return read;
+	}
+
+	@Override
+	public int read(float[] dst, int off, int len) throws IOException {
+		final int ssB = signedInputStream.getFormat().getSampleSizeInBits() / 8;
+		final float scale = (float) SampleSource.fullScale(ssB);
+		final int read = fill(len);
+		for (int i = 0, j = 0; i < read; i++, j += ssB)
+			dst[off + i] = raw(byteBuffer, j, ssB) / scale;
+		return read;
+	}
+
+	/** decode the big endian signed sample of ssB bytes starting at b[j] */
+	private static int raw(final byte[] b, final int j, final int ssB) {
+		switch (ssB) {
+			case 1:
+				return (b[j] & 0xFF) - 128;
+			case 2:
+				return (b[j] << 8) | (b[j + 1] & 0xFF);
+			case 3:
+				return (b[j] << 16) | ((b[j + 1] & 0xFF) << 8) | (b[j + 2] & 0xFF);
+			case 4:
+				return (b[j] << 24) | ((b[j + 1] & 0xFF) << 16) | ((b[j + 2] & 0xFF) << 8) | (b[j + 3] & 0xFF);
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * Read the bytes of up to len samples into the byte buffer.
+	 * @return the number of samples read, or -1 if the end of the stream has been reached
+	 */
+	private int fill(int len) throws IOException {
+		final int ssB = signedInputStream.getFormat().getSampleSizeInBits() / 8;
+		final int nBytes = len * ssB;
+		if (byteBuffer.length < nBytes)
+			byteBuffer = new byte[nBytes];
+
+		int filled = 0;
+		while (filled < nBytes) {
+			int r = signedInputStream.read(byteBuffer, filled, nBytes - filled);
+			if (r < 0)
+				break;
+			filled += r;
+		}
+		final int read = filled / ssB;
+		return read == 0 && len > 0 ? -1 : read;
+	}
+
+	@Override
+	public float getSampleRate() {
+		return signedInputStream.getFormat().getSampleRate();
+	}
+
+	@Override
+	public void close() throws IOException {
+		signedInputStream.close();
+		inputStream.close();
+	}
+}
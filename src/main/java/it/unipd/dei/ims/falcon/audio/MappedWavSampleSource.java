@@ -0,0 +1,197 @@
+package it.unipd.dei.ims.falcon.audio;
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads uncompressed PCM WAV files through a memory-mapped view of the data
+ * chunk. The header is parsed once; frames are decoded and down-mixed to mono
+ * straight into the caller's buffer, with no intermediate stream copies.
+ */
+class MappedWavSampleSource implements SampleSource {
+
+	private static final int WAVE_FORMAT_PCM = 0x0001;
+	private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+	/** parsed "fmt " and "data" chunks; null fields mean the file is not a plain PCM WAV */
+	private static final class Header {
+		int channels;
+		float sampleRate;
+		int blockAlign;
+		int bitsPerSample;
+		long dataOffset = -1;
+		long dataSize;
+	}
+
+	private final MappedByteBuffer data;
+	private final int channels;
+	private final float sampleRate;
+	private final int bytesPerSample;
+	private final int blockAlign;
+
+	private MappedWavSampleSource(final FileChannel channel, final Header h) throws IOException {
+		data = channel.map(FileChannel.MapMode.READ_ONLY, h.dataOffset, h.dataSize);
+		data.order(ByteOrder.LITTLE_ENDIAN);
+		channels = h.channels;
+		sampleRate = h.sampleRate;
+		bytesPerSample = h.bitsPerSample / 8;
+		blockAlign = h.blockAlign;
+	}
+
+	/**
+	 * Open the file as a mapped WAV.
+	 * @return null if the file is not an uncompressed PCM WAV that can be mapped
+	 */
+	static MappedWavSampleSource open(final File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			final FileChannel channel = raf.getChannel();
+			final Header h = parseHeader(channel);
+			return h == null ? null : new MappedWavSampleSource(channel, h);
+		}
+	}
+
+	private static Header parseHeader(final FileChannel channel) throws IOException {
+		final long fileSize = channel.size();
+		final ByteBuffer b = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+		if (!readAt(channel, b, 0, 12) || b.getInt(0) != 0x46464952 /* RIFF */ || b.getInt(8) != 0x45564157 /* WAVE */)
+			return null;
+		final Header h = new Header();
+		boolean fmtFound = false;
+		long pos = 12;
+		while (pos + 8 <= fileSize) {
+			if (!readAt(channel, b, pos, 8))
+				return null;
+			final int id = b.getInt(0);
+			final long size = b.getInt(4) & 0xFFFFFFFFL;
+			if (id == 0x20746d66 /* "fmt " */) {
+				if (size < 16 || !readAt(channel, b, pos + 8, (int) Math.min(size, 40)))
+					return null;
+				int format = b.getShort(0) & 0xFFFF;
+				if (format == WAVE_FORMAT_EXTENSIBLE && size >= 26)
+					format = b.getShort(24) & 0xFFFF; // first two bytes of the sub-format GUID
+				if (format != WAVE_FORMAT_PCM)
+					return null;
+				h.channels = b.getShort(2) & 0xFFFF;
+				h.sampleRate = b.getInt(4);
+				h.blockAlign = b.getShort(12) & 0xFFFF;
+				h.bitsPerSample = b.getShort(14) & 0xFFFF;
+				fmtFound = true;
+			} else if (id == 0x61746164 /* "data" */) {
+				h.dataOffset = pos + 8;
+				// streamed files may carry a bogus size
+				h.dataSize = Math.min(size, fileSize - h.dataOffset);
+				break;
+			}
+			pos += 8 + size + (size & 1);
+		}
+		if (!fmtFound || h.dataOffset < 0 || h.channels < 1 || h.sampleRate <= 0
+				|| h.bitsPerSample % 8 != 0 || h.bitsPerSample < 8 || h.bitsPerSample > 32
+				|| h.blockAlign != h.channels * h.bitsPerSample / 8 || h.dataSize > Integer.MAX_VALUE)
+			return null;
+		h.dataSize -= h.dataSize % h.blockAlign;
+		return h;
+	}
+
+	private static boolean readAt(final FileChannel channel, final ByteBuffer b, final long pos, final int n) throws IOException {
+		b.clear().limit(n);
+		while (b.hasRemaining())
+			if (channel.read(b, pos + b.position()) < 0)
+				return false;
+		return true;
+	}
+
+	/** decode the sample starting at byte offset i of the data chunk */
+	private int raw(final int i) {
+		switch (bytesPerSample) {
+			case 1:
+				return (data.get(i) & 0xFF) - 128;
+			case 2:
+				return data.getShort(i);
+			case 3:
+				return (data.get(i + 2) << 16) | ((data.get(i + 1) & 0xFF) << 8) | (data.get(i) & 0xFF);
+			case 4:
+				return data.getInt(i);
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/** @return the sum of the samples of the frame starting at byte offset pos of the data chunk */
+	private long mix(final int pos) {
+		long v = 0;
+		for (int c = 0; c < channels; c++)
+			v += raw(pos + c * bytesPerSample);
+		return v;
+	}
+
+	/**
+	 * @return number of frames of the next read of len frames, or -1 at the
+	 *         end of the data chunk
+	 */
+	private int frames(final int len) {
+		final int frames = Math.min(len, data.remaining() / blockAlign);
+		return frames == 0 && len > 0 ? -1 : frames;
+	}
+
+	/** Reads len frames, down-mixing channels by averaging them. */
+	@Override
+	public int read(final double[] dst, final int off, final int len) throws IOException {
+		final int frames = frames(len);
+		final double scale = SampleSource.fullScale(bytesPerSample) * channels;
+		int pos = data.position();
+		if (channels == 1 && bytesPerSample == 2) {
+			for (int i = 0; i < frames; i++, pos += 2)
+				dst[off + i] = data.getShort(pos) / scale;
+		} else {
+			for (int i = 0; i < frames; i++, pos += blockAlign)
+				dst[off + i] = mix(pos) / scale;
+		}
+		data.position(pos);
+		return frames;
+	}
+
+	@Override
+	public int read(final float[] dst, final int off, final int len) throws IOException {
+		final int frames = frames(len);
+		final float scale = (float) (SampleSource.fullScale(bytesPerSample) * channels);
+		int pos = data.position();
+		if (channels == 1 && bytesPerSample == 2) {
+			for (int i = 0; i < frames; i++, pos += 2)
+				dst[off + i] = data.getShort(pos) / scale;
+		} else {
+			for (int i = 0; i < frames; i++, pos += blockAlign)
+				dst[off + i] = mix(pos) / scale;
+		}
+		data.position(pos);
+		return frames;
+	}
+
+	@Override
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public void close() {
+		// the mapping is released when the buffer is garbage collected
+	}
+}
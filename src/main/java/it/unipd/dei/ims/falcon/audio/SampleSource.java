@@ -0,0 +1,60 @@
+package it.unipd.dei.ims.falcon.audio;
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+
+/**
+ * A decoder delivering mono samples in [-1, 1], used as back-end by {@link AudioReader}.
+ */
+interface SampleSource extends AutoCloseable {
+
+	/**
+	 * Read up to len mono samples into dst, starting at off.
+	 * @return the number of samples read, or -1 if the end of the stream has been reached
+	 */
+	int read(double[] dst, int off, int len) throws IOException;
+
+	/**
+	 * Single precision version of {@link #read(double[], int, int)}, decoding
+	 * straight into float.
+	 * @return the number of samples read, or -1 if the end of the stream has been reached
+	 */
+	int read(float[] dst, int off, int len) throws IOException;
+
+	float getSampleRate();
+
+	/**
+	 * @param bytesPerSample size of a signed PCM sample
+	 * @return the value dividing a sample to bring it in [-1, 1]
+	 */
+	static double fullScale(final int bytesPerSample) {
+		switch (bytesPerSample) {
+			case 1:
+				return 128.0;
+			case 2:
+				return 32768.0;
+			case 3:
+				return 8388606.0;
+			case 4:
+				return 2147483648.0;
+			default:
+				throw new IllegalArgumentException("unsupported sample size: " + bytesPerSample);
+		}
+	}
+
+	@Override
+	void close() throws IOException;
+}
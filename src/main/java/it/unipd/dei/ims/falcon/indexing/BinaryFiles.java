@@ -0,0 +1,89 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reading and writing of the binary files stored with an index and with the
+ * songs: each file starts with magic bytes identifying its kind and the
+ * version of its format, and all values are little endian.
+ */
+final class BinaryFiles {
+
+	static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+	/** decodes the content of a file following its magic bytes and version */
+	interface Decoder<T> {
+		T decode(ByteBuffer buffer) throws IOException;
+	}
+
+	private BinaryFiles() {
+	}
+
+	/** @return the whole file, memory mapped for reading */
+	static ByteBuffer map(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ORDER);
+		}
+	}
+
+	/**
+	 * Check the magic bytes and the version at the position of buffer, then
+	 * decode the rest; a file ending before it has been decoded is reported
+	 * as truncated.
+	 * @param kind kind of file, for the error messages
+	 * @param name name of the file, for the error messages
+	 */
+	static <T> T decode(ByteBuffer buffer, byte[] magic, int version, String kind, String name,
+					Decoder<T> decoder) throws IOException {
+		try {
+			byte[] head = new byte[magic.length];
+			buffer.get(head);
+			if (!Arrays.equals(head, magic))
+				throw new IOException("not a " + kind + " file: " + name);
+			int v = buffer.getInt();
+			if (v != version)
+				throw new IOException("unsupported " + kind + " version " + v + ": " + name);
+			return decoder.decode(buffer);
+		} catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException ex) {
+			throw new IOException("truncated " + kind + " file: " + name, ex);
+		}
+	}
+
+	/**
+	 * Write the remaining bytes of buffer to file, which is replaced only once
+	 * it has been completely written.
+	 */
+	static void writeAtomically(File file, ByteBuffer buffer) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,274 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * Occurrence counts of the hashes in the segments of an index: for each
+ * hash, the number of segments it occurs in, its total number of
+ * occurrences and its maximum number of occurrences in a segment. These are
+ * the raw values of the features in "qpruning_features.map".
+ * <p>
+ * Counts are collected while segments are built, one instance per thread,
+ * and merged; they are stored in the index folder, so that adding songs to
+ * an index only counts the new segments. Hashes are mapped to dense
+ * ordinals by an open addressing table, and counts are kept in parallel
+ * arrays indexed by ordinal.
+ */
+final class HashCounts {
+
+	static final String FILE_NAME = "qpruning_counts.bin";
+
+	private static final byte[] MAGIC = {'F', 'H', 'C', 'N'};
+	private static final int VERSION = 1;
+	private static final int ENTRY_SIZE = 4 + 4 + 8 + 4;
+
+	private int segments = 0;
+	private int size = 0;
+	// ordinal + 1 of the hash in each slot, 0 for empty slots
+	private int[] table = new int[1024];
+	private int[] hashes = new int[512];
+	private int[] docFreq = new int[512];
+	private long[] collectionFreq = new long[512];
+	private int[] maxFreq = new int[512];
+	// occurrences in the segment being counted, valid if stamp is the current segment
+	private int[] freq = new int[512];
+	private int[] stamp = new int[512];
+	private int[] touched = new int[64];
+
+	/** @return number of segments counted */
+	int getSegments() {
+		return segments;
+	}
+
+	/** @return number of distinct hashes */
+	int size() {
+		return size;
+	}
+
+	private static int mix(int hash) {
+		int h = hash * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/** @return the ordinal of the hash, adding it if needed */
+	private int ordinal(int hash) {
+		int mask = table.length - 1;
+		int slot = mix(hash) & mask;
+		int o;
+		while ((o = table[slot]) != 0) {
+			if (hashes[o - 1] == hash)
+				return o - 1;
+			slot = (slot + 1) & mask;
+		}
+		if (size == hashes.length)
+			grow();
+		hashes[size] = hash;
+		if (2 * (size + 1) > table.length) {
+			rehash(2 * table.length);
+		} else {
+			table[slot] = size + 1;
+		}
+		return size++;
+	}
+
+	private void grow() {
+		int n = 2 * hashes.length;
+		hashes = Arrays.copyOf(hashes, n);
+		docFreq = Arrays.copyOf(docFreq, n);
+		collectionFreq = Arrays.copyOf(collectionFreq, n);
+		maxFreq = Arrays.copyOf(maxFreq, n);
+		freq = Arrays.copyOf(freq, n);
+		stamp = Arrays.copyOf(stamp, n);
+	}
+
+	/** rebuild the table for the ordinals up to size, included */
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		int mask = capacity - 1;
+		for (int o = 0; o <= size; o++) {
+			int slot = mix(hashes[o]) & mask;
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = o + 1;
+		}
+	}
+
+	/** count the segment made of hashes [start, start + length) */
+	void addSegment(int[] window, int start, int length) {
+		segments++;
+		int distinct = 0;
+		for (int i = start; i < start + length; i++) {
+			int o = ordinal(window[i]);
+			if (stamp[o] != segments) {
+				stamp[o] = segments;
+				freq[o] = 0;
+				if (distinct == touched.length)
+					touched = Arrays.copyOf(touched, 2 * distinct);
+				touched[distinct++] = o;
+			}
+			freq[o]++;
+		}
+		for (int i = 0; i < distinct; i++) {
+			int o = touched[i];
+			docFreq[o]++;
+			collectionFreq[o] += freq[o];
+			if (freq[o] > maxFreq[o])
+				maxFreq[o] = freq[o];
+		}
+	}
+
+	private void add(int hash, int df, long cf, int mf) {
+		int o = ordinal(hash);
+		docFreq[o] += df;
+		collectionFreq[o] += cf;
+		maxFreq[o] = Math.max(maxFreq[o], mf);
+	}
+
+	/** add the counts of other, collected on different segments */
+	void merge(HashCounts other) {
+		segments += other.segments;
+		for (int o = 0; o < other.size; o++)
+			add(other.hashes[o], other.docFreq[o], other.collectionFreq[o], other.maxFreq[o]);
+	}
+
+	/** count the segments of an existing index by reading all its postings */
+	static HashCounts scan(IndexReader reader, HashTermEncoding encoding) throws IOException {
+		HashCounts counts = new HashCounts();
+		counts.segments = reader.numDocs();
+		TermEnum terms = reader.terms(new Term("CONTENT", ""));
+		try {
+			do {
+				Term term = terms.term();
+				if (term == null || !term.field().equals("CONTENT"))
+					break;
+				int df = 0;
+				long cf = 0;
+				int mf = 0;
+				TermDocs postings = reader.termDocs(term);
+				while (postings.next()) {
+					df++;
+					cf += postings.freq();
+					mf = Math.max(mf, postings.freq());
+				}
+				postings.close();
+				counts.add(encoding.decode(term.text()), df, cf, mf);
+			} while (terms.next());
+		} finally {
+			terms.close();
+		}
+		return counts;
+	}
+
+	/**
+	 * @param hashPerSegment number of hashes per segment
+	 * @return the normalized document, collection and maximum frequency of
+	 *         each hash, indexed by ordinal
+	 */
+	private double[][] features(int hashPerSegment) {
+		long total_hcf = (long) segments * hashPerSegment;        // total number of hashes in the collection
+		double[] ndf = new double[size];
+		double[] ncf = new double[size];
+		double[] nmf = new double[size];
+		for (int o = 0; o < size; o++) {
+			ndf[o] = (double) docFreq[o] / segments;
+			ncf[o] = (double) collectionFreq[o] / total_hcf;
+			nmf[o] = (double) maxFreq[o] / hashPerSegment;
+		}
+		return new double[][]{ndf, ncf, nmf};
+	}
+
+	/**
+	 * @param hashPerSegment number of hashes per segment
+	 * @param indexVersion version of the index counted
+	 * @return the statistics of the hashes, in memory
+	 */
+	HashStatsFile getStats(int hashPerSegment, long indexVersion) throws IOException {
+		double[][] features = features(hashPerSegment);
+		return HashStatsFile.create(indexVersion, Arrays.copyOf(hashes, size), features[0], features[1], features[2]);
+	}
+
+	/**
+	 * Write the features of each hash in the index folder: in the text file
+	 * "qpruning_features.map", in the order of the terms of the index, as
+	 * described in {@link Indexing}, and in a {@link HashStatsFile}.
+	 * @param hashPerSegment number of hashes per segment
+	 * @param indexVersion version of the index counted
+	 */
+	void writeQueryPruningFeatures(File index, int hashPerSegment, final HashTermEncoding encoding,
+					long indexVersion) throws IOException {
+		final String[] terms = new String[size];
+		Integer[] order = new Integer[size];
+		for (int o = 0; o < size; o++) {
+			terms[o] = encoding.encode(hashes[o]);
+			order[o] = o;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return terms[a].compareTo(terms[b]);
+			}
+		});
+		double[][] features = features(hashPerSegment);
+		double[] ndf = features[0], ncf = features[1], nmf = features[2];
+		PrintWriter pw = new PrintWriter(new File(index, "qpruning_features.map"));
+		try {
+			for (int o : order) {
+				pw.print(hashes[o] + "\t");
+				pw.print(ndf[o] + "\t");
+				pw.print(ncf[o] + "\t" + nmf[o] + "\n");
+			}
+		} finally {
+			pw.close();
+		}
+		HashStatsFile.write(new File(index, HashStatsFile.FILE_NAME), indexVersion, Arrays.copyOf(hashes, size), ndf, ncf, nmf);
+	}
+
+	/** write the counts */
+	void write(File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(MAGIC.length + 3 * 4 + size * ENTRY_SIZE).order(BinaryFiles.ORDER);
+		buffer.put(MAGIC).putInt(VERSION).putInt(segments).putInt(size);
+		for (int o = 0; o < size; o++)
+			buffer.putInt(hashes[o]).putInt(docFreq[o]).putLong(collectionFreq[o]).putInt(maxFreq[o]);
+		buffer.flip();
+		BinaryFiles.writeAtomically(file, buffer);
+	}
+
+	/** read counts written by {@link #write} */
+	static HashCounts read(final File file) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(BinaryFiles.ORDER);
+		return BinaryFiles.decode(buffer, MAGIC, VERSION, "hash counts", file.getPath(), b -> {
+			HashCounts counts = new HashCounts();
+			counts.segments = b.getInt();
+			int n = b.getInt();
+			if (n < 0 || b.remaining() != (long) n * ENTRY_SIZE)
+				throw new IOException("truncated hash counts file: " + file);
+			for (int i = 0; i < n; i++)
+				counts.add(b.getInt(), b.getInt(), b.getLong(), b.getInt());
+			return counts;
+		});
+	}
+}
@@ -0,0 +1,180 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Hash sequences of a song, persisted together with the parameters they were
+ * computed with. Hash sequences do not depend on the segmentation, so an index
+ * with a different segment length or overlap can be re-built from these files
+ * without reading and hashing the chroma files again, and a query can be
+ * performed directly from them.
+ * <p>
+ * A file starts with the magic bytes "FHSQ" and the format version, followed
+ * by the quantization level, the sub-sampling, the kurtosis threshold, the
+ * description of the transposition estimator, the song title and the number
+ * of sequences (one for each transposition). Each sequence is stored as its
+ * length followed by the hashes, -1 marking chroma vectors below the kurtosis
+ * threshold. Strings are stored as length and UTF-8 bytes; all values are
+ * little endian.
+ */
+public class HashSequenceFile {
+
+	/** extension of hash sequence files */
+	public static final String EXTENSION = ".hseq";
+
+	private static final byte[] MAGIC = {'F', 'H', 'S', 'Q'};
+	private static final int VERSION = 1;
+
+	private final String title;
+	private final int nranks;
+	private final int subsampling;
+	private final double minkurtosis;
+	private final String transposition;
+	private final int[][] sequences;
+
+	/**
+	 * @param title song title, as stored in the index
+	 * @param nranks quantization level
+	 * @param subsampling sub-sampling of the chroma vectors
+	 * @param minkurtosis kurtosis threshold
+	 * @param tpe transposition estimator, null if no transposition is performed
+	 * @param sequences one hash sequence for each transposition
+	 */
+	public HashSequenceFile(String title, int nranks, int subsampling, double minkurtosis,
+					TranspositionEstimator tpe, int[][] sequences) {
+		this(title, nranks, subsampling, minkurtosis, describe(tpe), sequences);
+	}
+
+	private HashSequenceFile(String title, int nranks, int subsampling, double minkurtosis,
+					String transposition, int[][] sequences) {
+		this.title = title;
+		this.nranks = nranks;
+		this.subsampling = subsampling;
+		this.minkurtosis = minkurtosis;
+		this.transposition = transposition;
+		this.sequences = sequences;
+	}
+
+	private static String describe(TranspositionEstimator tpe) {
+		return tpe == null ? "none" : tpe.toString();
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public int getSequenceCount() {
+		return sequences.length;
+	}
+
+	public int[] getSequence(int i) {
+		return sequences[i];
+	}
+
+	/** @return true if the sequences were computed with the given parameters */
+	public boolean matches(int nranks, int subsampling, double minkurtosis, TranspositionEstimator tpe) {
+		return this.nranks == nranks && this.subsampling == subsampling
+						&& Double.compare(this.minkurtosis, minkurtosis) == 0
+						&& this.transposition.equals(describe(tpe));
+	}
+
+	/**
+	 * Key identifying a set of hashing parameters in file names, so that
+	 * sequences computed with different parameters can share a directory.
+	 */
+	public static String key(int nranks, int subsampling, double minkurtosis, TranspositionEstimator tpe) {
+		String params = "Q" + nranks + "s" + subsampling + "k" + minkurtosis + "t" + describe(tpe);
+		return String.format("%08x", params.hashCode());
+	}
+
+	/** @return the file holding the sequences of song computed with the parameters identified by key */
+	public static File sidecar(File dir, File song, String key) {
+		return new File(dir, song.getName() + "." + key + EXTENSION);
+	}
+
+	/** write the sequences */
+	public void write(File file) throws IOException {
+		byte[] t = transposition.getBytes(StandardCharsets.UTF_8);
+		byte[] n = title.getBytes(StandardCharsets.UTF_8);
+		long size = MAGIC.length + 4 * 4 + 8 + 4 + t.length + 4 + n.length + 4;
+		for (int[] sequence : sequences)
+			size += 4 + 4L * sequence.length;
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("hash sequences too long for " + file);
+		ByteBuffer buffer = ByteBuffer.allocate((int) size).order(BinaryFiles.ORDER);
+		buffer.put(MAGIC).putInt(VERSION).putInt(nranks).putInt(subsampling).putDouble(minkurtosis);
+		buffer.putInt(t.length).put(t).putInt(n.length).put(n).putInt(sequences.length);
+		for (int[] sequence : sequences) {
+			buffer.putInt(sequence.length);
+			buffer.asIntBuffer().put(sequence);
+			buffer.position(buffer.position() + 4 * sequence.length);
+		}
+		buffer.flip();
+		BinaryFiles.writeAtomically(file, buffer);
+	}
+
+	/** read a hash sequence file */
+	public static HashSequenceFile read(final File file) throws IOException {
+		return BinaryFiles.decode(BinaryFiles.map(file), MAGIC, VERSION, "hash sequence", file.getPath(), b -> {
+			int nranks = b.getInt();
+			int subsampling = b.getInt();
+			double minkurtosis = b.getDouble();
+			String transposition = readString(b);
+			String title = readString(b);
+			int count = b.getInt();
+			if (count < 0 || b.remaining() < 4L * count)
+				throw new IOException("truncated hash sequence file: " + file);
+			int[][] sequences = new int[count][];
+			for (int i = 0; i < sequences.length; i++) {
+				int length = b.getInt();
+				if (length < 0 || b.remaining() < 4L * length)
+					throw new IOException("truncated hash sequence file: " + file);
+				sequences[i] = new int[length];
+				b.asIntBuffer().get(sequences[i]);
+				b.position(b.position() + 4 * length);
+			}
+			return new HashSequenceFile(title, nranks, subsampling, minkurtosis, transposition, sequences);
+		});
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.getInt()];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** @return true if the file starts with the magic bytes of hash sequence files */
+	public static boolean isHashSequenceFile(File file) throws IOException {
+		if (!file.isFile() || file.length() < MAGIC.length)
+			return false;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer head = ByteBuffer.allocate(MAGIC.length);
+			while (head.hasRemaining() && channel.read(head) != -1)
+				;
+			return Arrays.equals(head.array(), MAGIC);
+		}
+	}
+}
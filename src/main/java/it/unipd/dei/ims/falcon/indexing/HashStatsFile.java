@@ -0,0 +1,235 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.IndexReader;
+
+/**
+ * Collection wide statistics of the hashes of an index, the same values as
+ * "qpruning_features.map" in a binary form which is memory mapped instead of
+ * parsed. Hashes are identified by dense ordinals, from 0 to the number of
+ * distinct hashes, and the normalized document, collection and maximum
+ * frequencies are arrays indexed by ordinal. Instances are immutable and can
+ * be shared by any number of queries.
+ * <p>
+ * The file is written in the index folder after each commit, together with
+ * the version of the index it describes; statistics which do not describe
+ * the index open by a reader, as when a query comes between the commit and
+ * the writing of the file, are counted again from the postings of the index.
+ * <p>
+ * A file starts with the magic bytes "FHST" and the format version, followed
+ * by the index version, the number of hashes, the least hash and the length
+ * of the direct table.
+ * Then come the hashes in ascending order (the ordinal of a hash is its
+ * position), the direct table, which maps each hash minus the least one to its
+ * ordinal or -1, and the three arrays of frequencies, aligned to 8 bytes.
+ * The direct table is only stored when the hashes span a small range, as with
+ * few ranks; otherwise ordinals are found by binary search. All values are
+ * little endian.
+ */
+public final class HashStatsFile {
+
+	/** name of the file in the index folder */
+	public static final String FILE_NAME = "qpruning_features.bin";
+
+	private static final byte[] MAGIC = {'F', 'H', 'S', 'T'};
+	private static final int VERSION = 2;
+	private static final int HEADER_SIZE = MAGIC.length + 4 + 8 + 3 * 4;
+	// ranges up to this length always get a direct table
+	private static final int MIN_TABLE_RANGE = 1 << 16;
+
+	private final long indexVersion;
+	private final int size;
+	private final int min;
+	private final IntBuffer hashes;
+	private final IntBuffer table;
+	private final DoubleBuffer ndf;
+	private final DoubleBuffer ncf;
+	private final DoubleBuffer nmf;
+
+	private HashStatsFile(ByteBuffer buffer, long indexVersion, int size, int min, int tableLength) {
+		this.indexVersion = indexVersion;
+		this.size = size;
+		this.min = min;
+		hashes = slice(buffer, HEADER_SIZE, 4 * size).asIntBuffer();
+		table = slice(buffer, HEADER_SIZE + 4 * size, 4 * tableLength).asIntBuffer();
+		int offset = doublesOffset(size, tableLength);
+		ndf = slice(buffer, offset, 8 * size).asDoubleBuffer();
+		ncf = slice(buffer, offset + 8 * size, 8 * size).asDoubleBuffer();
+		nmf = slice(buffer, offset + 16 * size, 8 * size).asDoubleBuffer();
+	}
+
+	private static HashStatsFile decode(final ByteBuffer buffer, final String name) throws IOException {
+		return BinaryFiles.decode(buffer, MAGIC, VERSION, "hash statistics", name, b -> {
+			long indexVersion = b.getLong();
+			int size = b.getInt();
+			int min = b.getInt();
+			int tableLength = b.getInt();
+			if (size < 0 || tableLength < 0 || b.capacity() != doublesOffset(size, tableLength) + 3L * 8 * size)
+				throw new IOException("truncated hash statistics file: " + name);
+			return new HashStatsFile(b, indexVersion, size, min, tableLength);
+		});
+	}
+
+	private static int doublesOffset(int size, int tableLength) {
+		int offset = HEADER_SIZE + 4 * (size + tableLength);
+		return (offset + 7) & ~7;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer b = buffer.duplicate();
+		b.position(offset);
+		b.limit(offset + length);
+		return b.slice().order(BinaryFiles.ORDER);
+	}
+
+	/**
+	 * Open the statistics of an index: those stored in the index folder if
+	 * they describe the index open by reader, otherwise those counted from
+	 * the postings of the index.
+	 * @param index folder of the index
+	 */
+	public static HashStatsFile open(File index, IndexReader reader) throws IOException {
+		File file = new File(index, FILE_NAME);
+		if (file.exists()) {
+			try {
+				HashStatsFile stats = read(file);
+				if (stats.indexVersion == reader.getVersion())
+					return stats;
+			} catch (IOException ex) {
+				Logger.getLogger(HashStatsFile.class.getName()).log(Level.WARNING, "re-counting hashes of " + index, ex);
+			}
+		}
+		int hashPerSegment = reader.maxDoc() == 0 ? 0
+						: Integer.parseInt(reader.document(0).getField("LENGTH").stringValue());
+		return HashCounts.scan(reader, HashTermEncoding.read(reader)).getStats(hashPerSegment, reader.getVersion());
+	}
+
+	/** read statistics written by {@link #write} */
+	static HashStatsFile read(File file) throws IOException {
+		return decode(BinaryFiles.map(file), file.getPath());
+	}
+
+	/**
+	 * @param indexVersion version of the index described by the statistics
+	 * @param hashes distinct hashes, in any order
+	 * @param ndf normalized document frequency of each hash
+	 * @param ncf normalized collection frequency of each hash
+	 * @param nmf normalized maximum frequency of each hash
+	 */
+	static HashStatsFile create(long indexVersion, int[] hashes, double[] ndf, double[] ncf, double[] nmf) throws IOException {
+		return decode(encode(indexVersion, hashes, ndf, ncf, nmf), "statistics of version " + indexVersion);
+	}
+
+	/**
+	 * Write the statistics of the hashes.
+	 * @param indexVersion version of the index described by the statistics
+	 * @param hashes distinct hashes, in any order
+	 * @param ndf normalized document frequency of each hash
+	 * @param ncf normalized collection frequency of each hash
+	 * @param nmf normalized maximum frequency of each hash
+	 */
+	static void write(File file, long indexVersion, int[] hashes, double[] ndf, double[] ncf, double[] nmf) throws IOException {
+		BinaryFiles.writeAtomically(file, encode(indexVersion, hashes, ndf, ncf, nmf));
+	}
+
+	private static ByteBuffer encode(long indexVersion, int[] hashes, double[] ndf, double[] ncf, double[] nmf) {
+		int n = hashes.length;
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++)
+			order[i] = ((long) hashes[i] << 32) | i;
+		Arrays.sort(order);
+		int min = n == 0 ? 0 : (int) (order[0] >> 32);
+		long range = n == 0 ? 0 : (order[n - 1] >> 32) - min + 1;
+		int tableLength = range <= Math.max(MIN_TABLE_RANGE, 16L * n) ? (int) range : 0;
+
+		int offset = doublesOffset(n, tableLength);
+		ByteBuffer buffer = ByteBuffer.allocate(offset + 3 * 8 * n).order(BinaryFiles.ORDER);
+		buffer.put(MAGIC).putInt(VERSION).putLong(indexVersion).putInt(n).putInt(min).putInt(tableLength);
+		for (int o = 0; o < n; o++)
+			buffer.putInt((int) (order[o] >> 32));
+		int[] table = new int[tableLength];
+		Arrays.fill(table, -1);
+		for (int o = 0; o < n && tableLength > 0; o++)
+			table[(int) (order[o] >> 32) - min] = o;
+		for (int t : table)
+			buffer.putInt(t);
+		buffer.position(offset);
+		for (double[] values : new double[][]{ndf, ncf, nmf})
+			for (int o = 0; o < n; o++)
+				buffer.putDouble(values[(int) order[o]]);
+		buffer.flip();
+		return buffer;
+	}
+
+	/** @return version of the index described by the statistics */
+	public long getIndexVersion() {
+		return indexVersion;
+	}
+
+	/** @return number of distinct hashes */
+	public int size() {
+		return size;
+	}
+
+	/** @return the ordinal of the hash, -1 if it does not occur in the index */
+	public int ordinal(int hash) {
+		if (table.capacity() > 0) {
+			long t = (long) hash - min;
+			return t < 0 || t >= table.capacity() ? -1 : table.get((int) t);
+		}
+		int low = 0, high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int h = hashes.get(mid);
+			if (h < hash)
+				low = mid + 1;
+			else if (h > hash)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/** @return the hash with the given ordinal */
+	public int getHash(int ordinal) {
+		return hashes.get(ordinal);
+	}
+
+	/** @return normalized document frequency of the hash with the given ordinal */
+	public double getNdf(int ordinal) {
+		return ndf.get(ordinal);
+	}
+
+	/** @return normalized collection frequency of the hash with the given ordinal */
+	public double getNcf(int ordinal) {
+		return ncf.get(ordinal);
+	}
+
+	/** @return normalized maximum frequency of the hash with the given ordinal */
+	public double getNmf(int ordinal) {
+		return nmf.get(ordinal);
+	}
+}
@@ -0,0 +1,182 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+/**
+ * Text of the "CONTENT" terms for hashes. Two encodings are available:
+ * <ul>
+ *  <li>decimal: the decimal representation of the hash, as produced by
+ *      {@link Integer#toString(int)};
+ *  <li>binary: a fixed number of chars, each holding 7 bits of the hash
+ *      from the most significant ones, so that terms sort as the unsigned
+ *      hash values and take one byte per char in the index; this is the
+ *      prefix coded form of Lucene's NumericUtils without the shift prefix
+ *      and the lower precision levels. The width is the least number of
+ *      chars holding the 4 bits per rank of the hashes.
+ * </ul>
+ * The encoding is recorded in the commit user data of the index; indexes
+ * without it use the decimal encoding.
+ */
+public final class HashTermEncoding {
+
+	/** key of the encoding in the commit user data of the index */
+	public static final String USER_DATA_KEY = "falcon.hashTermEncoding";
+
+	public static final HashTermEncoding DECIMAL = new HashTermEncoding(0);
+
+	/** maximum number of chars of binary terms, enough for any int */
+	private static final int MAX_WIDTH = 5;
+
+	private final int width;
+
+	private HashTermEncoding(int width) {
+		this.width = width;
+	}
+
+	/** @return the binary encoding for hashes of nranks ranks */
+	public static HashTermEncoding binary(int nranks) {
+		if (nranks < 1)
+			throw new IllegalArgumentException("at least one rank is required");
+		return new HashTermEncoding(Math.min(MAX_WIDTH, (4 * nranks + 6) / 7));
+	}
+
+	/**
+	 * @param name "decimal", "binary" (for hashes of nranks ranks), or the
+	 *             string representation of an encoding
+	 */
+	public static HashTermEncoding forName(String name, int nranks) {
+		if (name.equals("decimal"))
+			return DECIMAL;
+		if (name.equals("binary"))
+			return binary(nranks);
+		if (name.startsWith("binary/")) {
+			int width = Integer.parseInt(name.substring("binary/".length()));
+			if (width < 1 || width > MAX_WIDTH)
+				throw new IllegalArgumentException("invalid binary term width " + width);
+			return new HashTermEncoding(width);
+		}
+		throw new IllegalArgumentException("unknown hash term encoding " + name);
+	}
+
+	/** @return the encoding recorded in the index, decimal for indexes that do not record it */
+	public static HashTermEncoding read(IndexReader reader) throws IOException {
+		return read(reader.getCommitUserData());
+	}
+
+	/** @return the encoding recorded in the commit user data of an index, decimal if it is not recorded */
+	public static HashTermEncoding read(Map<String, String> userData) {
+		String name = userData == null ? null : userData.get(USER_DATA_KEY);
+		return name == null ? DECIMAL : forName(name, 0);
+	}
+
+	/** @return the commit user data recording this encoding */
+	public Map<String, String> userData() {
+		Map<String, String> userData = new HashMap<String, String>();
+		userData.put(USER_DATA_KEY, toString());
+		return userData;
+	}
+
+	/** @return the maximum number of chars of a term */
+	int maxLength() {
+		return width == 0 ? 11 : width;
+	}
+
+	/**
+	 * Write the term of the hash into buffer.
+	 * @param buffer array of at least {@link #maxLength()} chars
+	 * @return the number of chars written
+	 */
+	int encode(int hash, char[] buffer) {
+		if (width == 0)
+			return formatDecimal(hash, buffer);
+		for (int i = width - 1; i >= 0; i--) {
+			buffer[i] = (char) (hash & 0x7f);
+			hash >>>= 7;
+		}
+		if (hash != 0)
+			throw new IllegalArgumentException("hash does not fit " + this + " terms");
+		return width;
+	}
+
+	/** @return the term text of the hash */
+	public String encode(int hash) {
+		if (width == 0)
+			return Integer.toString(hash);
+		char[] buffer = new char[width];
+		return new String(buffer, 0, encode(hash, buffer));
+	}
+
+	/** @return the term of the hash in the "CONTENT" field */
+	public Term term(int hash) {
+		return new Term("CONTENT", encode(hash));
+	}
+
+	/** @return the hash of a term text */
+	public int decode(String text) {
+		if (width == 0)
+			return Integer.parseInt(text);
+		if (text.length() != width)
+			throw new NumberFormatException("binary hash term of length " + text.length());
+		int hash = 0;
+		for (int i = 0; i < width; i++)
+			hash = (hash << 7) | text.charAt(i);
+		return hash;
+	}
+
+	/** write the decimal representation of value into buffer, which has room for any int */
+	static int formatDecimal(int value, char[] buffer) {
+		if (value == Integer.MIN_VALUE) {
+			String s = Integer.toString(value);
+			s.getChars(0, s.length(), buffer, 0);
+			return s.length();
+		}
+		int length = 0;
+		if (value < 0) {
+			buffer[length++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (int v = value; v >= 10; v /= 10)
+			digits++;
+		length += digits;
+		for (int i = length - 1; i >= length - digits; i--) {
+			buffer[i] = (char) ('0' + value % 10);
+			value /= 10;
+		}
+		return length;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof HashTermEncoding && ((HashTermEncoding) o).width == width;
+	}
+
+	@Override
+	public int hashCode() {
+		return width;
+	}
+
+	@Override
+	public String toString() {
+		return width == 0 ? "decimal" : "binary/" + width;
+	}
+}
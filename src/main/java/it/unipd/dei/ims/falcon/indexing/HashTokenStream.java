@@ -0,0 +1,66 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+
+/**
+ * Emits the hashes of a segment as terms, straight from a window of the hash
+ * sequence of the song. Terms are encoded by a {@link HashTermEncoding}; the
+ * decimal one produces the same terms as analyzing the space separated
+ * sequence, but no text is built and no analyzer is involved. The window is
+ * not copied: the array must not change until the document has been indexed.
+ */
+public final class HashTokenStream extends TokenStream {
+
+	private final TermAttribute termAtt = addAttribute(TermAttribute.class);
+	private final int[] hashes;
+	private final int start;
+	private final int end;
+	private final HashTermEncoding encoding;
+	private int next;
+
+	/**
+	 * @param hashes hash sequence
+	 * @param start first hash of the window
+	 * @param length number of hashes in the window
+	 * @param encoding encoding of the terms
+	 */
+	public HashTokenStream(int[] hashes, int start, int length, HashTermEncoding encoding) {
+		this.hashes = hashes;
+		this.start = start;
+		this.end = start + length;
+		this.encoding = encoding;
+		this.next = start;
+	}
+
+	@Override
+	public boolean incrementToken() {
+		if (next == end)
+			return false;
+		clearAttributes();
+		int hash = hashes[next++];
+		char[] buffer = termAtt.resizeTermBuffer(encoding.maxLength());
+		termAtt.setTermLength(encoding.encode(hash, buffer));
+		return true;
+	}
+
+	@Override
+	public void reset() {
+		next = start;
+	}
+}
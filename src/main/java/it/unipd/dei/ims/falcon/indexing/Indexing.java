@@ -19,21 +19,14 @@ import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
 import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
 import it.unipd.dei.ims.falcon.ranking.HashSimilarity;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.io.PrintWriter;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.lucene.analysis.Analyzer;
@@ -43,8 +36,6 @@ import org.apache.lucene.document.Field;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.index.TermDocs;
 import org.apache.lucene.index.TermEnum;
 import org.apache.lucene.index.TermPositions;
 import org.apache.lucene.store.SimpleFSDirectory;
@@ -69,8 +60,9 @@ import org.apache.lucene.util.Version;
  * and written in the index. Each segment {@link org.apache.lucene.document.Document}
  * has three Lucene {@link org.apache.lucene.document.Field}'s:
  * <ul>
- *  <li> "CONTENT": sequence of hashes for the current segments; a white space
- *       is adopted as hash delimiter; the configuration currently used for this
+ *  <li> "CONTENT": sequence of hashes for the current segments, one term per
+ *       hash in decimal form, emitted by a {@link HashTokenStream}; the
+ *       configuration currently used for this
  *       {@link org.apache.lucene.document.Field} is:
  *       <ul>
  *          <li>{@link org.apache.lucene.document.Field.Store#NO}
@@ -95,8 +87,9 @@ import org.apache.lucene.util.Version;
  * number of hashes per segment, the remaining part of the sequence is truncated.
  * <p>
  *
- * After indexing, collection wide statistics for each hash are computed and
- * stored in the file "qpruning_features.map" in the index folder.
+ * While segments are built, collection wide statistics for each hash are
+ * counted, and after indexing they are stored in the file
+ * "qpruning_features.map" in the index folder.
  * Each line in this file corresponds to a distinct hash and contains four entries:
  * <ol>
  *  <li>the hash value;
@@ -110,7 +103,12 @@ import org.apache.lucene.util.Version;
  *      value computed over all the segments in the index of the number of
  *      hash occurrence in a segment divided by the segment length.
  * </ol>
- * When the index is updated, the map is re-built.
+ * The same values are stored in binary form in "qpruning_features.bin", see
+ * {@link HashStatsFile}, which is what queries read.
+ * The song of each segment is stored in "songs.bin", see {@link SongTable}.
+ * The raw counts are kept in "qpruning_counts.bin" in the index folder: when
+ * songs are added to the index only the new segments are counted, and the map
+ * is re-built from the updated counts.
  * <p>
  * 
  */
@@ -121,7 +119,7 @@ public class Indexing {
 	 * The index is created in the specified directory "indexPath". If an index
 	 * already exists in that path, adds the songs to the existing index.
 	 * Each song is processed by the method
-	 * {@link it.unipd.dei.ims.falcon.indexing.Indexing#indexSong}
+	 * {@link it.unipd.dei.ims.falcon.indexing.Indexing#segment}
 	 * which maps the song into a set of segments, each of one is mapped in a
 	 * Lucene {@link org.apache.lucene.document.Document}.
 	 * The segments have fixed length, specifically are constituted by 
@@ -144,6 +142,41 @@ public class Indexing {
 	public static void index(File data, File index, final int hashPerSegment, final int hashInOverlap,
 					final int subsampling, final int nranks, final double minkurtosis, 
 					final TranspositionEstimator transpEst, boolean verbose) throws IndexingException, IOException {
+		index(data, index, hashPerSegment, hashInOverlap, subsampling, nranks, minkurtosis, transpEst, null, verbose);
+	}
+
+	/**
+	 * Indexes all the songs in the specified path as
+	 * {@link #index(File, File, int, int, int, int, double, TranspositionEstimator, boolean)},
+	 * additionally writing the hash sequence of each song in the directory
+	 * "sequences", so that the index can later be re-built with a different
+	 * segmentation by {@link #rebuild}.
+	 * @param sequences Directory for the hash sequence files, null if they are not needed.
+	 * @throws IndexingException
+	 */
+	public static void index(File data, File index, final int hashPerSegment, final int hashInOverlap,
+					final int subsampling, final int nranks, final double minkurtosis,
+					final TranspositionEstimator transpEst, File sequences, boolean verbose) throws IndexingException, IOException {
+		index(data, index, hashPerSegment, hashInOverlap, subsampling, nranks, minkurtosis, transpEst, sequences,
+						null, new int[]{1, 1, 1, 1}, verbose);
+	}
+
+	/**
+	 * Indexes all the songs in the specified path as
+	 * {@link #index(File, File, int, int, int, int, double, TranspositionEstimator, File, boolean)},
+	 * on a pipeline of four stages: parsing of the chroma files, hashing,
+	 * segmentation and writing to the index. Songs are processed
+	 * concurrently, so the order of the segments in the index depends on
+	 * scheduling when a stage has more than one worker.
+	 * @param encoding Encoding of the hash terms, see {@link HashTermEncoding}; null for the
+	 *        encoding of the existing index, or decimal for a new one.
+	 * @param workers Number of workers of each stage: parsing, hashing, segmentation and writing.
+	 * @throws IndexingException if the existing index uses a different encoding
+	 */
+	public static void index(File data, File index, final int hashPerSegment, final int hashInOverlap,
+					final int subsampling, final int nranks, final double minkurtosis,
+					final TranspositionEstimator transpEst, final File sequences, HashTermEncoding encoding,
+					int[] workers, final boolean verbose) throws IndexingException, IOException {
 
 		long start_time = System.currentTimeMillis();
 		
@@ -151,102 +184,281 @@ public class Indexing {
             throw new IndexingException("Number of hashes in the overlap cannot be equal to the number of hash per segment");
         }
 
+		if (workers.length != 4) {
+			throw new IllegalArgumentException("one worker count per stage is required");
+		}
+
 		if (!data.canRead()) {
             throw new IOException("cannot read input path");
         }
 
-		if (!index.exists()) {
-            index.mkdir();
-        }
-
-		if (!index.canWrite()) {
-            throw new IOException("cannot write to index directory");
-        }
+		if (sequences != null && !sequences.isDirectory() && !sequences.mkdirs()) {
+			throw new IOException("cannot create hash sequence directory");
+		}
 
-		SimpleFSDirectory indexDir = new SimpleFSDirectory(index, null);
+		HashTermEncoding termEncoding = encoding;
+		HashCounts counts = new HashCounts();
+		if (index.exists() && IndexReader.indexExists(new SimpleFSDirectory(index, null))) {
+			IndexReader reader = IndexReader.open(new SimpleFSDirectory(index, null), true);
+			try {
+				HashTermEncoding recorded = HashTermEncoding.read(reader);
+				if (encoding != null && !encoding.equals(recorded)) {
+					throw new IndexingException("the index uses " + recorded + " hash terms");
+				}
+				termEncoding = recorded;
+				counts = readCounts(index, reader, termEncoding);
+			} finally {
+				reader.close();
+			}
+		} else if (termEncoding == null) {
+			termEncoding = HashTermEncoding.DECIMAL;
+		}
 
-		// initialize Lucene Analyzer and IndexWriter
-		Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_30);
-		final IndexWriter writer = new IndexWriter(indexDir, analyzer, !IndexReader.indexExists(indexDir), IndexWriter.MaxFieldLength.UNLIMITED);
-		writer.setSimilarity(new HashSimilarity());
+		final IndexWriter writer = openWriter(index, false);
+		final String key = HashSequenceFile.key(nranks, subsampling, minkurtosis, transpEst);
 
 		// transform chroma data into hashes and write into index
 		File[] inputfiles = data.isDirectory() ? data.listFiles() : new File[]{data};
-		int fileNo = 0;
-		for (final File file : inputfiles) {
+		final List<File> songs = new ArrayList<File>();
+		for (File file : inputfiles) {
 			// if the current considered files exists and is not hidden
 			if (file.exists() && !file.getName().startsWith(".")) {
-				if(verbose)
-					System.out.println(String.format("%10.3f%% - indexing %s", fileNo*100./inputfiles.length, file.getAbsolutePath()));
-				final List<OutputStream> fout = new LinkedList<>();
-				fout.add(new PipedOutputStream());
-				final PipedInputStream fin = new PipedInputStream((PipedOutputStream) fout.get(0));
-				Thread t = new Thread(new Runnable() {
-					public void run() {
-						try {
-							ChromaMatrixUtils.convertChromaStreamIntoHashesStream(new FileReader(file), fout, nranks, transpEst, minkurtosis, subsampling);
-						} catch (IOException ex) {
-							// TODO do something better for this exception ... (might hang all ...)
-							Logger.getLogger(Indexing.class.getName()).log(Level.SEVERE, null, ex);
-						}
-					}
-				});
-				t.start();
-				indexSong(writer, fin, hashPerSegment, hashInOverlap, file.getAbsolutePath(), file.getAbsolutePath());
-				fileNo++;
+				songs.add(file);
 			}
 		}
-		writer.optimize();
-		writer.close();
-
-		// additional falcon features
-		PrintWriter pw = new PrintWriter(index.getAbsolutePath() + "/qpruning_features.map");
-		IndexReader reader = IndexReader.open(new SimpleFSDirectory(index));
-		int numSegments = reader.numDocs();
-		long total_hcf = numSegments * hashPerSegment;        // total number of hashes in the collection
-		TermEnum hashes = reader.terms();                     // distinct hashes in the collection
 
-		while (hashes.next()) {
-			if (!hashes.term().field().equals("CONTENT")) {
-				continue;
+		IndexingPipeline pipeline = new IndexingPipeline();
+		pipeline.addStage("parse", workers[0], new IndexingPipeline.Step() {
+			public boolean process(IndexingPipeline.Song song) throws IOException {
+				song.title = song.file.getAbsolutePath();
+				song.chroma = ChromaMatrixUtils.readChromaMatrix(song.file, subsampling, transpEst, minkurtosis);
+				return true;
 			}
-			Term curHash = hashes.term();
-			pw.print(curHash.text() + "\t");
-			pw.print((double) reader.docFreq(curHash) / numSegments + "\t");          // normalized document frequency
-			TermDocs curHash_pl = reader.termDocs(curHash);                           // posting list for the current hash
-			// computation of the frequency of the current hash in the
-			// entire collection -- value initialization
-			long hcf = 0;
-			// initializes the normalized maximum frequency value
-			double nmf = 0;
-			// initializes the normalized frequency for max computation
-			double cur_nf = 0;
-			// processes posting list entries
-			while (curHash_pl.next()) {
-				// computation of the normalized frequency for
-				// the current hash
-				cur_nf = (double) curHash_pl.freq() / hashPerSegment;
-				// update max if necessary
-				if (cur_nf > nmf) {
-					nmf = cur_nf;
+		});
+		pipeline.addStage("hash", workers[1], new IndexingPipeline.Step() {
+			public boolean process(IndexingPipeline.Song song) throws IOException {
+				song.hashes = ChromaMatrixUtils.computeHashes(song.chroma, 1, nranks, transpEst, minkurtosis)[0];
+				song.chroma = null;
+				if (sequences != null) {
+					new HashSequenceFile(song.title, nranks, subsampling, minkurtosis, transpEst,
+									new int[][]{song.hashes}).write(HashSequenceFile.sidecar(sequences, song.file, key));
 				}
-				hcf += curHash_pl.freq();
+				return true;
 			}
-			// prints normalized total collection frequency and
-			// normalized maximum frequency for the current hash
-			pw.print((double) hcf / total_hcf + "\t" + nmf + "\n");
-		}
-		pw.flush();
-		pw.close();
+		});
+		run(pipeline, writer, index, songs, hashPerSegment, hashInOverlap, termEncoding, counts, workers[2], workers[3], verbose);
 		
 		long end_time = System.currentTimeMillis();
-		if(verbose)
+		if(verbose) {
+			pipeline.report("[INDEXING]");
 			System.out.println(String.format("[INDEXING] - elapsed time: %10.3f", (end_time-start_time)/1000.));
+		}
 		
 	}
 
 	/**
-	 * Maps the song in the input file in a set of {@link org.apache.lucene.document.Document}'s and index them.
+	 * Re-builds the index from the hash sequence files written by
+	 * {@link #index(File, File, int, int, int, int, double, TranspositionEstimator, File, boolean)},
+	 * with one worker per stage.
+	 * @throws IndexingException if no hash sequence file matches the parameters
+	 */
+	public static void rebuild(File sequences, File index, int hashPerSegment, int hashInOverlap,
+					int subsampling, int nranks, double minkurtosis,
+					TranspositionEstimator transpEst, boolean verbose) throws IndexingException, IOException {
+		rebuild(sequences, index, hashPerSegment, hashInOverlap, subsampling, nranks, minkurtosis, transpEst,
+						HashTermEncoding.DECIMAL, new int[]{1, 1, 1, 1}, verbose);
+	}
+
+	/**
+	 * Re-builds the index from the hash sequence files written by
+	 * {@link #index(File, File, int, int, int, int, double, TranspositionEstimator, File, boolean)}.
+	 * Only the files computed with the given quantization level, sub-sampling,
+	 * kurtosis threshold and transposition estimator are considered; an
+	 * existing index in the same path is replaced. The songs keep the titles
+	 * they were originally indexed with.
+	 * @param sequences Directory containing the hash sequence files.
+	 * @param index Falcon index.
+	 * @param hashPerSegment Number of hashes per segment.
+	 * @param hashInOverlap Number of overlapping hashes per segment.
+	 * @param encoding Encoding of the hash terms, see {@link HashTermEncoding}.
+	 * @param workers Number of workers of each stage, as for indexing; hashing is not performed.
+	 * @throws IndexingException if no hash sequence file matches the parameters
+	 */
+	public static void rebuild(File sequences, File index, int hashPerSegment, int hashInOverlap,
+					final int subsampling, final int nranks, final double minkurtosis,
+					final TranspositionEstimator transpEst, HashTermEncoding encoding, int[] workers,
+					boolean verbose) throws IndexingException, IOException {
+
+		long start_time = System.currentTimeMillis();
+
+		if (hashPerSegment <= hashInOverlap) {
+            throw new IndexingException("Number of hashes in the overlap cannot be equal to the number of hash per segment");
+        }
+
+		if (workers.length != 4) {
+			throw new IllegalArgumentException("one worker count per stage is required");
+		}
+
+		if (!sequences.isDirectory() || !sequences.canRead()) {
+			throw new IOException("cannot read hash sequence directory");
+		}
+
+		String suffix = "." + HashSequenceFile.key(nranks, subsampling, minkurtosis, transpEst) + HashSequenceFile.EXTENSION;
+		File[] inputfiles = sequences.listFiles();
+		Arrays.sort(inputfiles);
+		List<File> songs = new ArrayList<File>();
+		for (File file : inputfiles) {
+			if (file.getName().endsWith(suffix) && !file.getName().startsWith(".")) {
+				songs.add(file);
+			}
+		}
+
+		IndexWriter writer = openWriter(index, true);
+		IndexingPipeline pipeline = new IndexingPipeline();
+		pipeline.addStage("parse", workers[0], new IndexingPipeline.Step() {
+			public boolean process(IndexingPipeline.Song song) throws IOException {
+				HashSequenceFile sequence = HashSequenceFile.read(song.file);
+				if (!sequence.matches(nranks, subsampling, minkurtosis, transpEst)) {
+					return false;
+				}
+				song.title = sequence.getTitle();
+				song.hashes = sequence.getSequence(0);
+				return true;
+			}
+		});
+		if (run(pipeline, writer, index, songs, hashPerSegment, hashInOverlap, encoding, new HashCounts(),
+						workers[2], workers[3], verbose) == 0) {
+			throw new IndexingException("no hash sequence file matches the hashing parameters");
+		}
+
+		long end_time = System.currentTimeMillis();
+		if(verbose) {
+			pipeline.report("[REBUILDING]");
+			System.out.println(String.format("[REBUILDING] - elapsed time: %10.3f", (end_time-start_time)/1000.));
+		}
+	}
+
+	/**
+	 * Appends the segmentation and writing stages to the pipeline and runs
+	 * the songs through it. Nothing is committed to the index if a song
+	 * fails or if no song reaches the index; otherwise the term encoding
+	 * is recorded in the commit, and the hash statistics of the new segments,
+	 * counted while they are built, are added to counts and written in the
+	 * index folder.
+	 * @param counts hash counts of the segments already in the index
+	 * @return the number of songs written to the index
+	 */
+	private static int run(IndexingPipeline pipeline, final IndexWriter writer, File index, final List<File> songs,
+					final int hashPerSegment, final int hashInOverlap, final HashTermEncoding encoding,
+					HashCounts counts, int segmenters, int writers, final boolean verbose) throws IOException {
+		final AtomicInteger written = new AtomicInteger();
+		// one collector for each segmentation worker, merged at the end
+		final List<HashCounts> collectors = Collections.synchronizedList(new ArrayList<HashCounts>());
+		final ThreadLocal<HashCounts> collector = new ThreadLocal<HashCounts>() {
+			@Override
+			protected HashCounts initialValue() {
+				HashCounts c = new HashCounts();
+				collectors.add(c);
+				return c;
+			}
+		};
+		pipeline.addStage("segment", segmenters, new IndexingPipeline.Step() {
+			public boolean process(IndexingPipeline.Song song) {
+				song.documents = segment(song.hashes, hashPerSegment, hashInOverlap, encoding, collector.get(),
+								song.title, song.title);
+				song.hashes = null;
+				return true;
+			}
+		});
+		pipeline.addStage("write", writers, new IndexingPipeline.Step() {
+			public boolean process(IndexingPipeline.Song song) throws IOException {
+				for (Document doc : song.documents) {
+					writer.addDocument(doc);
+				}
+				int songNo = written.incrementAndGet();
+				if (verbose)
+					System.out.println(String.format("%10.3f%% - indexed %s", songNo * 100. / songs.size(), song.title));
+				return true;
+			}
+		});
+		try {
+			pipeline.run(songs);
+		} catch (IOException | RuntimeException ex) {
+			// nothing of this run is committed to the index
+			writer.rollback();
+			throw ex;
+		} catch (InterruptedException ex) {
+			writer.rollback();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("indexing interrupted");
+		}
+		if (written.get() == 0) {
+			writer.rollback();
+			return 0;
+		}
+		writer.optimize();
+		writer.commit(encoding.userData());
+		writer.close();
+
+		for (HashCounts c : collectors) {
+			counts.merge(c);
+		}
+		// the files for searchers record the version of the index they describe
+		IndexReader reader = IndexReader.open(new SimpleFSDirectory(index, null), true);
+		try {
+			counts.write(new File(index, HashCounts.FILE_NAME));
+			counts.writeQueryPruningFeatures(index, hashPerSegment, encoding, reader.getVersion());
+			SongTable.build(reader).write(new File(index, SongTable.FILE_NAME));
+		} finally {
+			reader.close();
+		}
+		return written.get();
+	}
+
+	/**
+	 * Reads the hash counts stored in the index folder, or counts the
+	 * postings of the index if they are missing or out of date, as for
+	 * indexes built before counts were stored.
+	 */
+	private static HashCounts readCounts(File index, IndexReader reader, HashTermEncoding encoding) throws IOException {
+		File file = new File(index, HashCounts.FILE_NAME);
+		if (file.exists()) {
+			try {
+				HashCounts counts = HashCounts.read(file);
+				if (counts.getSegments() == reader.numDocs()) {
+					return counts;
+				}
+			} catch (IOException ex) {
+				Logger.getLogger(Indexing.class.getName()).log(Level.WARNING, "re-counting hashes of " + index, ex);
+			}
+		}
+		return HashCounts.scan(reader, encoding);
+	}
+
+	/**
+	 * Opens the index for writing, creating it if it does not exist.
+	 * @param create if true, an existing index is replaced
+	 */
+	private static IndexWriter openWriter(File index, boolean create) throws IOException {
+		if (!index.exists()) {
+            index.mkdir();
+        }
+
+		if (!index.canWrite()) {
+            throw new IOException("cannot write to index directory");
+        }
+
+		SimpleFSDirectory indexDir = new SimpleFSDirectory(index, null);
+
+		// initialize Lucene Analyzer and IndexWriter
+		Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_30);
+		IndexWriter writer = new IndexWriter(indexDir, analyzer, create || !IndexReader.indexExists(indexDir), IndexWriter.MaxFieldLength.UNLIMITED);
+		writer.setSimilarity(new HashSimilarity());
+		return writer;
+	}
+
+	/**
+	 * Maps the hash sequence of a song in a set of {@link org.apache.lucene.document.Document}'s.
 	 * Each song is divided in a set of possibly overlapping segments of fixed
 	 * length; in particular "hashPerSegment" is the number of hash in each
 	 * segment. The number of hashes in the overlap is "hashInOverlap".
@@ -262,98 +474,66 @@ public class Indexing {
 	 *       "song2_3" denotes the third segment of the song "song2
 	 * </ul>
 	 * 
-	 * @param writer
-	 *          {@link org.apache.lucene.index.IndexWriter} for the current index
-	 * @param strBuilder
-	 *          {@link java.lang.StringBuilder} where each segment is stored during indexing
-	 * @param file
-	 *          file where the text representation of the song is stored
+	 * @param hashes
+	 *          hash sequence of the song
 	 * @param hashPerSegment
 	 *          number of hashes in each segment
 	 * @param hashInOverlap
 	 *          number of hashes in the overlap among segments
-	 * @throws FileNotFoundException
-	 * @throws IOException
+	 * @param encoding
+	 *          encoding of the hash terms
+	 * @param counts
+	 *          hash counts, updated with the segments of the song
+	 * @return the documents of the segments, in order
 	 */
-	private static void indexSong(IndexWriter writer, InputStream is,
-					int hashPerSegment, int hashInOverlap, String title, String id) throws FileNotFoundException, IOException {
-
-		BufferedReader buffReader = new BufferedReader(new InputStreamReader(is));
-		String content = buffReader.readLine();
-		Scanner scanner = new Scanner(content);
-
-		// number of segments in the current document
-		int hashSegment = 1;
-		// number of hash processed in the current segment
-		int curHashInSegment = 0;
-
-		LinkedList<Integer> hashCache = new LinkedList<Integer>();
+	private static List<Document> segment(int[] hashes, int hashPerSegment, int hashInOverlap,
+					HashTermEncoding encoding, HashCounts counts, String title, String id) {
 
-		StringBuilder strBuilder = new StringBuilder();
+		List<Document> documents = new ArrayList<Document>();
 
-		while (scanner.hasNext()) {
-
-			int curHash = Integer.parseInt(scanner.next());
-			if (curHash == -1) {
-				continue;
+		// hashes of the chroma vectors under the kurtosis threshold are not indexed
+		int length = 0;
+		for (int curHash : hashes) {
+			if (curHash != -1) {
+				length++;
 			}
-
-			strBuilder.append(curHash).append(" ");
-			hashCache.add(curHash);
-
-			curHashInSegment++;
-
-			// number of hash processed and in the buffer equals the number
-			// of hash per segment
-			if (hashPerSegment - curHashInSegment == 0) {
-
-				// create a Lucene Document for the current segment
-				Document doc = new Document();
-				// add the field for the content of the document
-				// this field will be analyzed and indexed, but not store
-				// in its non-parsed form
-				doc.add(new Field("CONTENT", strBuilder.toString(), Field.Store.NO, Field.Index.ANALYZED, Field.TermVector.NO));
-				// add the field for the identifier of the currently processed song
-				doc.add(new Field("TITLE", title, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
-
-				// add the field for the identifier of the current segment
-				doc.add(new Field("ID", id + "_" + hashSegment, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
-
-				// add a filed to store the length of this segment
-				doc.add(new Field("LENGTH", Integer.toString(hashPerSegment), Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
-				writer.addDocument(doc);
-
-				if (strBuilder.length() > 0) {
-					// creates a new string builder for the next segment
-					strBuilder = new StringBuilder();
-
-					if (hashInOverlap == 0) { // if the overlap size is zero
-						// the number of segment already processed for the next
-						// segment is zero
-						curHashInSegment = 0;
-					} else {
-						// if overlap is required, removes from the cache
-						// the segments not in the overlap
-						for (int h = 0; h < hashPerSegment - hashInOverlap; h++) {
-							hashCache.poll();
-						}
-						// fills the buffer with the hashes in the overlap
-						int h = 0;
-						Iterator<Integer> iter = hashCache.iterator();
-						while (iter.hasNext() && h < hashInOverlap) {
-							strBuilder.append(iter.next()).append(" ");
-							h++;
-						}
-						// update the number of hashes currently processed for
-						// the next segment to the number of hashes in the overlap
-						// since they are in common for the two segments
-						curHashInSegment = hashInOverlap;
-					}
+		}
+		int[] indexed = hashes;
+		if (length < hashes.length) {
+			indexed = new int[length];
+			int h = 0;
+			for (int curHash : hashes) {
+				if (curHash != -1) {
+					indexed[h++] = curHash;
 				}
-				// increases the number of segments for the current song
-				hashSegment++;
 			}
 		}
+
+		// consecutive segments share "hashInOverlap" hashes, so each segment
+		// is the previous window shifted by the non overlapping part
+		int hashSegment = 1;
+		for (int start = 0; start + hashPerSegment <= length; start += hashPerSegment - hashInOverlap) {
+
+			// create a Lucene Document for the current segment
+			Document doc = new Document();
+			// add the field for the content of the document
+			// the hashes of the window are indexed as they are, without analysis
+			doc.add(new Field("CONTENT", new HashTokenStream(indexed, start, hashPerSegment, encoding)));
+			counts.addSegment(indexed, start, hashPerSegment);
+			// add the field for the identifier of the currently processed song
+			doc.add(new Field("TITLE", title, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+
+			// add the field for the identifier of the current segment
+			doc.add(new Field("ID", id + "_" + hashSegment, Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+
+			// add a filed to store the length of this segment
+			doc.add(new Field("LENGTH", Integer.toString(hashPerSegment), Field.Store.YES, Field.Index.NOT_ANALYZED_NO_NORMS));
+			documents.add(doc);
+
+			// increases the number of segments for the current song
+			hashSegment++;
+		}
+		return documents;
 	}
 
 	/**
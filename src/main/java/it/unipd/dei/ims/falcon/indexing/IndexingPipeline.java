@@ -0,0 +1,199 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.lucene.document.Document;
+
+/**
+ * Runs songs through a sequence of stages, e.g. parsing, hashing, segmentation
+ * and writing to the index. Each stage has its own pool of workers and takes
+ * songs from a bounded queue, so a slow stage makes the previous ones wait
+ * instead of accumulating songs in memory. The first failure stops the
+ * pipeline: songs still queued are discarded and the failure is rethrown by
+ * {@link #run}.
+ */
+final class IndexingPipeline {
+
+	/** a song moving through the stages; each stage fills the fields needed by the next ones */
+	static final class Song {
+
+		final File file;
+		String title;
+		ChromaMatrix chroma;
+		int[] hashes;
+		List<Document> documents;
+
+		Song(File file) {
+			this.file = file;
+		}
+	}
+
+	/** processing of a song in a stage */
+	interface Step {
+
+		/** @return false if the song must not reach the next stages */
+		boolean process(Song song) throws IOException;
+	}
+
+	private static final Song END = new Song(null);
+
+	private final List<Stage> stages = new ArrayList<Stage>();
+	private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+	/**
+	 * Append a stage to the pipeline.
+	 * @param name name of the stage in the report
+	 * @param workers number of threads processing songs in this stage
+	 */
+	void addStage(String name, int workers, Step step) {
+		if (workers < 1)
+			throw new IllegalArgumentException("at least one worker per stage is required");
+		Stage stage = new Stage(name, workers, step);
+		if (!stages.isEmpty())
+			stages.get(stages.size() - 1).next = stage;
+		stages.add(stage);
+	}
+
+	/**
+	 * Run the files through all the stages; returns when all of them have
+	 * been processed.
+	 * @throws IOException the first failure in any stage, naming the file being processed
+	 */
+	void run(Iterable<File> files) throws IOException, InterruptedException {
+		int threads = 0;
+		for (Stage stage : stages)
+			threads += stage.workers;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (Stage stage : stages)
+			for (int w = 0; w < stage.workers; w++)
+				pool.submit(stage);
+		boolean ended = false;
+		try {
+			BlockingQueue<Song> first = stages.get(0).in;
+			for (File file : files) {
+				if (failure.get() != null)
+					break;
+				first.put(new Song(file));
+			}
+			first.put(END);
+			ended = true;
+		} finally {
+			// workers only stop at the end of the songs, unless interrupted
+			if (ended)
+				pool.shutdown();
+			else
+				pool.shutdownNow();
+			pool.awaitTermination(1000, TimeUnit.DAYS);
+		}
+		IOException ex = failure.get();
+		if (ex != null)
+			throw ex;
+	}
+
+	/** print the throughput of each stage */
+	void report(String prefix) {
+		for (Stage stage : stages) {
+			double busy = stage.nanos.get() / 1e9;
+			System.out.println(String.format("%s %-8s %3d workers %8d songs %10.3fs busy %10.1f songs/s per worker",
+							prefix, stage.name, stage.workers, stage.songs.get(), busy, stage.songs.get() / busy));
+		}
+	}
+
+	private final class Stage implements Runnable {
+
+		final String name;
+		final int workers;
+		final Step step;
+		final BlockingQueue<Song> in;
+		final AtomicInteger running;
+		final AtomicLong songs = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+		Stage next = null;
+
+		Stage(String name, int workers, Step step) {
+			this.name = name;
+			this.workers = workers;
+			this.step = step;
+			this.in = new ArrayBlockingQueue<Song>(workers);
+			this.running = new AtomicInteger(workers);
+		}
+
+		public void run() {
+			boolean interrupted = false;
+			try {
+				work();
+			} catch (InterruptedException ex) {
+				interrupted = true;
+				failure.compareAndSet(null, new InterruptedIOException("indexing interrupted"));
+			} catch (Throwable ex) {
+				failure.compareAndSet(null, new IOException("a worker of stage " + name + " failed", ex));
+			} finally {
+				// the last worker of this stage lets the next one end, whatever made it stop;
+				// after an interruption all the workers are being stopped anyway
+				if (running.decrementAndGet() == 0 && next != null && !interrupted) {
+					try {
+						next.in.put(END);
+					} catch (InterruptedException ex) {
+						failure.compareAndSet(null, new InterruptedIOException("indexing interrupted"));
+					}
+				}
+			}
+		}
+
+		/** process songs until the end of the songs */
+		private void work() throws InterruptedException {
+			while (true) {
+				Song song = in.take();
+				if (song == END) {
+					// let the other workers of this stage see the end too
+					in.put(END);
+					return;
+				}
+				// after a failure songs are only drained, so that no stage waits forever
+				if (failure.get() != null)
+					continue;
+				long start = System.nanoTime();
+				boolean keep;
+				try {
+					keep = step.process(song);
+				} catch (Throwable ex) {
+					// errors too, e.g. running out of memory, must stop the pipeline instead of this worker
+					failure.compareAndSet(null, new IOException("cannot index " + song.file.getAbsolutePath(), ex));
+					continue;
+				}
+				nanos.addAndGet(System.nanoTime() - start);
+				songs.incrementAndGet();
+				if (keep && next != null)
+					next.in.put(song);
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+
+/**
+ * The song of each segment of an index: a table from docID to song ordinal
+ * and the TITLE of each song. Segments of different songs can be interleaved
+ * in the index when they are written by several threads, hence the table has
+ * one entry for each document.
+ * <p>
+ * The table is built from the terms of the "TITLE" field, without loading any
+ * stored document, and is stored in the index folder after indexing, together
+ * with the version of the index it describes, so that opening a large index
+ * does not need to build it again.
+ * <p>
+ * A file starts with the magic bytes "FSNG" and the format version, followed
+ * by the index version, the number of documents, the number of songs, the
+ * titles (as length and UTF-8 bytes) and the song ordinal of each document.
+ * All values are little endian.
+ */
+public final class SongTable {
+
+	/** name of the file in the index folder */
+	public static final String FILE_NAME = "songs.bin";
+
+	private static final byte[] MAGIC = {'F', 'S', 'N', 'G'};
+	private static final int VERSION = 1;
+
+	private final long indexVersion;
+	private final int[] docSongs;
+	private final String[] titles;
+
+	private SongTable(long indexVersion, int[] docSongs, String[] titles) {
+		this.indexVersion = indexVersion;
+		this.docSongs = docSongs;
+		this.titles = titles;
+	}
+
+	/** build the table of an index from the terms of the "TITLE" field */
+	public static SongTable build(IndexReader reader) throws IOException {
+		FieldCache.StringIndex index = FieldCache.DEFAULT.getStringIndex(reader, "TITLE");
+		// ordinal 0 is for documents without title, which the index does not contain
+		String[] titles = Arrays.copyOfRange(index.lookup, 1, index.lookup.length);
+		int[] docSongs = new int[reader.maxDoc()];
+		for (int doc = 0; doc < docSongs.length; doc++)
+			docSongs[doc] = index.order[doc] - 1;
+		return new SongTable(reader.getVersion(), docSongs, titles);
+	}
+
+	/**
+	 * @return the table stored in the index folder if it describes the
+	 *         index open by reader, otherwise the table built from the index
+	 */
+	public static SongTable open(File index, IndexReader reader) throws IOException {
+		File file = new File(index, FILE_NAME);
+		if (file.exists()) {
+			try {
+				SongTable table = read(file);
+				if (table.indexVersion == reader.getVersion() && table.docSongs.length == reader.maxDoc())
+					return table;
+			} catch (IOException ex) {
+				Logger.getLogger(SongTable.class.getName()).log(Level.WARNING, "re-building the song table of " + index, ex);
+			}
+		}
+		return build(reader);
+	}
+
+	/** write the table */
+	public void write(File file) throws IOException {
+		byte[][] encoded = new byte[titles.length][];
+		long size = MAGIC.length + 4 + 8 + 4 + 4 + 4L * docSongs.length;
+		for (int s = 0; s < titles.length; s++) {
+			encoded[s] = titles[s].getBytes(StandardCharsets.UTF_8);
+			size += 4 + encoded[s].length;
+		}
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("song table too large");
+		ByteBuffer buffer = ByteBuffer.allocate((int) size).order(BinaryFiles.ORDER);
+		buffer.put(MAGIC).putInt(VERSION).putLong(indexVersion).putInt(docSongs.length).putInt(titles.length);
+		for (byte[] title : encoded)
+			buffer.putInt(title.length).put(title);
+		buffer.asIntBuffer().put(docSongs);
+		buffer.position(buffer.capacity());
+		buffer.flip();
+		BinaryFiles.writeAtomically(file, buffer);
+	}
+
+	/** read a table written by {@link #write} */
+	public static SongTable read(final File file) throws IOException {
+		return BinaryFiles.decode(BinaryFiles.map(file), MAGIC, VERSION, "song table", file.getPath(), b -> {
+			long indexVersion = b.getLong();
+			int ndocs = b.getInt();
+			int nsongs = b.getInt();
+			if (ndocs < 0 || nsongs < 0)
+				throw new IOException("corrupted song table file: " + file);
+			String[] titles = new String[nsongs];
+			for (int s = 0; s < nsongs; s++) {
+				byte[] title = new byte[b.getInt()];
+				b.get(title);
+				titles[s] = new String(title, StandardCharsets.UTF_8);
+			}
+			if (b.remaining() != 4L * ndocs)
+				throw new IOException("truncated song table file: " + file);
+			int[] docSongs = new int[ndocs];
+			b.asIntBuffer().get(docSongs);
+			return new SongTable(indexVersion, docSongs, titles);
+		});
+	}
+
+	/** @return the ordinal of the song of a document */
+	public int getSong(int doc) {
+		return docSongs[doc];
+	}
+
+	/** @return number of songs */
+	public int getSongCount() {
+		return titles.length;
+	}
+
+	/** @return the TITLE of a song */
+	public String getTitle(int song) {
+		return titles[song];
+	}
+}
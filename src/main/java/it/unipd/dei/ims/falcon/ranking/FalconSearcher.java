@@ -0,0 +1,288 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.HashChannel;
+import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import it.unipd.dei.ims.falcon.indexing.HashSequenceFile;
+import it.unipd.dei.ims.falcon.indexing.HashStatsFile;
+import it.unipd.dei.ims.falcon.indexing.HashTermEncoding;
+import it.unipd.dei.ims.falcon.indexing.SongTable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.SimpleFSDirectory;
+
+/**
+ * Searches an index. A searcher is opened once for an index and keeps
+ * everything the queries share: the index reader, the encoding
+ * of the hash terms, the statistics adopted for query pruning, the song of
+ * each segment and the threads which extract and run the
+ * queries, one for each transposition attempt plus one producing the hashes.
+ * <p>
+ * Any number of queries can be performed concurrently by the same searcher,
+ * and several searchers, on different indexes, can be open in the same
+ * process. A searcher must be closed when no longer needed.
+ */
+public class FalconSearcher implements Closeable {
+
+	private static final AtomicInteger searcherCount = new AtomicInteger();
+
+	private final File index;
+	private final IndexReader reader;
+	private final HashTermEncoding termEncoding;
+	private final HashStatsFile hashFeatures;
+	// number of hashes in a segment of the index
+	private final int segmentLength;
+	// song which contains each segment
+	private final SongTable songs;
+	private final ExecutorService executor;
+	// evaluator of each query thread, reusing its arrays across queries
+	private final ThreadLocal<TermAtATimeEvaluator> evaluators = new ThreadLocal<TermAtATimeEvaluator>() {
+		@Override
+		protected TermAtATimeEvaluator initialValue() {
+			return new TermAtATimeEvaluator(reader, TermAtATimeEvaluator.DEFAULT_CACHE_BYTES);
+		}
+	};
+	private volatile boolean closed = false;
+
+	/**
+	 * Open a searcher on an index.
+	 * @param index folder of the index
+	 * @throws IOException if the index or the hash statistics cannot be read
+	 */
+	public FalconSearcher(File index) throws IOException {
+		this.index = index;
+		reader = IndexReader.open(new SimpleFSDirectory(index), true);
+		try {
+			termEncoding = HashTermEncoding.read(reader);
+			hashFeatures = HashStatsFile.open(index, reader);
+			segmentLength = Integer.parseInt(reader.document(0).getField("LENGTH").stringValue());
+			songs = SongTable.open(index, reader);
+		} catch (IOException | RuntimeException ex) {
+			reader.close();
+			throw ex;
+		}
+		final int id = searcherCount.incrementAndGet();
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger threadCount = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "falcon-searcher-" + id + "-" + threadCount.incrementAndGet());
+				// an unclosed searcher does not keep the process alive
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/** @return the folder of the index */
+	public File getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return false if the index has been changed, e.g. re-indexed, since this
+	 *         searcher was opened
+	 */
+	boolean isCurrent() throws IOException {
+		return reader.isCurrent();
+	}
+
+	/**
+	 * Perform a query.
+	 *
+	 * @param query            input stream containing the chroma matrix in text or binary format
+	 * @param hps              length of a segment
+	 * @param overlap          overlap between segments (# of hashes)
+	 * @param nranks           quantization level
+	 * @param subsampling      retain only one chroma vector out of subsampling
+	 * @param tpe              instance of transposition estimator algorithm (when null, no transposition attempt is performed)
+	 * @param ntransp          number of transposition attempts (iff tpe != null)
+	 * @param minkurt          kurtosis threshold for considering a chroma vector
+	 * @param pruningStrategy  instance of pruning strategy algorithm
+	 * @throws IOException
+	 * @throws QueryParsingException
+	 * @throws InterruptedException
+	 * @return a QueryResults object (contains a map from the document title - typically the mp3 file name - to the similarity score)
+	 */
+	public QueryResults query(final InputStream query, final int hps, final int overlap, final int nranks,
+					final int subsampling, final TranspositionEstimator tpe, int ntransp, final double minkurt,
+					QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
+		// conversion from initial input stream into integer hashes seq.
+		return query(new HashProducer() {
+			public void produce(List<HashChannel> channels) throws IOException {
+				ChromaMatrixUtils.convertChromaStreamIntoHashChannels(query, channels, nranks, tpe, minkurt, subsampling);
+			}
+		}, tpe == null ? 1 : ntransp, hps, overlap, pruningStrategy);
+	}
+
+	/**
+	 * Perform a query from precomputed hash sequences, one for each
+	 * transposition attempt.
+	 *
+	 * @param query            hash sequences of the query; they must have been computed with the same parameters of the index
+	 * @param hps              length of a segment
+	 * @param overlap          overlap between segments (# of hashes)
+	 * @param ntransp          maximum number of transposition attempts (at most one for each sequence)
+	 * @param pruningStrategy  instance of pruning strategy algorithm
+	 * @throws IOException
+	 * @throws QueryParsingException
+	 * @throws InterruptedException
+	 * @return a QueryResults object (contains a map from the document title - typically the mp3 file name - to the similarity score)
+	 */
+	public QueryResults query(final HashSequenceFile query, int hps, int overlap, int ntransp,
+					QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
+		return query(new HashProducer() {
+			public void produce(List<HashChannel> channels) throws IOException {
+				int written = 0;
+				try {
+					for (; written < channels.size(); written++) {
+						channels.get(written).write(query.getSequence(written));
+						channels.get(written).close();
+					}
+				} catch (IOException ex) {
+					for (int i = written; i < channels.size(); i++)
+						channels.get(i).fail(ex);
+					throw ex;
+				}
+			}
+		}, Math.max(1, Math.min(ntransp, query.getSequenceCount())), hps, overlap, pruningStrategy);
+	}
+
+	/** fills the channels, one for each transposition attempt, with the hashes of the query */
+	private interface HashProducer {
+		void produce(List<HashChannel> channels) throws IOException;
+	}
+
+	private QueryResults query(final HashProducer producer, int nchannels, final int hps, final int overlap,
+					QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
+		if (closed)
+			throw new AlreadyClosedException("this searcher is closed");
+
+		final List<HashChannel> channels = new ArrayList<HashChannel>();           // ntransp sequences of integer hashes
+		final List<Map<String, Double>> allTranspRes = Collections.synchronizedList(new LinkedList<Map<String, Double>>());
+		final List<Future<?>> tasks = new ArrayList<Future<?>>();
+
+		final AtomicLong totalConsideredHashes = new AtomicLong(0);
+		final AtomicLong prunedHashes = new AtomicLong(0);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		// enqueue ntransp extractQuery
+		for (int i = 0; i < nchannels; i++) {
+			final HashChannel channel = new HashChannel();
+			channels.add(channel);
+			final QueryParser queryParser = new QueryParser(pruningStrategy);
+			queryParser.setQueryPruningHashFeatures(hashFeatures);
+			queryParser.setDocumentSegmentLength(segmentLength);
+			queryParser.setHashTermEncoding(termEncoding);
+			tasks.add(executor.submit(new Runnable() {
+				public void run() {
+					try {
+						queryParser.extractQuery(channel, hps, overlap);
+						SongScoreCollector collector = new SongScoreCollector(songs, queryParser.getNumberOfSegments());
+						evaluators.get().evaluate(queryParser, collector);
+						allTranspRes.add(collector.getScores());
+						prunedHashes.addAndGet(queryParser.getPrunedHashInQuerySession());
+						totalConsideredHashes.addAndGet(queryParser.getTotalHashInQuerySession());
+					} catch (IOException | QueryParsingException | RuntimeException ex) {
+						failure.compareAndSet(null, ex);
+					} finally {
+						// let the producer fail instead of blocking if this consumer gave up
+						channel.cancel();
+					}
+				}
+			}));
+		}
+
+		// enqueue production of the integer hashes seq. (note that 'channels' must be already constructed)
+		tasks.add(executor.submit(new Runnable() {
+
+			public void run() {
+				try {
+					producer.produce(channels);
+				} catch (IOException | RuntimeException ex) {
+					// also propagated to the consumers through the channels
+					failure.compareAndSet(null, ex);
+				}
+			}
+		}));
+
+		// wait for all to complete and merge results
+		try {
+			for (Future<?> task : tasks)
+				task.get();
+		} catch (InterruptedException ex) {
+			for (HashChannel channel : channels)
+				channel.cancel();
+			for (Future<?> task : tasks)
+				task.cancel(true);
+			throw ex;
+		} catch (ExecutionException ex) {
+			// tasks catch their own failures
+			throw new IOException("query failed", ex.getCause());
+		}
+		Exception ex = failure.get();
+		if (ex instanceof QueryParsingException)
+			throw (QueryParsingException) ex;
+		if (ex instanceof IOException)
+			throw (IOException) ex;
+		if (ex != null)
+			throw new IOException("query failed", ex);
+		Map<String, Double> finalRes = new TreeMap<String, Double>();
+		for (Map<String, Double> singlequeryres : allTranspRes) {
+			for (Entry<String, Double> e : singlequeryres.entrySet()) {
+				if (!finalRes.containsKey(e.getKey()) || e.getValue() > finalRes.get(e.getKey())) {
+					finalRes.put(e.getKey(), e.getValue());
+				}
+			}
+		}
+
+		return new QueryResults(finalRes, prunedHashes.get(), totalConsideredHashes.get());
+	}
+
+	/**
+	 * Stop the query threads and close the index; queries still running may
+	 * fail.
+	 */
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		executor.shutdownNow();
+		reader.close();
+	}
+}
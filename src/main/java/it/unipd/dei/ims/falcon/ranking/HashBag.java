@@ -0,0 +1,112 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Set;
+import org.apache.lucene.index.Term;
+
+/**
+ * The bag of hashes of a segment of a query: the distinct hashes of the
+ * segment and their frequency of occurrence in it. It matches the document
+ * segments containing any of its hashes, and the score of a document segment
+ * is the sum, over the hashes of the bag, of the minimum between the
+ * normalized frequency of the hash in the query segment and in the document
+ * segment.
+ * <p>
+ * The minimum between the normalized frequencies qtf/Q and dtf/D, where Q and
+ * D are the lengths of the query and document segments, is counted as the
+ * integer min(qtf*D, dtf*Q), and the sum of the counts of a document segment
+ * is divided by Q*D once. The bags of the segments of a query are evaluated
+ * together by a {@link TermAtATimeEvaluator}.
+ */
+public final class HashBag {
+
+	private final Term[] terms;
+	private final int[] qtfs;
+	private final int querySegmentLength;
+	private final int documentSegmentLength;
+
+	/**
+	 * Creates a bag of hashes.
+	 *
+	 * @param terms terms of the distinct hashes of the bag
+	 * @param qtfs frequency of occurrence of each hash in the query segment
+	 * @param querySegmentLength number of hash per query segment
+	 * @param documentSegmentLength number of hash per document segment
+	 */
+	public HashBag(Term[] terms, int[] qtfs, int querySegmentLength, int documentSegmentLength) {
+		if (terms.length != qtfs.length)
+			throw new IllegalArgumentException("one frequency is needed for each hash");
+		if (querySegmentLength <= 0 || documentSegmentLength < 0)
+			throw new IllegalArgumentException("invalid segment length");
+		long sum = 0;
+		for (int qtf : qtfs)
+			sum += qtf;
+		// the counts of a document segment add up to sum*D at most
+		if (sum * documentSegmentLength > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("too many hashes in the bag");
+		this.terms = terms;
+		this.qtfs = qtfs;
+		this.querySegmentLength = querySegmentLength;
+		this.documentSegmentLength = documentSegmentLength;
+	}
+
+	/** @return number of distinct hashes in the bag */
+	int size() {
+		return terms.length;
+	}
+
+	/** @return the term of the i-th hash of the bag */
+	Term getTerm(int i) {
+		return terms[i];
+	}
+
+	/**
+	 * @param i hash of the bag
+	 * @param dtf frequency of occurrence of the hash in a document segment
+	 * @return the minimum between the frequencies of the hash in the query
+	 *         segment and in the document segment, scaled by Q*D
+	 */
+	int count(int i, int dtf) {
+		return (int) Math.min((long) qtfs[i] * documentSegmentLength, (long) dtf * querySegmentLength);
+	}
+
+	/** @return the score of a document segment, given the sum of the counts of its hashes */
+	float score(int count) {
+		long norm = (long) querySegmentLength * documentSegmentLength;
+		return norm == 0 ? 0 : (float) ((double) count / norm);
+	}
+
+	/** @param terms set receiving the terms of the hashes of the bag */
+	public void extractTerms(Set<Term> terms) {
+		for (Term term : this.terms)
+			terms.add(term);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder buffer = new StringBuilder();
+		for (int i = 0; i < terms.length; i++) {
+			if (i > 0)
+				buffer.append(" ");
+			buffer.append(terms[i]);
+			buffer.append("[");
+			buffer.append(qtfs[i]);
+			buffer.append("]");
+		}
+		return buffer.toString();
+	}
+}
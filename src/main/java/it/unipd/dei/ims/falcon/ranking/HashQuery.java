@@ -32,7 +32,11 @@ import org.apache.lucene.util.ToStringUtils;
  * A Query that matches segments containing an hash. 
  * This query is a modified version of a {@link org.apache.lucene.search.TermQuery}
  * Different HashQuery's can be combined in a {@link SegmentQuery}.
+ *
+ * @deprecated the hashes of a segment of a query are a {@link HashBag},
+ *             evaluated by a {@link TermAtATimeEvaluator}
  */
+@Deprecated
 public class HashQuery extends Query {
 
 	private static final long serialVersionUID = 1L;
@@ -15,89 +15,104 @@ package it.unipd.dei.ims.falcon.ranking;
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
 import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import it.unipd.dei.ims.falcon.indexing.HashSequenceFile;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.store.SimpleFSDirectory;
 
 // TODO subsampling appears not to work ...
 /**
- * Provides functionalities for performing a query
+ * Provides functionalities for performing a query. A {@link FalconSearcher}
+ * is opened the first time an index is queried and is kept open for the
+ * following queries on the same index, until the index changes or
+ * {@link #closeAll()} is called; applications in control of the lifetime of
+ * the index should use a {@link FalconSearcher} directly.
  * 
  */
 public class QueryMethods {
 
-	// cache which stores for each lucene identifier, namely for each
-	// segment, the TITLE of the song which contains that segment
-	private static Map<Integer, String> docId2songidCache;
+	/** a searcher shared by the queries on an index */
+	private static final class SharedSearcher {
+
+		final FalconSearcher searcher;
+		// queries running on the searcher
+		int users = 0;
+		// if true, the searcher is closed as soon as no query is running on it
+		boolean retired = false;
+
+		SharedSearcher(FalconSearcher searcher) {
+			this.searcher = searcher;
+		}
+	}
+
+	// searchers opened so far, by index folder
+	private static final Map<File, SharedSearcher> searchers = new HashMap<File, SharedSearcher>();
+
+	/** @return the searcher of an index, which must be released once the query is done */
+	private static synchronized SharedSearcher acquire(File index) throws IOException {
+		File key = index.getAbsoluteFile();
+		SharedSearcher shared = searchers.get(key);
+		if (shared != null && !isCurrent(shared.searcher)) {
+			// the index has been re-indexed or rebuilt since the searcher was opened
+			searchers.remove(key);
+			retire(shared);
+			shared = null;
+		}
+		if (shared == null) {
+			shared = new SharedSearcher(new FalconSearcher(index));
+			searchers.put(key, shared);
+		}
+		shared.users++;
+		return shared;
+	}
+
+	private static boolean isCurrent(FalconSearcher searcher) {
+		try {
+			return searcher.isCurrent();
+		} catch (IOException ex) {
+			// e.g. the index has been deleted
+			return false;
+		}
+	}
+
+	private static synchronized void release(SharedSearcher shared) throws IOException {
+		shared.users--;
+		if (shared.retired && shared.users == 0)
+			shared.searcher.close();
+	}
+
+	private static void retire(SharedSearcher shared) throws IOException {
+		shared.retired = true;
+		if (shared.users == 0)
+			shared.searcher.close();
+	}
 
 	/**
-	 * Given a set of documents with multiple scores, retain the max score for
-	 * each document
-	 *
-	 * @param topdocs
-	 *            Lucene TopDocs; documents, namely segments, are ranked by
-	 *            score. The score of a segment is the sum of the score of its
-	 *            constituting hashes, specifically obtained by
-	 *            {@link it.unipd.dei.ims.falcon.ranking.SegmentQuery}
-	 * @param searcher
-	 *            Lucene {@link org.apache.lucene.search.IndexSearcher}
-	 * @return
-	 * @throws IOException
+	 * Close the searchers opened so far; searchers used by running queries
+	 * are closed when these queries are done.
 	 */
-	private static Map<String, Double> reduceMaxScoreForEachSong(TopDocs topdocs, IndexSearcher searcher)
-					throws IOException {
-		if (docId2songidCache == null) {
-			// TODO although this should work, it has not been checked for concurrency issues
-			docId2songidCache = new ConcurrentHashMap<Integer, String>();
-		}
-		Map<String, Double> songid2maxscore = new TreeMap<String, Double>();
-		int r = 1;
-		for (ScoreDoc sd : topdocs.scoreDocs) {
-			String stringId = docId2songidCache.get(sd.doc);
-			if (stringId == null) {
-				stringId = searcher.doc(sd.doc).getField("TITLE").stringValue();
-				docId2songidCache.put(sd.doc, stringId);
+	public static synchronized void closeAll() throws IOException {
+		IOException failure = null;
+		for (SharedSearcher shared : searchers.values()) {
+			try {
+				retire(shared);
+			} catch (IOException ex) {
+				if (failure == null)
+					failure = ex;
 			}
-			if (!songid2maxscore.containsKey(stringId))
-				songid2maxscore.put(stringId, new Double(sd.score));
-			r++;
 		}
-		return songid2maxscore;
+		searchers.clear();
+		if (failure != null)
+			throw failure;
 	}
-	// the following objects are initialized when the first query is performed
-	private static IndexReader reader = null;
-	private static IndexSearcher searcher = null;
 
 	/**
 	 * Perform a query.
 	 *
-	 * @param query            input stream containing the chroma matrix in text format
+	 * @param query            input stream containing the chroma matrix in text or binary format
 	 * @param index            index structure
 	 * @param hps              length of a segment
 	 * @param overlap          overlap between segments (# of hashes)
@@ -112,86 +127,39 @@ public class QueryMethods {
 	 * @throws InterruptedException
 	 * @return a QueryResults object (contains a map from the document title - typically the mp3 file name - to the similarity score)
 	 */
-	public static QueryResults query(final InputStream query, File index, final int hps, final int overlap,
-					final int nranks, final int subsampling, final TranspositionEstimator tpe, int ntransp, final double minkurt,
+	public static QueryResults query(InputStream query, File index, int hps, int overlap,
+					int nranks, int subsampling, TranspositionEstimator tpe, int ntransp, double minkurt,
 					QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
-
-		if (reader == null) {
-			reader = IndexReader.open(new SimpleFSDirectory(index));
+		SharedSearcher shared = acquire(index);
+		try {
+			return shared.searcher.query(query, hps, overlap, nranks, subsampling, tpe, ntransp, minkurt, pruningStrategy);
+		} finally {
+			release(shared);
 		}
-		if (searcher == null) {
-			searcher = new IndexSearcher(reader);
-			searcher.setSimilarity(new HashSimilarity());
-		}
-		ExecutorService tpool = Executors.newCachedThreadPool();
-		final List<OutputStream> os = new LinkedList<OutputStream>();               // ntransp streams of integer hashes
-		final List<Map<String, Double>> allTranspRes = Collections.synchronizedList(new LinkedList<Map<String, Double>>());
-
-		final AtomicLong totalConsideredHashes = new AtomicLong(0);
-		final AtomicLong prunedHashes = new AtomicLong(0);
-
-		// enqueue ntransp extractQuery
-		for (int i = 0; i < (tpe == null ? 1 : ntransp); i++) {
-			PipedOutputStream po1 = new PipedOutputStream();
-			os.add(po1);
-			final QueryParser queryParser = new QueryParser(pruningStrategy);
-			queryParser.loadQueryPruningHashFeatures(index.getPath());
-			queryParser.setDocumentSegmentLength(new Integer(reader.document(0).getField("LENGTH").stringValue()));
-			Map<String, Double> songid2finalscore = new TreeMap<String, Double>();
-			final PipedInputStream pi2 = new PipedInputStream(po1);
-			tpool.submit(new Runnable() {
-				public void run() {
-					try {
-						queryParser.extractQuery(pi2, hps, overlap);
-						Map<String, Double> songid2finalscore = new TreeMap<String, Double>();
-						for (int i = 0; i < queryParser.getNumberOfSegments(); i++) {
-							Query query = queryParser.getQueryFromSegment(i);
-							TopDocs td = searcher.search(query, reader.numDocs());
-							Map<String, Double> songid2maxscore = reduceMaxScoreForEachSong(td, searcher);
-							for (String songid : songid2maxscore.keySet()) {
-								Double currentscore = songid2finalscore.get(songid);
-								if (currentscore == null)
-									currentscore = 1.;
-								currentscore *= Math.pow(songid2maxscore.get(songid), 1. / queryParser.getNumberOfSegments());
-								songid2finalscore.put(songid, currentscore);
-							}
-						}
-						allTranspRes.add(songid2finalscore);
-						prunedHashes.addAndGet(queryParser.getPrunedHashInQuerySession());
-						totalConsideredHashes.addAndGet(queryParser.getTotalHashInQuerySession());
-					} catch (IOException ex) {
-						Logger.getLogger(QueryMethods.class.getName()).log(Level.SEVERE, null, ex);
-					} catch (QueryParsingException ex) {
-						Logger.getLogger(QueryMethods.class.getName()).log(Level.SEVERE, null, ex);
-					}
-				}
-			});
-		}
-
-		// enqueue conversion from initial input stream into integer hashes seq. (note that 'os' must be already constructed)
-		tpool.submit(new Runnable() {
-
-			public void run() {
-				try {
-					ChromaMatrixUtils.convertChromaStreamIntoHashesStream(new InputStreamReader(query), os, nranks, tpe, minkurt, subsampling);
-				} catch (IOException ex) {
-					Logger.getLogger(QueryMethods.class.getName()).log(Level.SEVERE, null, ex);
-				}
-			}
-		});
+	}
 
-		// wait for all to complete and merge results
-		Map<String, Double> finalRes = new TreeMap<String, Double>();
-		tpool.shutdown();
-		tpool.awaitTermination(1000, TimeUnit.DAYS);
-		for (Map<String, Double> singlequeryres : allTranspRes) {
-			for (Entry<String, Double> e : singlequeryres.entrySet()) {
-				if (!finalRes.containsKey(e.getKey()) || e.getValue() > finalRes.get(e.getKey())) {
-					finalRes.put(e.getKey(), e.getValue());
-				}
-			}
+	/**
+	 * Perform a query from precomputed hash sequences, one for each
+	 * transposition attempt.
+	 *
+	 * @param query            hash sequences of the query; they must have been computed with the same parameters of the index
+	 * @param index            index structure
+	 * @param hps              length of a segment
+	 * @param overlap          overlap between segments (# of hashes)
+	 * @param ntransp          maximum number of transposition attempts (at most one for each sequence)
+	 * @param pruningStrategy  instance of pruning strategy algorithm
+	 * @throws IOException
+	 * @throws QueryParsingException
+	 * @throws InterruptedException
+	 * @return a QueryResults object (contains a map from the document title - typically the mp3 file name - to the similarity score)
+	 */
+	public static QueryResults query(HashSequenceFile query, File index, int hps, int overlap,
+					int ntransp, QueryPruningStrategy pruningStrategy) throws IOException, QueryParsingException, InterruptedException {
+		SharedSearcher shared = acquire(index);
+		try {
+			return shared.searcher.query(query, hps, overlap, ntransp, pruningStrategy);
+		} finally {
+			release(shared);
 		}
-
-		return new QueryResults(finalRes, prunedHashes.get(), totalConsideredHashes.get());
 	}
 }
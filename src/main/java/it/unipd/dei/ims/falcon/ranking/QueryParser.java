@@ -17,23 +17,23 @@ package it.unipd.dei.ims.falcon.ranking;
  */
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.HashChannel;
+import it.unipd.dei.ims.falcon.indexing.HashStatsFile;
+import it.unipd.dei.ims.falcon.indexing.HashTermEncoding;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.Query;
+import org.apache.lucene.store.SimpleFSDirectory;
 
 /**
  * Provides functionalities to extract segments for the song in input.
@@ -55,8 +55,8 @@ import org.apache.lucene.search.Query;
  * In order to search the index for the most promising segments matching a
  * specific segment of the query, the method
  * {@link it.unipd.dei.ims.falcon.ranking.QueryParser#getQueryFromSegment(int)}
- * can be adopted to obtain a {@link it.unipd.dei.ims.falcon.ranking.SegmentQuery}
- * which is a logical OR of {@link it.unipd.dei.ims.falcon.ranking.HashQuery}.
+ * can be adopted to obtain the {@link it.unipd.dei.ims.falcon.ranking.HashBag}
+ * of the segment, which matches the segments containing any of its hashes.
  * <p>
  * In order to reduce the computational issue due to the possibly high number
  * of hashes per segment, when building the query for the segment some hashes
@@ -64,9 +64,12 @@ import org.apache.lucene.search.Query;
  * {@link it.unipd.dei.ims.falcon.ranking.QueryPruningStrategy}.
  * The query pruning strategy uses a set of features to discriminate between
  * hashes to prune and hashes to retain. The features are those stored in the
- * file "qpruning_features.map" during the indexing phase (the file is stored 
- * in the index folder). The features are loaded in an {@link java.util.Map} 
- * (hash to features map) by the method
+ * file "qpruning_features.bin" during the indexing phase (the file is stored 
+ * in the index folder). The features are read from a
+ * {@link it.unipd.dei.ims.falcon.indexing.HashStatsFile}, either shared by
+ * the queries on the same index through
+ * {@link it.unipd.dei.ims.falcon.ranking.QueryParser#setQueryPruningHashFeatures(it.unipd.dei.ims.falcon.indexing.HashStatsFile)}
+ * or opened by the method
  * {@link it.unipd.dei.ims.falcon.ranking.QueryParser#loadQueryPruningHashFeatures(java.lang.String) }.
  * <p>
  * Methods {@link it.unipd.dei.ims.falcon.ranking.QueryParser#getTotalHashInQuerySession()}
@@ -77,8 +80,7 @@ import org.apache.lucene.search.Query;
  * instance of {@link it.unipd.dei.ims.falcon.ranking.QueryParser}.
  * <p>
  *
- * @see it.unipd.dei.ims.falcon.ranking.HashQuery
- * @see it.unipd.dei.ims.falcon.ranking.SegmentQuery
+ * @see it.unipd.dei.ims.falcon.ranking.HashBag
  * @see it.unipd.dei.ims.falcon.ranking.QueryPruningStrategy
  * 
  */
@@ -87,23 +89,25 @@ public class QueryParser {
 	// list of bag of features representation for the segments extracted from
 	// the query
 	private List<SegmentBagOfFeatures> querySegments;
-	// map of the feature to describe each hash
-	private Map<Integer, HashStats> hashFeatureMap;
+	// features to describe each hash
+	private HashStatsFile hashFeatures;
 	// strategy adopted to prune hash in each segment of the query
 	private QueryPruningStrategy pruningStrategy;
 	// if true, query pruning is enabled
 	private boolean pruning_enabled;
 	// total number of hashes pruned when during an evaluation session
 	// where the same query parser is used
-	private static long prunedHash;
+	private long prunedHash;
 	// total number of hashes should be used to build a the segments queries
 	// for the queries considered during an evaluation session using the same
 	// query parser
-	private static long totalHash;
+	private long totalHash;
 	// number of hashes which constitute a segment of the query
 	private int querySegmentLength;
 	// number of hashes in a segment of a document in the index
-	private float docsSegmentNorm;
+	private int documentsSegmentLength;
+	// encoding of the hash terms in the index
+	private HashTermEncoding termEncoding = HashTermEncoding.DECIMAL;
 
 	/**
 	 * Creates a query parser with a specific strategy for query pruning 
@@ -199,7 +203,47 @@ public class QueryParser {
 	 * @throws QueryParsingException
 	 */
 	public void extractQuery(InputStream query, int hashPerSegment, int hashInSegmentOverlap) throws QueryParsingException {
+		int[] hashes = new int[1024];
+		int n = 0;
+		try (BufferedReader buffReader = new BufferedReader(new InputStreamReader(query))) {
+			// string containing all hashes for the current song
+			String content = buffReader.readLine();
+			// scanner to extract hash
+			Scanner scanner = new Scanner(content == null ? "" : content);
+			while (scanner.hasNext()) {
+				if (n == hashes.length)
+					hashes = Arrays.copyOf(hashes, 2 * n);
+				hashes[n++] = Integer.parseInt(scanner.next());
+			}
+		} catch (IOException ex) {
+			throw new QueryParsingException("IOException: Error during query extraction", ex);
+		}
+		extractQuery(Arrays.copyOf(hashes, n), hashPerSegment, hashInSegmentOverlap);
+	}
 
+	/**
+	 * Extracts segments from the hash sequence read from a channel and put
+	 * the song in a set of (hash,hash_frequency) items
+	 *
+	 * @param query
+	 *            channel carrying the hashes in the song
+	 * @param hashPerSegment
+	 *            number of hash per segment
+	 * @param hashInSegmentOverlap
+	 *            number of hash in the segment overlap
+	 * @throws QueryParsingException if the producer of the hashes failed
+	 */
+	public void extractQuery(HashChannel query, int hashPerSegment, int hashInSegmentOverlap) throws QueryParsingException {
+		int[] hashes;
+		try {
+			hashes = query.readAll();
+		} catch (IOException ex) {
+			throw new QueryParsingException("IOException: Error during query extraction", ex);
+		}
+		extractQuery(hashes, hashPerSegment, hashInSegmentOverlap);
+	}
+
+	private void extractQuery(int[] hashes, int hashPerSegment, int hashInSegmentOverlap) throws QueryParsingException {
 		// the number of hash in a segment cannot be equal to the number
 		// of hash in the overlap: that will lead to an infinite loop
 		if (hashPerSegment == hashInSegmentOverlap) {
@@ -211,7 +255,6 @@ public class QueryParser {
 
 		querySegments = new ArrayList<SegmentBagOfFeatures>();
 
-		BufferedReader buffReader = null;
 		int cur_hash;
 
 		// cache of hashes adopted to manage segment overlap
@@ -220,121 +263,115 @@ public class QueryParser {
 		// of hash non in the overlap 
 		LinkedList<Integer> localHashPointersAvailable = new LinkedList<Integer>();
 
-		try {
-
-			buffReader = new BufferedReader(new InputStreamReader(query));
-			// string containing all hashes for the current song
-			String content = buffReader.readLine();
-			// scanner to extract hash
-			Scanner scanner = new Scanner(content);
-			// number of segments currently considered for the song being
-			// processed
-			int hashSegment = 0;
-			// number of hash
-			int curHashInSegment = 0;
-			// map from the HASH to the ID of the hash in the currently
-			// considered segment
-			TreeMap<Integer, Integer> hashID_localPointer_map = new TreeMap<Integer, Integer>();
-
-			int[] hash_freq_per_segment = new int[hashPerSegment];
-			// identifier of the hash in the segment
-			int localHashPointer = 0;
-
-			while (scanner.hasNext()) {
-				// current considered hash
-				cur_hash = Integer.parseInt(scanner.next());
-				if (cur_hash == -1) {
-					continue;
-				}
-				// add current hash to the cache
-				hashCache.add(cur_hash);
+		// number of segments currently considered for the song being
+		// processed
+		int hashSegment = 0;
+		// number of hash
+		int curHashInSegment = 0;
+		// map from the HASH to the ID of the hash in the currently
+		// considered segment
+		TreeMap<Integer, Integer> hashID_localPointer_map = new TreeMap<Integer, Integer>();
+
+		int[] hash_freq_per_segment = new int[hashPerSegment];
+		// identifier of the hash in the segment
+		int localHashPointer = 0;
+
+		for (int hash : hashes) {
+			// current considered hash
+			cur_hash = hash;
+			if (cur_hash == -1) {
+				continue;
+			}
+			// add current hash to the cache
+			hashCache.add(cur_hash);
 
-				curHashInSegment++;
-				// update local map for segment hash IDs
-				if (hashID_localPointer_map.containsKey(cur_hash)) {
-					localHashPointer = hashID_localPointer_map.get(cur_hash);
+			curHashInSegment++;
+			// update local map for segment hash IDs
+			if (hashID_localPointer_map.containsKey(cur_hash)) {
+				localHashPointer = hashID_localPointer_map.get(cur_hash);
+			} else {
+				if (localHashPointersAvailable.isEmpty()) {
+					localHashPointer = hashID_localPointer_map.size();
 				} else {
-					if (localHashPointersAvailable.isEmpty()) {
-						localHashPointer = hashID_localPointer_map.size();
-					} else {
-						localHashPointer = localHashPointersAvailable.poll();
-						assert !hashID_localPointer_map.containsValue(localHashPointer);
-					}
-					hashID_localPointer_map.put(cur_hash, localHashPointer);
+					localHashPointer = localHashPointersAvailable.poll();
+					assert !hashID_localPointer_map.containsValue(localHashPointer);
 				}
-				// increment the frequency of occurrence of the current hash
-				hash_freq_per_segment[localHashPointer]++;
-				// if we are at the end of the segment
-				if (hashPerSegment - curHashInSegment == 0) {
-					// add the posting lists for the distinct hashes in the
-					// current segment to the list of posting lists for the
-					// entire song
-					querySegments.add(new SegmentBagOfFeatures(hashID_localPointer_map, hash_freq_per_segment));
-					// store the number of distinct hashes in this segment
-					// segmentLengths.add(hashID_localPointer_map.size());
-					// identifier for the next segment
-					hashSegment++;
-
-					if (hashInSegmentOverlap == 0) {
-						// create a new vector for segment hash frequencies
-						hash_freq_per_segment = new int[hashPerSegment];
-						// create a new set for distinct hashes
-						hashID_localPointer_map = new TreeMap<Integer, Integer>();
-						// init the identifier of the hash for the next segment
-						localHashPointer = 0;
-						// set to zero the number of hash for the next segment
-						curHashInSegment = 0;
-					} else {
-						for (int h = 0; h < hashPerSegment - hashInSegmentOverlap; h++) {
-							int curHashToRemove = hashCache.poll();
-							int curHashLocaID = hashID_localPointer_map.get(curHashToRemove);
-							// decrease the frequency for the current hash
-							// to be removed
-							hash_freq_per_segment[curHashLocaID]--;
-							if (hash_freq_per_segment[curHashLocaID] == 0) {
-								localHashPointersAvailable.add(curHashLocaID);
-								hashID_localPointer_map.remove(curHashToRemove);
-							}
+				hashID_localPointer_map.put(cur_hash, localHashPointer);
+			}
+			// increment the frequency of occurrence of the current hash
+			hash_freq_per_segment[localHashPointer]++;
+			// if we are at the end of the segment
+			if (hashPerSegment - curHashInSegment == 0) {
+				// add the posting lists for the distinct hashes in the
+				// current segment to the list of posting lists for the
+				// entire song
+				querySegments.add(new SegmentBagOfFeatures(hashID_localPointer_map, hash_freq_per_segment));
+				// store the number of distinct hashes in this segment
+				// segmentLengths.add(hashID_localPointer_map.size());
+				// identifier for the next segment
+				hashSegment++;
+
+				if (hashInSegmentOverlap == 0) {
+					// create a new vector for segment hash frequencies
+					hash_freq_per_segment = new int[hashPerSegment];
+					// create a new set for distinct hashes
+					hashID_localPointer_map = new TreeMap<Integer, Integer>();
+					// init the identifier of the hash for the next segment
+					localHashPointer = 0;
+					// set to zero the number of hash for the next segment
+					curHashInSegment = 0;
+				} else {
+					for (int h = 0; h < hashPerSegment - hashInSegmentOverlap; h++) {
+						int curHashToRemove = hashCache.poll();
+						int curHashLocaID = hashID_localPointer_map.get(curHashToRemove);
+						// decrease the frequency for the current hash
+						// to be removed
+						hash_freq_per_segment[curHashLocaID]--;
+						if (hash_freq_per_segment[curHashLocaID] == 0) {
+							localHashPointersAvailable.add(curHashLocaID);
+							hashID_localPointer_map.remove(curHashToRemove);
 						}
-						curHashInSegment = hashInSegmentOverlap;
 					}
+					curHashInSegment = hashInSegmentOverlap;
 				}
 			}
-
-		} catch (IOException ex) {
-			throw new QueryParsingException("IOException: Error during query extraction");
-		} finally {
-			try {
-				buffReader.close();
-			} catch (IOException ex) {
-				Logger.getLogger(QueryParser.class.getName()).log(Level.SEVERE, null, ex);
-			}
 		}
 
 	}
 
 	/**
-	 * Returns a {@link SegmentQuery} from the segment "segmentNumber" 
+	 * Returns the {@link HashBag} of the segment "segmentNumber" 
 	 *
 	 * @param segmentNumber
 	 *            number of the segment of the query song
-	 * @return {@link SegmentQuery} from the segment at the specified segmentNumber
+	 * @return {@link HashBag} of the segment at the specified segmentNumber
 	 */
-	public Query getQueryFromSegment(int segmentNumber) {
+	public HashBag getQueryFromSegment(int segmentNumber) {
 
-		// creates an empty query
-		SegmentQuery query = new SegmentQuery(querySegmentLength);
 		// gets the bag of features representation for the segment with
 		// identifier "segmentNumber"
 		SegmentBagOfFeatures segmentBagOfFeatures = querySegments.get(segmentNumber);
+		// hashes of the query which are not pruned
+		Term[] terms = new Term[segmentBagOfFeatures.getNumberOfDistinctHash()];
+		int[] qtfs = new int[terms.length];
+		int nterms = 0;
 
-		HashStats hashStats;
+		HashStats hashStats = null;
 		int hashFreq;
 
 		for (int hash : segmentBagOfFeatures.getDistinctHashInSegment()) {
 			totalHash++;    // increment total number of hash
 			// get collection statistics for current hash
-			hashStats = this.hashFeatureMap.get(hash);
+			if (pruning_enabled) {
+				int ordinal = hashFeatures.ordinal(hash);
+				if (ordinal < 0) {
+					// the hash does not occur in the index, hence it matches no segment
+					prunedHash++;
+					continue;
+				}
+				hashStats = new HashStats(hashFeatures.getNdf(ordinal),
+								hashFeatures.getNcf(ordinal), hashFeatures.getNmf(ordinal));
+			}
 			// decomment for query length normalization //
 			// segmentLengths.get(segmentNumber)
 			hashFreq = segmentBagOfFeatures.getHashFrequency(hash);
@@ -344,10 +381,12 @@ public class QueryParser {
 				prunedHash++;
 				continue;
 			} else {
-				query.add(new HashQuery(new Term("CONTENT", Integer.toString(hash)), segmentBagOfFeatures.getHashFrequency(hash), querySegmentLength, docsSegmentNorm));
+				terms[nterms] = termEncoding.term(hash);
+				qtfs[nterms++] = hashFreq;
 			}
 		}
-		return query;
+		return new HashBag(Arrays.copyOf(terms, nterms), Arrays.copyOf(qtfs, nterms),
+						querySegmentLength, documentsSegmentLength);
 	}
 
 	/**
@@ -362,28 +401,28 @@ public class QueryParser {
 	 *
 	 * @param indexPath
 	 *              full path to the folder where the index is stored
-	 * @throws FileNotFoundException
+	 * @throws IOException
 	 */
-	public void loadQueryPruningHashFeatures(String indexPath) throws FileNotFoundException {
-		// create the hash-to-features map
-		hashFeatureMap = new TreeMap<Integer, HashStats>();
-
-		Scanner scan = new Scanner(new File(new File(indexPath).getAbsolutePath() + "/qpruning_features.map"));
-
-		while (scan.hasNextLine()) {
-			// each line is an entry of the hashmap
-			Scanner lineScan = new Scanner(scan.nextLine());
-			// the first element in the line is the key
-			int key = Integer.parseInt(lineScan.next());
-			// the remaining entries are the values associated to the above key
-			HashStats hStats = new HashStats(
-							Double.parseDouble(lineScan.next()),
-							Double.parseDouble(lineScan.next()),
-							Double.parseDouble(lineScan.next()));
-			hashFeatureMap.put(key, hStats);
+	public void loadQueryPruningHashFeatures(String indexPath) throws IOException {
+		File index = new File(indexPath);
+		IndexReader reader = IndexReader.open(new SimpleFSDirectory(index), true);
+		try {
+			hashFeatures = HashStatsFile.open(index, reader);
+		} finally {
+			reader.close();
 		}
 	}
 
+	/**
+	 * Sets the hash features adopted for query pruning, which can be shared
+	 * by all the query parsers on the same index
+	 *
+	 * @param hashFeatures    features of the hashes in the index
+	 */
+	public void setQueryPruningHashFeatures(HashStatsFile hashFeatures) {
+		this.hashFeatures = hashFeatures;
+	}
+
 	/**
 	 * Returns the total number of hashes considered in the evaluation session
 	 * 
@@ -416,6 +455,14 @@ public class QueryParser {
 	 * @param documentsSegmentLength    length of document segments
 	 */
 	public void setDocumentSegmentLength(int documentsSegmentLength) {
-		docsSegmentNorm = 1.0f / documentsSegmentLength;
+		this.documentsSegmentLength = documentsSegmentLength;
+	}
+
+	/**
+	 * Sets the encoding of the hash terms, which must be that of the index
+	 * @param termEncoding    encoding of the hash terms in the index
+	 */
+	public void setHashTermEncoding(HashTermEncoding termEncoding) {
+		this.termEncoding = termEncoding;
 	}
 }
@@ -31,4 +31,8 @@ public class QueryParsingException extends Exception {
     public QueryParsingException(final String message) {
         super(message);
     }
+
+    public QueryParsingException(final String message, final Throwable cause) {
+        super(message, cause);
+    }
 }
\ No newline at end of file
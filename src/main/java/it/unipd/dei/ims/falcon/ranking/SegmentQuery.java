@@ -23,7 +23,14 @@ import org.apache.lucene.search.Query;
  * Essentially, a {@link org.apache.lucene.search.BooleanQuery} with a potentially higher number of clauses.
  *
  * @see org.apache.lucene.search.BooleanQuery
+ * @deprecated the segments of a query are {@link HashBag}s, evaluated
+ *             together by a {@link TermAtATimeEvaluator}, which does not
+ *             change the maximum number of clauses of every
+ *             {@link org.apache.lucene.search.BooleanQuery}; a SegmentQuery
+ *             of one {@link HashQuery} for each hash of a bag computes the
+ *             same scores, up to rounding
  */
+@Deprecated
 public class SegmentQuery extends BooleanQuery {
 
     private static final long serialVersionUID = 1L;
@@ -0,0 +1,121 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import it.unipd.dei.ims.falcon.indexing.SongTable;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Scores the songs of the index for a query made of several segments. For
+ * each segment query, the score of a song is the maximum score of its
+ * segments; the final score of a song is the geometric mean, over the query
+ * segments, of these maxima. Songs matching no segment of a query segment do
+ * not contribute to its mean.
+ * <p>
+ * The song of each hit is found in a {@link SongTable}, maxima are kept in
+ * an array indexed by song ordinal and the mean is accumulated as a sum of
+ * logarithms, so that collecting a hit involves no object and no stored
+ * field. An instance is used by one thread at a time.
+ */
+final class SongScoreCollector extends Collector {
+
+	private final SongTable songs;
+	private final int segments;
+	// maximum score of each song in the current query segment, valid if stamp is the current one
+	private final float[] maxScore;
+	private final int[] stamp;
+	// songs matched by the current query segment
+	private final int[] touched;
+	private int ntouched = 0;
+	private int current = 1;
+	// sum over the query segments of the logarithm of the maximum score of each song
+	private final double[] logScore;
+	private final boolean[] matched;
+	private Scorer scorer;
+	private int docBase;
+
+	/**
+	 * @param songs song of each document of the index
+	 * @param segments number of segments of the query
+	 */
+	SongScoreCollector(SongTable songs, int segments) {
+		this.songs = songs;
+		this.segments = segments;
+		int n = songs.getSongCount();
+		maxScore = new float[n];
+		stamp = new int[n];
+		touched = new int[n];
+		logScore = new double[n];
+		matched = new boolean[n];
+	}
+
+	@Override
+	public void setScorer(Scorer scorer) {
+		this.scorer = scorer;
+	}
+
+	@Override
+	public void setNextReader(IndexReader reader, int docBase) {
+		this.docBase = docBase;
+	}
+
+	@Override
+	public boolean acceptsDocsOutOfOrder() {
+		return true;
+	}
+
+	@Override
+	public void collect(int doc) throws IOException {
+		collect(docBase + doc, scorer.score());
+	}
+
+	/** collect a document of the index, given its score */
+	void collect(int doc, float score) {
+		int song = songs.getSong(doc);
+		if (stamp[song] != current) {
+			stamp[song] = current;
+			maxScore[song] = score;
+			touched[ntouched++] = song;
+		} else if (score > maxScore[song]) {
+			maxScore[song] = score;
+		}
+	}
+
+	/** add the maxima of the query segment just searched to the mean */
+	void endSegment() {
+		for (int i = 0; i < ntouched; i++) {
+			int song = touched[i];
+			logScore[song] += Math.log(maxScore[song]);
+			matched[song] = true;
+		}
+		ntouched = 0;
+		current++;
+	}
+
+	/** @return map from the title of each matched song to its score */
+	Map<String, Double> getScores() {
+		Map<String, Double> scores = new TreeMap<String, Double>();
+		for (int song = 0; song < matched.length; song++)
+			if (matched[song])
+				scores.put(songs.getTitle(song), Math.exp(logScore[song] / segments));
+		return scores;
+	}
+}
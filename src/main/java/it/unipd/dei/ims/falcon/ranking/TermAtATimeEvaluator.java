@@ -0,0 +1,223 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+/*
+ * Copyright 2012 University of Padova, Italy
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+
+/**
+ * Evaluates the bags of hashes of all the segments of a query term at a
+ * time. Overlapping segments of a query share most of their hashes, so the
+ * decoded posting list of a hash is kept in a cache for the following
+ * segments using it, instead of being read again for each segment.
+ * <p>
+ * The memory used by the cache is bounded by a number of bytes: when it is
+ * exceeded, the posting lists whose next use is the farthest are dropped,
+ * and read again if needed; lists are dropped as soon as no following
+ * segment uses them.
+ * <p>
+ * The counts of the hashes of the segments of the index are accumulated in
+ * an array indexed by docID and converted to a score by the
+ * {@link HashBag} of the segment. An instance is used by one thread at
+ * a time, and can be reused for any number of queries on the same reader.
+ */
+final class TermAtATimeEvaluator {
+
+	/** default bound of the memory used by the decoded posting lists of a query */
+	static final long DEFAULT_CACHE_BYTES = 32L << 20;
+
+	/** the documents containing a hash, and its frequency in each of them */
+	private static final class Postings {
+
+		final Term term;
+		// segments of the query containing the hash, in increasing order
+		int[] uses = new int[4];
+		int nuses = 0;
+		// position in uses of the next segment to be evaluated
+		int next = 0;
+		// decoded posting list, null if not in the cache
+		int[] docs;
+		int[] freqs;
+		int size;
+
+		Postings(Term term) {
+			this.term = term;
+		}
+
+		void addUse(int segment) {
+			if (nuses == uses.length)
+				uses = Arrays.copyOf(uses, 2 * nuses);
+			uses[nuses++] = segment;
+		}
+
+		/** @return the next segment using the hash, or Integer.MAX_VALUE if none */
+		int nextUse() {
+			return next < nuses ? uses[next] : Integer.MAX_VALUE;
+		}
+
+		long bytes() {
+			return docs == null ? 0 : 8L * docs.length;
+		}
+	}
+
+	private final IndexReader reader;
+	private final long cacheBytes;
+	// count of each document for the segment query being evaluated, valid if stamp is the current one
+	private final int[] counts;
+	private final int[] stamp;
+	// documents matched by the segment query being evaluated
+	private final int[] touched;
+	private int current = 0;
+	private final int[] docsBuffer = new int[128];
+	private final int[] freqsBuffer = new int[128];
+	private long postingsRead = 0;
+
+	/**
+	 * @param reader reader of the index
+	 * @param cacheBytes bound of the memory used by the decoded posting lists of a query
+	 */
+	TermAtATimeEvaluator(IndexReader reader, long cacheBytes) {
+		this.reader = reader;
+		this.cacheBytes = cacheBytes;
+		counts = new int[reader.maxDoc()];
+		stamp = new int[reader.maxDoc()];
+		touched = new int[reader.maxDoc()];
+	}
+
+	/** @return number of posting lists read so far */
+	long getPostingsRead() {
+		return postingsRead;
+	}
+
+	/**
+	 * Evaluate the bags of the segments of a query, in order, feeding the
+	 * score of each matched document to collector and ending each segment.
+	 * @param parser parser which extracted the query
+	 */
+	void evaluate(QueryParser parser, SongScoreCollector collector) throws IOException {
+		HashBag[] bags = new HashBag[parser.getNumberOfSegments()];
+		Postings[][] segments = new Postings[bags.length][];
+		Map<Term, Postings> postings = new HashMap<Term, Postings>();
+		for (int s = 0; s < bags.length; s++) {
+			bags[s] = parser.getQueryFromSegment(s);
+			segments[s] = new Postings[bags[s].size()];
+			for (int h = 0; h < segments[s].length; h++) {
+				Postings p = postings.get(bags[s].getTerm(h));
+				if (p == null) {
+					p = new Postings(bags[s].getTerm(h));
+					postings.put(p.term, p);
+				}
+				p.addUse(s);
+				segments[s][h] = p;
+			}
+		}
+
+		List<Postings> cached = new ArrayList<Postings>();
+		long used = 0;
+		for (int s = 0; s < bags.length; s++) {
+			HashBag bag = bags[s];
+			if (++current == Integer.MAX_VALUE) {
+				Arrays.fill(stamp, 0);
+				current = 1;
+			}
+			int ntouched = 0;
+			for (int h = 0; h < segments[s].length; h++) {
+				Postings p = segments[s][h];
+				if (p.docs == null) {
+					read(p);
+					cached.add(p);
+					used += p.bytes();
+				}
+				for (int i = 0; i < p.size; i++) {
+					int doc = p.docs[i];
+					int count = bag.count(h, p.freqs[i]);
+					if (stamp[doc] != current) {
+						stamp[doc] = current;
+						counts[doc] = count;
+						touched[ntouched++] = doc;
+					} else {
+						counts[doc] += count;
+					}
+				}
+				p.next++;
+				if (p.nextUse() == Integer.MAX_VALUE) {
+					// not needed by the following segments
+					used -= p.bytes();
+					cached.remove(p);
+					release(p);
+				}
+				// the hashes still to be evaluated in this segment are the last to be dropped
+				while (used > cacheBytes && !cached.isEmpty())
+					used -= release(cached.remove(farthest(cached)));
+			}
+			for (int i = 0; i < ntouched; i++)
+				collector.collect(touched[i], bag.score(counts[touched[i]]));
+			collector.endSegment();
+		}
+	}
+
+	/** @return position in cached of the posting list whose next use is the farthest */
+	private static int farthest(List<Postings> cached) {
+		int farthest = 0;
+		for (int i = 1; i < cached.size(); i++)
+			if (cached.get(i).nextUse() > cached.get(farthest).nextUse())
+				farthest = i;
+		return farthest;
+	}
+
+	/** @return the bytes of the dropped posting list */
+	private static long release(Postings p) {
+		long bytes = p.bytes();
+		p.docs = null;
+		p.freqs = null;
+		return bytes;
+	}
+
+	private void read(Postings p) throws IOException {
+		postingsRead++;
+		p.docs = new int[16];
+		p.freqs = new int[16];
+		p.size = 0;
+		TermDocs termDocs = reader.termDocs(p.term);
+		try {
+			int n;
+			while ((n = termDocs.read(docsBuffer, freqsBuffer)) > 0) {
+				if (p.size + n > p.docs.length) {
+					int length = Math.max(2 * p.docs.length, p.size + n);
+					p.docs = Arrays.copyOf(p.docs, length);
+					p.freqs = Arrays.copyOf(p.freqs, length);
+				}
+				System.arraycopy(docsBuffer, 0, p.docs, p.size, n);
+				System.arraycopy(freqsBuffer, 0, p.freqs, p.size, n);
+				p.size += n;
+			}
+		} finally {
+			termDocs.close();
+		}
+		if (p.size < p.docs.length / 2) {
+			// the cache accounts for the whole arrays
+			p.docs = Arrays.copyOf(p.docs, p.size);
+			p.freqs = Arrays.copyOf(p.freqs, p.size);
+		}
+	}
+}
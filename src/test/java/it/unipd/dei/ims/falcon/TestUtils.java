@@ -1,8 +1,20 @@
 package it.unipd.dei.ims.falcon;
 
+import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaMatrixUtils;
 import it.unipd.dei.ims.falcon.analysis.chromafeatures.ChromaVector;
 
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Random;
+import java.util.function.DoubleUnaryOperator;
 
 import static java.util.stream.IntStream.range;
 
@@ -16,4 +28,67 @@ public abstract class TestUtils {
     public static ChromaVector newChromaVector() {
         return new ChromaVector(range(0, 12).mapToDouble(index -> randomDouble()).toArray());
     }
+
+    /**
+     * Writes the chroma files of songs songs in dir, named prefix followed by the song number, each made of frames random chroma vectors.
+     */
+    public static File newChromaDir(final File dir, final String prefix, final int songs, final int frames, final long seed) throws IOException {
+        final Random random = new Random(seed);
+        for (int s = 0; s < songs; s++) {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, prefix + s)))) {
+                for (int f = 0; f < frames; f++) {
+                    final double[] v = new double[12];
+                    for (int i = 0; i < 12; i++)
+                        v[i] = random.nextInt(100) + 1;
+                    ChromaMatrixUtils.writeChromaVector(writer, new ChromaVector(v));
+                }
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * Writes a mono 16 bit little-endian PCM WAV file containing the given signal, sampled at sampleRate.
+     */
+    public static File newWavFile(final float sampleRate, final DoubleUnaryOperator signal, final double seconds) throws IOException {
+        final int frames = (int) (sampleRate * seconds);
+        final byte[] data = new byte[frames * 2];
+        for (int i = 0; i < frames; i++) {
+            final short s = (short) Math.round(signal.applyAsDouble(i / sampleRate) * Short.MAX_VALUE);
+            data[2 * i] = (byte) s;
+            data[2 * i + 1] = (byte) (s >> 8);
+        }
+        return writeWav(new AudioFormat(sampleRate, 16, 1, true, false), data, frames);
+    }
+
+    /**
+     * Writes a 16 bit little-endian PCM WAV file containing a mix of a few sinusoids plus some noise.
+     */
+    public static File newWavFile(final float sampleRate, final int channels, final double seconds) throws IOException {
+        final int frames = (int) (sampleRate * seconds);
+        final byte[] data = new byte[frames * channels * 2];
+        final Random random = new Random(frames);
+        for (int i = 0; i < frames; i++) {
+            final double t = i / sampleRate;
+            for (int c = 0; c < channels; c++) {
+                final double v = 0.3 * Math.sin(2 * Math.PI * 440 * t)
+                        + 0.2 * Math.sin(2 * Math.PI * (659.25 + 100 * c) * t)
+                        + 0.05 * (random.nextDouble() - 0.5);
+                final short s = (short) Math.round(v * Short.MAX_VALUE);
+                final int o = (i * channels + c) * 2;
+                data[o] = (byte) s;
+                data[o + 1] = (byte) (s >> 8);
+            }
+        }
+        return writeWav(new AudioFormat(sampleRate, 16, channels, true, false), data, frames);
+    }
+
+    private static File writeWav(final AudioFormat format, final byte[] data, final int frames) throws IOException {
+        final File file = File.createTempFile("falcon", ".wav");
+        file.deleteOnExit();
+        try (AudioInputStream ais = new AudioInputStream(new ByteArrayInputStream(data), format, frames)) {
+            AudioSystem.write(ais, AudioFileFormat.Type.WAVE, file);
+        }
+        return file;
+    }
 }
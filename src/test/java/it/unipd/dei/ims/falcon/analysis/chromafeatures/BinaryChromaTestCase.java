@@ -0,0 +1,98 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the binary chroma format against the text one.
+ */
+public class BinaryChromaTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** vectors with well separated values, so that rounding to float does not change their ranking */
+    private static ChromaVector[] newMatrix(int frames) {
+        final Random random = new Random(42);
+        final List<Double> values = new ArrayList<>();
+        for (int i = 1; i <= 12; i++)
+            values.add((double) i);
+        final ChromaVector[] matrix = new ChromaVector[frames];
+        for (int f = 0; f < frames; f++) {
+            Collections.shuffle(values, random);
+            final double[] v = new double[12];
+            for (int i = 0; i < 12; i++)
+                v[i] = values.get(i);
+            matrix[f] = new ChromaVector(v);
+        }
+        return matrix;
+    }
+
+    private File writeText(ChromaVector[] matrix) throws Exception {
+        final File text = folder.newFile();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(text))) {
+            for (ChromaVector v : matrix)
+                ChromaMatrixUtils.writeChromaVector(writer, v);
+        }
+        return text;
+    }
+
+    private static int[] hashes(File f) throws Exception {
+        final List<HashChannel> channels = new ArrayList<>();
+        channels.add(new HashChannel());
+        ChromaMatrixUtils.convertChromaStreamIntoHashChannels(new FileInputStream(f), channels, 3, null, -100, 2);
+        return channels.get(0).readAll();
+    }
+
+    @Test
+    public void writerAndMappedReaderAgree() throws Exception {
+        final ChromaVector[] matrix = newMatrix(500);
+        final File binary = folder.newFile();
+        try (BinaryChromaWriter writer = new BinaryChromaWriter(binary, 22050, 1024)) {
+            for (ChromaVector v : matrix)
+                writer.write(v);
+        }
+        assertTrue(BinaryChromaReader.isBinary(binary));
+        final BinaryChromaReader reader = BinaryChromaReader.open(binary);
+        assertEquals(matrix.length, reader.getFrameCount());
+        assertEquals(22050, reader.getSampleRate(), 0);
+        assertEquals(1024, reader.getHopSize());
+        for (int f = 0; f < matrix.length; f++)
+            for (int p = 0; p < 12; p++)
+                assertEquals(matrix[f].getChromaValues()[p], reader.get(f, p), 1e-6);
+    }
+
+    @Test
+    public void formatIsSniffed() throws Exception {
+        final ChromaVector[] matrix = newMatrix(300);
+        final File text = writeText(matrix);
+        final File binary = folder.newFile();
+        ChromaMatrixUtils.convertTextChromaFileIntoBinary(text, binary);
+        assertFalse(BinaryChromaReader.isBinary(text));
+
+        final ChromaVector[] fromText = ChromaMatrixUtils.readChromaFile(text);
+        final ChromaVector[] fromBinary = ChromaMatrixUtils.readChromaFile(binary);
+        assertEquals(matrix.length, fromBinary.length);
+        for (int f = 0; f < matrix.length; f++)
+            assertArrayEquals(fromText[f].getChromaValues(), fromBinary[f].getChromaValues(), 1e-6);
+        assertEquals(150, ChromaMatrixUtils.readChromaFile(binary, 2).length);
+
+        assertArrayEquals(hashes(text), hashes(binary));
+    }
+}
@@ -0,0 +1,59 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that batch extraction writes the same chroma features as the single
+ * file extraction and that up to date outputs are not recomputed.
+ */
+public class ChromaBatchExtractionTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void extractsDirectoryTree() throws Exception {
+        final File input = folder.newFolder("audio");
+        final File output = new File(folder.getRoot(), "chroma");
+        final File a = new File(input, "a.wav");
+        final File b = new File(new File(input, "sub"), "b.wav");
+        b.getParentFile().mkdirs();
+        Files.copy(TestUtils.newWavFile(22050, 1, 5.0).toPath(), a.toPath());
+        Files.copy(TestUtils.newWavFile(11025, 2, 3.0).toPath(), b.toPath());
+
+        ChromaBatchExtraction.extract(input, output, 100, 2, 0, 0, 2, 2, false, false);
+
+        for (String name : new String[]{"a.wav", "sub/b.wav"}) {
+            final File chroma = new File(output, name + ChromaBatchExtraction.CHROMA_EXTENSION);
+            assertTrue(chroma.getPath(), chroma.exists());
+            final ChromaVector[] written = ChromaMatrixUtils.readChromaFile(chroma);
+            final List<ChromaVector> expected;
+            try (AudioReader reader = new AudioReader(new File(input, name))) {
+                expected = ChromaExtraction.getChromaFeatures(reader, 100, 2);
+            }
+            assertEquals(expected.size(), written.length);
+            for (int i = 0; i < written.length; i++)
+                assertArrayEquals(expected.get(i).getChromaValues(), written[i].getChromaValues(), 1e-6);
+        }
+
+        // outputs newer than their input are left untouched
+        final File chroma = new File(output, "a.wav" + ChromaBatchExtraction.CHROMA_EXTENSION);
+        assertTrue(chroma.setLastModified(a.lastModified() + 10000));
+        Files.write(chroma.toPath(), new byte[0]);
+        assertTrue(chroma.setLastModified(a.lastModified() + 10000));
+        ChromaBatchExtraction.extract(input, output, 100, 2, 0, 0, 1, 1, false, false);
+        assertEquals(0, chroma.length());
+    }
+}
@@ -0,0 +1,72 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Compares throughput and output of the FFT and sliding DFT chroma engines.
+ * <p>
+ * Usage: ChromaEngineBenchmark [wav file] [window length in ms]
+ * <p>
+ * Without arguments a synthetic 60s recording at 44.1kHz is used.
+ */
+public class ChromaEngineBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final File wav = args.length > 0 ? new File(args[0]) : TestUtils.newWavFile(44100, 1, 60.0);
+        final double winLenInMs = args.length > 1 ? Double.parseDouble(args[1]) : 93;
+        final double seconds;
+        try (AudioReader reader = new AudioReader(wav)) {
+            seconds = count(reader) / reader.getSampleRate();
+        }
+
+        System.out.println(String.format("%-12s %5s %8s %12s %12s", "engine", "hop", "frames", "audio s/s", "mean cos"));
+        for (int hopsizeRatio : new int[]{2, 4, 8, 16}) {
+            final List<ChromaVector> fft = run(wav, winLenInMs, hopsizeRatio, ChromaExtraction.Engine.FFT, seconds, null);
+            run(wav, winLenInMs, hopsizeRatio, ChromaExtraction.Engine.SLIDING_DFT, seconds, fft);
+        }
+    }
+
+    private static List<ChromaVector> run(File wav, double winLenInMs, int hopsizeRatio, ChromaExtraction.Engine engine,
+                                          double seconds, List<ChromaVector> reference) throws Exception {
+        List<ChromaVector> chromas = null;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            final long start = System.nanoTime();
+            try (AudioReader reader = new AudioReader(wav)) {
+                chromas = ChromaExtraction.getChromaFeatures(reader, winLenInMs, hopsizeRatio, engine);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%-12s %5d %8d %12.1f %12s", engine, hopsizeRatio, chromas.size(),
+                seconds / (best / 1e9), reference == null ? "-" : String.format("%.4f", meanCosine(reference, chromas))));
+        return chromas;
+    }
+
+    /** chroma vectors are already normalized, so the cosine is just the dot product */
+    private static double meanCosine(List<ChromaVector> a, List<ChromaVector> b) {
+        double sum = 0;
+        for (int i = 0; i < a.size(); i++) {
+            final double[] x = a.get(i).getChromaValues();
+            final double[] y = b.get(i).getChromaValues();
+            for (int j = 0; j < 12; j++)
+                sum += x[j] * y[j];
+        }
+        return sum / a.size();
+    }
+
+    private static long count(AudioReader reader) throws IOException {
+        final double[] buffer = new double[1 << 16];
+        long n = 0;
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) > 0)
+            n += read;
+        return n;
+    }
+}
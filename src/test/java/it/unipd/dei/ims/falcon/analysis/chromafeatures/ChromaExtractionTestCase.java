@@ -1,12 +1,17 @@
 package it.unipd.dei.ims.falcon.analysis.chromafeatures;
 
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ChromaExtractionTestCase {
     private ChromaExtraction chromaExtraction;
@@ -25,4 +30,24 @@ public class ChromaExtractionTestCase {
 
         expected.forEach( (k,v) -> assertEquals(v, ChromaExtraction.octave(k), 0.0d));
     }
+
+    @Test
+    public void slidingDftEngineAgreesWithFft() throws Exception {
+        final File wav = TestUtils.newWavFile(22050, 1, 5.0);
+        final List<ChromaVector> fft = extract(wav, ChromaExtraction.Engine.FFT);
+        final List<ChromaVector> sdft = extract(wav, ChromaExtraction.Engine.SLIDING_DFT);
+        assertEquals(fft.size(), sdft.size());
+        for (int i = 0; i < fft.size(); i++) {
+            double cosine = 0;
+            for (int j = 0; j < 12; j++)
+                cosine += fft.get(i).getChromaValues()[j] * sdft.get(i).getChromaValues()[j];
+            assertTrue("frame " + i + ": " + cosine, cosine > 0.98);
+        }
+    }
+
+    private static List<ChromaVector> extract(final File wav, final ChromaExtraction.Engine engine) throws Exception {
+        try (AudioReader reader = new AudioReader(wav)) {
+            return ChromaExtraction.getChromaFeatures(reader, 100, 4, engine);
+        }
+    }
 }
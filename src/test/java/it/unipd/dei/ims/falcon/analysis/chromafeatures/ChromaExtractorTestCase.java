@@ -0,0 +1,111 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ChromaExtractorTestCase {
+
+    @Test
+    public void reusedExtractorGivesSameFeatures() throws Exception {
+        final File wav = TestUtils.newWavFile(8000, 1, 2.0);
+        final ChromaExtractor extractor = new ChromaExtractor(8000, 100, 2);
+        final List<ChromaVector> first = extract(extractor, wav);
+        final List<ChromaVector> second = extract(extractor, wav);
+        final List<ChromaVector> fresh = extract(new ChromaExtractor(8000, 100, 2), wav);
+
+        assertEquals(2 * 8000 / (extractor.getHopSize()) - 1, first.size());
+        assertEquals(first.size(), second.size());
+        assertEquals(first.size(), fresh.size());
+        for (int i = 0; i < first.size(); i++) {
+            assertArrayEquals(first.get(i).getChromaValues(), second.get(i).getChromaValues(), 0.0d);
+            assertArrayEquals(first.get(i).getChromaValues(), fresh.get(i).getChromaValues(), 0.0d);
+        }
+    }
+
+    @Test
+    public void listenerReceivesFramesInOrder() throws Exception {
+        final File wav = TestUtils.newWavFile(8000, 1, 2.0);
+        final List<ChromaVector> expected = extract(new ChromaExtractor(8000, 100, 2), wav);
+        final List<ChromaVector> streamed = new ArrayList<>();
+        final int frames;
+        try (AudioReader reader = new AudioReader(wav)) {
+            frames = ChromaExtraction.extractChromaFeatures(reader, 100, 2, (frame, chroma) -> {
+                assertEquals(streamed.size(), frame);
+                streamed.add(chroma);
+            });
+        }
+        assertEquals(expected.size(), frames);
+        assertEquals(expected.size(), streamed.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertArrayEquals(expected.get(i).getChromaValues(), streamed.get(i).getChromaValues(), 0.0d);
+    }
+
+    @Test
+    public void silentFramesAreGated() throws Exception {
+        // 1s of silence followed by 1s of tone
+        final File wav = TestUtils.newWavFile(8000, t -> t < 1 ? 0 : 0.5 * Math.sin(2 * Math.PI * 440 * t), 2.0);
+        final ChromaExtractor extractor = new ChromaExtractor(8000, 100, 2, 1e-3);
+        final List<Integer> frames = new ArrayList<>();
+        final int total;
+        try (AudioReader reader = new AudioReader(wav)) {
+            total = extractor.extractChromaFeatures(reader, (frame, chroma) -> frames.add(frame));
+        }
+        assertEquals(30, total);
+        assertEquals(total, frames.size() + extractor.getGatedFrames());
+        // the first frames only contain silence
+        assertEquals(14, extractor.getGatedFrames());
+        assertEquals(14, (int) frames.get(0));
+    }
+
+    @Test
+    public void extractorIsCachedPerParameters() {
+        final ChromaExtractor a = ChromaExtraction.extractor(8000, 100, 2);
+        assertSame(a, ChromaExtraction.extractor(8000, 100, 2));
+        assertNotSame(a, ChromaExtraction.extractor(8000, 100, 3));
+    }
+
+    @Test
+    public void parallelExtractionIsBitIdentical() throws Exception {
+        final File wav = TestUtils.newWavFile(8000, 1, 40.0);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int hopsizeRatio : new int[]{1, 2, 3}) {
+                final List<ChromaVector> sequential;
+                try (AudioReader reader = new AudioReader(wav)) {
+                    sequential = ChromaExtraction.getChromaFeatures(reader, 100, hopsizeRatio);
+                }
+                final List<ChromaVector> parallel;
+                try (AudioReader reader = new AudioReader(wav)) {
+                    parallel = ChromaExtraction.getChromaFeatures(reader, 100, hopsizeRatio, pool);
+                }
+                assertEquals(sequential.size(), parallel.size());
+                for (int i = 0; i < sequential.size(); i++)
+                    assertArrayEquals(sequential.get(i).getChromaValues(), parallel.get(i).getChromaValues(), 0.0d);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sampleRateMismatch() throws Exception {
+        extract(new ChromaExtractor(44100, 100, 2), TestUtils.newWavFile(8000, 1, 0.5));
+    }
+
+    private static List<ChromaVector> extract(final ChromaExtractor extractor, final File wav) throws Exception {
+        try (AudioReader reader = new AudioReader(wav)) {
+            return extractor.getChromaFeatures(reader);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.analysis.transposition.TranspositionEstimator;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that batch operations on a chroma matrix give the same results as
+ * the corresponding operations on each chroma vector.
+ */
+public class ChromaMatrixTestCase {
+
+    private static double[] randomValues() {
+        final double[] values = new double[12];
+        for (int i = 0; i < 12; i++)
+            values[i] = TestUtils.randomDouble();
+        return values;
+    }
+
+    @Test
+    public void addNormalizesAsChromaVector() {
+        final ChromaMatrix matrix = new ChromaMatrix(1);
+        for (int f = 0; f < 100; f++) {
+            final double[] values = randomValues();
+            matrix.add(values, 0);
+            final ChromaVector v = new ChromaVector(values);
+            assertEquals(v.getKurtosis(), matrix.getKurtosis(f), 0);
+            assertEquals(v.getEnergy(), matrix.getEnergy(f), 0);
+            for (int i = 0; i < 12; i++)
+                assertEquals((float) v.getChromaValues()[i], matrix.get(f, i), 0);
+        }
+        assertEquals(100, matrix.size());
+    }
+
+    @Test
+    public void rotationAndHashesMatchChromaVectors() {
+        final ChromaVector[] vectors = new ChromaVector[200];
+        for (int f = 0; f < vectors.length; f++)
+            vectors[f] = new ChromaVector(ChromaMatrixTestCase.randomValues());
+        final ChromaMatrix matrix = new ChromaMatrix(vectors);
+        final double minKurtosis = vectors[0].getKurtosis();
+        for (int transp : new int[]{0, 5, -3, 11}) {
+            matrix.rotate(transp);
+            for (ChromaVector v : vectors)
+                v.rotate(transp);
+            final int[] hashes = matrix.rankRepresentations(3, minKurtosis);
+            for (int f = 0; f < vectors.length; f++) {
+                final ChromaVector v = vectors[f];
+                assertEquals(v.getKurtosis() >= minKurtosis ? ChromaVector.rankRepresentation(toFloat(v), 0, 3) : -1, hashes[f]);
+                for (int i = 0; i < 12; i++)
+                    assertEquals((float) v.getChromaValues()[i], matrix.get(f, i), 0);
+            }
+        }
+        assertArrayEquals(TranspositionEstimator.getProfile(vectors), TranspositionEstimator.getProfile(matrix), 1e-5f);
+    }
+
+    @Test
+    public void rotatedHashesMatchPhysicalRotation() {
+        // few distinct values, so that ties (including zeros) are frequent
+        final Random random = new Random(3);
+        final ChromaMatrix matrix = new ChromaMatrix();
+        final double[] values = new double[12];
+        for (int f = 0; f < 2000; f++) {
+            for (int i = 0; i < 12; i++)
+                values[i] = random.nextInt(4);
+            values[random.nextInt(12)] = 1 + random.nextInt(3);
+            matrix.add(values, 0);
+        }
+        final int[] rotations = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, -5, 17};
+        for (int k = 1; k <= 7; k++) {
+            final double minKurtosis = k == 3 ? matrix.getKurtosis(0) : Double.NEGATIVE_INFINITY;
+            final int[][] hashes = matrix.rankRepresentations(k, minKurtosis, rotations);
+            for (int r = 0; r < rotations.length; r++) {
+                matrix.rotate(rotations[r]);
+                assertArrayEquals("k " + k + " rotation " + rotations[r], matrix.rankRepresentations(k, minKurtosis), hashes[r]);
+                matrix.rotate(-rotations[r]);
+            }
+        }
+    }
+
+    private static float[] toFloat(ChromaVector v) {
+        final float[] values = new float[12];
+        for (int i = 0; i < 12; i++)
+            values[i] = (float) v.getChromaValues()[i];
+        return values;
+    }
+}
@@ -0,0 +1,59 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Compares throughput of the string based and the byte level chroma text
+ * parsers.
+ * <p>
+ * Usage: ChromaTextParserBenchmark [chroma file]
+ * <p>
+ * Without arguments a synthetic file of 200000 frames is used.
+ */
+public class ChromaTextParserBenchmark {
+
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final File chroma = args.length > 0 ? new File(args[0]) : newChromaFile(200000);
+
+        System.out.println(String.format("%-8s %5s %8s %12s %12s", "parser", "sub", "frames", "MB/s", "frames/s"));
+        for (int subsampling : new int[]{1, 2, 4}) {
+            run(chroma, subsampling, false);
+            run(chroma, subsampling, true);
+        }
+    }
+
+    private static void run(File chroma, int subsampling, boolean bytes) throws Exception {
+        int frames = 0;
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            final long start = System.nanoTime();
+            if (bytes)
+                frames = ChromaTextParser.parse(chroma, subsampling, Double.NEGATIVE_INFINITY).getFrameCount();
+            else
+                frames = ChromaMatrixUtils.readChromaMatrixFromStream(new InputStreamReader(new FileInputStream(chroma)), subsampling).length;
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        final double seconds = best / 1e9;
+        System.out.println(String.format("%-8s %5d %8d %12.1f %12.0f", bytes ? "bytes" : "string", subsampling, frames,
+                chroma.length() / 1e6 / seconds, frames / seconds));
+    }
+
+    private static File newChromaFile(int frames) throws Exception {
+        final File chroma = File.createTempFile("falcon", ".chroma");
+        chroma.deleteOnExit();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(chroma))) {
+            for (int i = 0; i < frames; i++)
+                ChromaMatrixUtils.writeChromaVector(writer, TestUtils.newChromaVector());
+        }
+        return chroma;
+    }
+}
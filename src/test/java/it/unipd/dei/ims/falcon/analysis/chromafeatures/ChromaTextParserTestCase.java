@@ -0,0 +1,123 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the byte level parser accepts the same input as the string
+ * based one and decodes the same values.
+ */
+public class ChromaTextParserTestCase {
+
+    private static String line(String... values) {
+        return String.join(",", values);
+    }
+
+    private static String[] twelve(String value) {
+        final String[] values = new String[12];
+        for (int i = 0; i < 12; i++)
+            values[i] = i == 3 ? "1" : value;
+        return values;
+    }
+
+    private static void assertSameAsStringParser(String text, int subsampling) throws Exception {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        final ChromaVector[] expected = ChromaMatrixUtils.readChromaMatrixFromStream(
+                new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.UTF_8), subsampling);
+        final ChromaTextParser parser = new ChromaTextParser(subsampling, Double.NEGATIVE_INFINITY);
+        parser.parse(ByteBuffer.wrap(bytes));
+        final ChromaVector[] actual = parser.toChromaVectors();
+        assertEquals(text, expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++)
+            assertArrayEquals(expected[i].getChromaValues(), actual[i].getChromaValues(), 0);
+    }
+
+    @Test
+    public void acceptsSameLines() throws Exception {
+        final StringBuilder text = new StringBuilder();
+        final String[] terminators = {"\n", "\r", "\r\n"};
+        final String[] lines = {
+                line(twelve("0.5")),
+                line(twelve("0.5")) + ",",                 // trailing empty values do not count
+                line(twelve("0.5")) + ",,,",
+                line(twelve("0.5")) + ",0.5",              // 13 values
+                line(twelve(" 0.25 ")),                    // surrounding whitespace
+                line(twelve("+.5")),
+                line(twelve("5.")),
+                line(twelve("1e-3")),
+                line(twelve("-0")),
+                line(twelve("2E+2")),
+                line(twelve("0.000000000000000000000000000012345")),
+                line(twelve("123456789012345678901234567890")),
+                line(twelve("1d")),
+                line(twelve("0x1.8p1")),
+                line(twelve("0.1f")),
+                "",
+                "0.1,0.2",
+                ",,,,,,,,,,,",
+        };
+        for (int i = 0; i < 300; i++)
+            text.append(lines[i % lines.length]).append(terminators[i % terminators.length]);
+        text.append(line(twelve("0.75")));                // no terminator on the last line
+        for (int subsampling = 1; subsampling <= 4; subsampling++)
+            assertSameAsStringParser(text.toString(), subsampling);
+    }
+
+    @Test
+    public void decodesSameValues() {
+        final Random random = new Random(7);
+        for (int i = 0; i < 100000; i++) {
+            final double d = i % 2 == 0 ? TestUtils.randomDouble() : random.nextDouble() * Math.pow(10, random.nextInt(40) - 20);
+            for (String s : new String[]{Double.toString(d), Float.toString((float) d), String.format("%.6f", d), String.format("%.17e", d)}) {
+                final ByteBuffer buffer = ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII));
+                assertEquals(s, Double.parseDouble(s), ChromaTextParser.parseDouble(buffer, 0, buffer.limit()), 0);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsSameValues() throws Exception {
+        for (String bad : new String[]{"", " ", ".", "-", "1e", "1.2.3", "0,5x", "e5"}) {
+            final String text = line(twelve("0.5")).replaceFirst("0\\.5", bad.replace(",", "")) + "\n";
+            boolean stringParserFails = false;
+            try {
+                ChromaMatrixUtils.readChromaMatrixFromStream(new InputStreamReader(
+                        new ByteArrayInputStream(text.getBytes(StandardCharsets.US_ASCII))), 1);
+            } catch (NumberFormatException ex) {
+                stringParserFails = true;
+            }
+            try {
+                new ChromaTextParser(1, Double.NEGATIVE_INFINITY).parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+                if (stringParserFails)
+                    fail("accepted " + bad);
+            } catch (NumberFormatException ex) {
+                if (!stringParserFails)
+                    fail("rejected " + bad);
+            }
+        }
+    }
+
+    @Test
+    public void dropsZeroAndLowKurtosisVectors() {
+        final String flat = line("1", "2", "1", "2", "1", "2", "1", "2", "1", "2", "1", "2");
+        final String peaked = line(twelve("0"));
+        final String text = flat + "\n" + line(twelve("0")).replace("1", "0") + "\n" + peaked + "\n";
+        final ChromaTextParser all = new ChromaTextParser(1, Double.NEGATIVE_INFINITY);
+        all.parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(2, all.getFrameCount());
+        final ChromaTextParser filtered = new ChromaTextParser(1, 3);
+        filtered.parse(ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(1, filtered.getFrameCount());
+        assertEquals(new ChromaVector(filtered.getFrames(), 0).getKurtosis(), new ChromaVector(all.getFrames(), 12).getKurtosis(), 0);
+    }
+}
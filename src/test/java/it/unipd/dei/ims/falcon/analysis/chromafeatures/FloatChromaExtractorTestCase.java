@@ -0,0 +1,57 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.audio.AudioReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the single precision pipeline produces the same hashes as the
+ * double precision one, up to an agreed mismatch rate.
+ */
+public class FloatChromaExtractorTestCase {
+
+    /** maximum fraction of frames whose hash may differ from the double path */
+    private static final double MAX_HASH_MISMATCH_RATE = 0.01;
+
+    @Test
+    public void hashesMatchDoublePath() throws Exception {
+        final File wav = TestUtils.newWavFile(22050, 2, 20.0);
+        final List<ChromaVector> reference;
+        try (AudioReader reader = new AudioReader(wav)) {
+            reference = ChromaExtraction.getChromaFeatures(reader, 100, 2);
+        }
+        final ChromaMatrix matrix;
+        try (AudioReader reader = new AudioReader(wav)) {
+            matrix = ChromaExtraction.getChromaMatrix(reader, 100, 2, ChromaExtraction.Engine.FFT_FLOAT);
+        }
+        assertEquals(reference.size(), matrix.size());
+
+        for (int nranks = 1; nranks <= 4; nranks++) {
+            int mismatches = 0;
+            for (int i = 0; i < reference.size(); i++)
+                if (reference.get(i).rankRepresentation(nranks) != matrix.rankRepresentation(i, nranks))
+                    mismatches++;
+            final double rate = (double) mismatches / reference.size();
+            assertTrue("nranks " + nranks + ": mismatch rate " + rate, rate <= MAX_HASH_MISMATCH_RATE);
+        }
+    }
+
+    @Test
+    public void floatRankRepresentationMatchesChromaVector() {
+        for (int i = 0; i < 1000; i++) {
+            final float[] values = new float[14];
+            for (int j = 0; j < 12; j++)
+                values[j + 2] = (float) TestUtils.randomDouble();
+            final ChromaVector v = new ChromaVector(Arrays.copyOfRange(values, 2, 14));
+            for (int k = 1; k <= 7; k++)
+                assertEquals(v.rankRepresentation(k), ChromaVector.rankRepresentation(values, 2, k));
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package it.unipd.dei.ims.falcon.analysis.chromafeatures;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks end of stream and error propagation of the hash channel in both
+ * directions.
+ */
+public class HashChannelTestCase {
+
+    @Test(timeout = 10000)
+    public void blocksArriveInOrder() throws Exception {
+        final HashChannel channel = new HashChannel(2);
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        pool.submit(() -> {
+            for (int i = 0; i < 100; i++)
+                channel.write(new int[]{2 * i, 2 * i + 1});
+            channel.close();
+            return null;
+        });
+        final int[] all = channel.readAll();
+        assertEquals(200, all.length);
+        for (int i = 0; i < all.length; i++)
+            assertEquals(i, all[i]);
+        assertNull(channel.readBlock());
+        pool.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void producerFailureFailsConsumer() throws Exception {
+        final HashChannel channel = new HashChannel();
+        final IOException cause = new IOException("bad chroma file");
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        pool.submit(() -> {
+            channel.write(new int[]{1, 2, 3});
+            Thread.sleep(100);
+            channel.fail(cause);
+            return null;
+        });
+        assertArrayEquals(new int[]{1, 2, 3}, channel.readBlock());
+        try {
+            channel.readBlock();
+            fail("failure not propagated");
+        } catch (IOException ex) {
+            assertSame(cause, ex.getCause());
+        }
+        pool.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void cancelledConsumerUnblocksProducer() throws Exception {
+        final HashChannel channel = new HashChannel(1);
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final Future<?> producer = pool.submit(() -> {
+            for (int i = 0; ; i++)
+                channel.write(new int[]{i});
+        });
+        channel.readBlock();
+        channel.cancel();
+        try {
+            producer.get(5, TimeUnit.SECONDS);
+            fail("producer not failed");
+        } catch (ExecutionException ex) {
+            assertEquals(IOException.class, ex.getCause().getClass());
+        }
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,106 @@
+package it.unipd.dei.ims.falcon.audio;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class AudioReaderTestCase {
+
+    @Test
+    public void readFillsCallerBuffer() throws Exception {
+        final File wav = TestUtils.newWavFile(8000, 1, 1.0);
+        final double[] expected;
+        try (AudioReader reader = new AudioReader(wav)) {
+            expected = reader.readDoubleSamples(8000);
+        }
+        assertEquals(8000, expected.length);
+
+        final double[] actual = new double[8000 + 10];
+        try (AudioReader reader = new AudioReader(wav)) {
+            int off = 10;
+            int read;
+            while ((read = reader.read(actual, off, Math.min(333, actual.length - off))) > 0)
+                off += read;
+            assertEquals(actual.length, off);
+            assertEquals(-1, reader.read(actual, 0, 1));
+        }
+        final double[] shifted = new double[8000];
+        System.arraycopy(actual, 10, shifted, 0, shifted.length);
+        assertArrayEquals(expected, shifted, 0.0d);
+    }
+
+    @Test
+    public void mappedWavMatchesJavaSound() throws Exception {
+        assertSameSamples(TestUtils.newWavFile(11025, 1, 0.5), 0.0d);
+        // javax.sound re-quantizes the down-mixed signal to 16 bits
+        assertSameSamples(TestUtils.newWavFile(11025, 2, 0.5), 1 / 32768.0);
+    }
+
+    private static void assertSameSamples(final File wav, final double delta) throws Exception {
+        final double[] expected = new double[6000];
+        final double[] actual = new double[6000];
+        final int n;
+        try (SampleSource javaSound = new JavaSoundSampleSource(wav);
+             SampleSource mapped = MappedWavSampleSource.open(wav)) {
+            assertNotNull(mapped);
+            assertEquals(javaSound.getSampleRate(), mapped.getSampleRate(), 0.0f);
+            n = javaSound.read(expected, 0, expected.length);
+            assertEquals(n, mapped.read(actual, 0, actual.length));
+        }
+        assertEquals(5512, n);
+        assertArrayEquals(expected, actual, delta);
+    }
+
+    @Test
+    public void floatReadMatchesDoubleRead() throws Exception {
+        final File mono = TestUtils.newWavFile(11025, 1, 0.5);
+        final File stereo = TestUtils.newWavFile(44100, 2, 0.5);
+        assertSameFloatSamples(new JavaSoundSampleSource(stereo), new JavaSoundSampleSource(stereo));
+        assertSameFloatSamples(MappedWavSampleSource.open(mono), MappedWavSampleSource.open(mono));
+        assertSameFloatSamples(MappedWavSampleSource.open(stereo), MappedWavSampleSource.open(stereo));
+        assertSameFloatSamples(new DecimatingSampleSource(MappedWavSampleSource.open(stereo), 4),
+                new DecimatingSampleSource(MappedWavSampleSource.open(stereo), 4));
+    }
+
+    private static void assertSameFloatSamples(final SampleSource doubles, final SampleSource floats) throws Exception {
+        try (SampleSource d = doubles; SampleSource f = floats) {
+            final double[] expected = new double[500];
+            final float[] actual = new float[500];
+            int total = 0;
+            int n;
+            while ((n = d.read(expected, 0, expected.length)) > 0) {
+                assertEquals(n, f.read(actual, 0, actual.length));
+                for (int i = 0; i < n; i++)
+                    assertEquals(expected[i], actual[i], 1e-6);
+                total += n;
+            }
+            assertEquals(-1, f.read(actual, 0, actual.length));
+            assertTrue(total > 0);
+        }
+    }
+
+    @Test
+    public void decimationKeepsLowFrequenciesAndRemovesAliases() throws Exception {
+        assertEquals(0.5, rms(TestUtils.newWavFile(44100, t -> 0.5 * Math.sqrt(2) * Math.sin(2 * Math.PI * 440 * t), 1.0)), 0.01);
+        assertEquals(0.0, rms(TestUtils.newWavFile(44100, t -> 0.5 * Math.sqrt(2) * Math.sin(2 * Math.PI * 8000 * t), 1.0)), 0.005);
+    }
+
+    /** rms of the file decimated to 11025 Hz, skipping the filter transient */
+    private static double rms(final File wav) throws Exception {
+        try (AudioReader reader = new AudioReader(wav, 11025)) {
+            assertEquals(11025, reader.getSampleRate(), 0.0f);
+            final double[] samples = reader.readDoubleSamples(20000);
+            assertEquals(11025, samples.length);
+            double energy = 0;
+            for (int i = 1000; i < samples.length; i++)
+                energy += samples[i] * samples[i];
+            return Math.sqrt(energy / (samples.length - 1000));
+        }
+    }
+}
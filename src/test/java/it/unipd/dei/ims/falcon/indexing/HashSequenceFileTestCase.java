@@ -0,0 +1,72 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.analysis.transposition.ForcedTranspositionEstimator;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that hash sequence files round trip and that an index re-built from
+ * them is the same as one built from the chroma files.
+ */
+public class HashSequenceFileTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeSongs(int songs, int frames) throws Exception {
+        return TestUtils.newChromaDir(folder.newFolder("chroma"), "song", songs, frames, 7);
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        final ForcedTranspositionEstimator tpe = new ForcedTranspositionEstimator(new int[]{3, 5});
+        final int[][] sequences = {{1, -1, 42, 7}, {}};
+        final File f = folder.newFile();
+        new HashSequenceFile("song", 3, 2, 1.5, tpe, sequences).write(f);
+
+        assertTrue(HashSequenceFile.isHashSequenceFile(f));
+        final HashSequenceFile read = HashSequenceFile.read(f);
+        assertEquals("song", read.getTitle());
+        assertEquals(2, read.getSequenceCount());
+        assertArrayEquals(sequences[0], read.getSequence(0));
+        assertArrayEquals(sequences[1], read.getSequence(1));
+        assertTrue(read.matches(3, 2, 1.5, new ForcedTranspositionEstimator(new int[]{3, 5})));
+        assertFalse(read.matches(3, 2, 1.5, null));
+        assertFalse(read.matches(4, 2, 1.5, tpe));
+        assertFalse(HashSequenceFile.isHashSequenceFile(folder.newFile()));
+    }
+
+    @Test
+    public void rebuildMatchesIndexing() throws Exception {
+        final File chroma = writeSongs(3, 200);
+        final File sequences = new File(folder.getRoot(), "sequences");
+        final File indexed = folder.newFolder("indexed");
+        final File rebuilt = folder.newFolder("rebuilt");
+
+        Indexing.index(chroma, folder.newFolder("first"), 20, 5, 1, 3, -100, null, sequences, false);
+        assertEquals(3, sequences.listFiles().length);
+        Indexing.index(chroma, indexed, 30, 10, 1, 3, -100, null, false);
+        Indexing.rebuild(sequences, rebuilt, 30, 10, 1, 3, -100, null, false);
+
+        final byte[] expected = Files.readAllBytes(new File(indexed, "qpruning_features.map").toPath());
+        assertTrue(expected.length > 0);
+        assertArrayEquals(expected, Files.readAllBytes(new File(rebuilt, "qpruning_features.map").toPath()));
+    }
+
+    @Test(expected = IndexingException.class)
+    public void rebuildRequiresMatchingParameters() throws Exception {
+        final File sequences = new File(folder.getRoot(), "sequences");
+        Indexing.index(writeSongs(1, 50), folder.newFolder("index"), 20, 5, 1, 3, -100, null, sequences, false);
+        Indexing.rebuild(sequences, folder.newFolder("rebuilt"), 20, 5, 1, 4, -100, null, false);
+    }
+}
@@ -0,0 +1,85 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the binary hash statistics against "qpruning_features.map".
+ */
+public class HashStatsFileTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File index() throws Exception {
+        final File chroma = TestUtils.newChromaDir(folder.newFolder("chroma"), "song", 6, 120, 5);
+        final File index = folder.newFolder("index");
+        Indexing.index(chroma, index, 30, 10, 1, 3, -100, null, false);
+        return index;
+    }
+
+    private static void assertSameAsMap(File index, HashStatsFile stats) throws Exception {
+        final List<String> lines = Files.readAllLines(new File(index, "qpruning_features.map").toPath());
+        assertEquals(lines.size(), stats.size());
+        for (String line : lines) {
+            final String[] values = line.split("\t");
+            final int ordinal = stats.ordinal(Integer.parseInt(values[0]));
+            assertTrue(ordinal >= 0);
+            assertEquals(Integer.parseInt(values[0]), stats.getHash(ordinal));
+            assertEquals(Double.parseDouble(values[1]), stats.getNdf(ordinal), 0);
+            assertEquals(Double.parseDouble(values[2]), stats.getNcf(ordinal), 0);
+            assertEquals(Double.parseDouble(values[3]), stats.getNmf(ordinal), 0);
+        }
+    }
+
+    @Test
+    public void matchesTextFeatures() throws Exception {
+        final File index = index();
+        final IndexReader reader = IndexReader.open(new SimpleFSDirectory(index), true);
+        final HashStatsFile stats = HashStatsFile.open(index, reader);
+        assertEquals(reader.getVersion(), stats.getIndexVersion());
+        assertSameAsMap(index, stats);
+        assertEquals(-1, stats.ordinal(-1));
+        assertEquals(-1, stats.ordinal(Integer.MAX_VALUE));
+
+        // statistics of another version of the index are counted again
+        final File file = new File(index, HashStatsFile.FILE_NAME);
+        HashStatsFile.write(file, reader.getVersion() - 1, new int[]{1}, new double[]{1}, new double[]{1}, new double[]{1});
+        assertSameAsMap(index, HashStatsFile.open(index, reader));
+        assertEquals(reader.getVersion(), HashStatsFile.open(index, reader).getIndexVersion());
+
+        // indexes without the binary file
+        assertTrue(file.delete());
+        assertSameAsMap(index, HashStatsFile.open(index, reader));
+        reader.close();
+    }
+
+    @Test
+    public void sparseHashes() throws Exception {
+        final int[] hashes = {1 << 30, -7, 12, Integer.MIN_VALUE};
+        final File file = new File(folder.getRoot(), HashStatsFile.FILE_NAME);
+        HashStatsFile.write(file, 1, hashes, new double[]{.1, .2, .3, .4}, new double[]{1, 2, 3, 4}, new double[]{0, 0, 0, 1});
+        final HashStatsFile stats = HashStatsFile.read(file);
+        assertEquals(1, stats.getIndexVersion());
+        assertEquals(4, stats.size());
+        for (int i = 0; i < hashes.length; i++) {
+            final int ordinal = stats.ordinal(hashes[i]);
+            assertEquals(hashes[i], stats.getHash(ordinal));
+            assertEquals(i + 1, stats.getNcf(ordinal), 0);
+        }
+        assertEquals(0, stats.ordinal(Integer.MIN_VALUE));
+        assertEquals(-1, stats.ordinal(13));
+        assertEquals(-1, stats.ordinal(Integer.MAX_VALUE));
+    }
+}
@@ -0,0 +1,53 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks round trip and ordering of the hash term encodings.
+ */
+public class HashTermEncodingTestCase {
+
+    @Test
+    public void binaryTermsRoundTripAndSortAsHashes() {
+        final Random random = new Random(5);
+        for (int nranks = 1; nranks <= 8; nranks++) {
+            final HashTermEncoding encoding = HashTermEncoding.binary(nranks);
+            final long max = 1L << Math.min(32, 4 * nranks);
+            String previous = null;
+            long previousHash = -1;
+            for (int i = 0; i < 1000; i++) {
+                final long hash = previousHash + 1 + (long) (random.nextDouble() * (max - previousHash - 1) / 100);
+                if (hash >= max)
+                    break;
+                final String term = encoding.encode((int) hash);
+                assertEquals(hash, encoding.decode(term) & 0xffffffffL);
+                if (previous != null)
+                    assertTrue(previous.compareTo(term) < 0);
+                previous = term;
+                previousHash = hash;
+            }
+        }
+        assertEquals(2, HashTermEncoding.binary(3).encode(0xcba).length());
+        assertEquals(5, HashTermEncoding.binary(8).encode(-1).length());
+    }
+
+    @Test
+    public void namesRoundTrip() {
+        assertEquals(HashTermEncoding.DECIMAL, HashTermEncoding.forName("decimal", 3));
+        assertEquals(HashTermEncoding.binary(3), HashTermEncoding.forName("binary", 3));
+        assertEquals(HashTermEncoding.binary(7), HashTermEncoding.forName(HashTermEncoding.binary(7).toString(), 0));
+        assertEquals(HashTermEncoding.DECIMAL, HashTermEncoding.read(new HashMap<String, String>()));
+        assertEquals("123", HashTermEncoding.DECIMAL.encode(123));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void binaryTermsRejectWiderHashes() {
+        HashTermEncoding.binary(3).encode(1 << 14);
+    }
+}
@@ -0,0 +1,49 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the hash token stream emits the terms of the analyzed text it replaces.
+ */
+public class HashTokenStreamTestCase {
+
+    private static List<String> terms(TokenStream stream) throws Exception {
+        final TermAttribute term = stream.addAttribute(TermAttribute.class);
+        final List<String> terms = new ArrayList<>();
+        stream.reset();
+        while (stream.incrementToken())
+            terms.add(term.term());
+        stream.end();
+        stream.close();
+        return terms;
+    }
+
+    @Test
+    public void termsMatchAnalyzedText() throws Exception {
+        final int[] hashes = {7, 0, 123456789, 10, 99, 100, 2147483647, 4660, 1};
+        final StringBuilder text = new StringBuilder();
+        for (int i = 2; i < 8; i++)
+            text.append(hashes[i]).append(' ');
+        final TokenStream analyzed = new StandardAnalyzer(Version.LUCENE_30)
+                .tokenStream("CONTENT", new StringReader(text.toString()));
+
+        assertEquals(terms(analyzed), terms(new HashTokenStream(hashes, 2, 6, HashTermEncoding.DECIMAL)));
+    }
+
+    @Test
+    public void formatsAnyInt() {
+        final char[] buffer = new char[11];
+        for (int v : new int[]{0, 9, -1, -10, 1000000, Integer.MAX_VALUE, Integer.MIN_VALUE})
+            assertEquals(Integer.toString(v), new String(buffer, 0, HashTermEncoding.formatDecimal(v, buffer)));
+    }
+}
@@ -0,0 +1,160 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the staged indexing pipeline against indexing with one worker per stage.
+ */
+public class IndexingTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeSongs(int songs, int frames) throws Exception {
+        return TestUtils.newChromaDir(folder.newFolder("chroma"), "song", songs, frames, 11);
+    }
+
+    private static byte[] features(File index) throws Exception {
+        return Files.readAllBytes(new File(index, "qpruning_features.map").toPath());
+    }
+
+    @Test
+    public void parallelIndexingMatchesSequential() throws Exception {
+        final File chroma = writeSongs(20, 150);
+        final File sequential = folder.newFolder("sequential");
+        final File parallel = folder.newFolder("parallel");
+
+        Indexing.index(chroma, sequential, 30, 10, 1, 3, -100, null, null, null, new int[]{1, 1, 1, 1}, false);
+        Indexing.index(chroma, parallel, 30, 10, 1, 3, -100, null, null, null, new int[]{3, 2, 2, 4}, false);
+
+        assertArrayEquals(features(sequential), features(parallel));
+        final IndexReader reader = IndexReader.open(new SimpleFSDirectory(parallel));
+        assertEquals(20 * 7, reader.numDocs());
+        reader.close();
+    }
+
+    @Test
+    public void failedSongRollsBackIndex() throws Exception {
+        final File chroma = writeSongs(10, 100);
+        final File index = folder.newFolder("index");
+        Indexing.index(chroma, index, 30, 10, 1, 3, -100, null, false);
+        final byte[] before = features(index);
+
+        final File broken = new File(chroma, "song5");
+        // binary chroma magic bytes, with a truncated header
+        Files.write(broken.toPath(), new byte[]{'F', 'C', 'H', 'R', 1});
+        try {
+            Indexing.index(chroma, index, 30, 10, 1, 3, -100, null, null, null, new int[]{2, 2, 2, 2}, false);
+            fail("broken chroma file indexed");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains(broken.getAbsolutePath()));
+        }
+
+        final IndexReader reader = IndexReader.open(new SimpleFSDirectory(index));
+        assertEquals(10 * 4, reader.numDocs());
+        reader.close();
+        assertArrayEquals(before, features(index));
+    }
+
+    @Test(timeout = 30000)
+    public void errorInStageStopsPipeline() throws Exception {
+        final List<File> files = new ArrayList<File>();
+        for (int s = 0; s < 50; s++)
+            files.add(new File("song" + s));
+        final IndexingPipeline pipeline = new IndexingPipeline();
+        pipeline.addStage("parse", 2, new IndexingPipeline.Step() {
+            public boolean process(IndexingPipeline.Song song) {
+                return true;
+            }
+        });
+        pipeline.addStage("hash", 2, new IndexingPipeline.Step() {
+            public boolean process(IndexingPipeline.Song song) {
+                if (song.file.getName().equals("song7"))
+                    throw new OutOfMemoryError("test");
+                return true;
+            }
+        });
+        pipeline.addStage("write", 1, new IndexingPipeline.Step() {
+            public boolean process(IndexingPipeline.Song song) {
+                return true;
+            }
+        });
+        try {
+            pipeline.run(files);
+            fail("error in a stage not reported");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("song7"));
+            assertTrue(ex.getCause() instanceof OutOfMemoryError);
+        }
+    }
+
+    @Test
+    public void binaryTermsIndexTheSameHashes() throws Exception {
+        final File chroma = writeSongs(8, 120);
+        final File decimal = folder.newFolder("decimal");
+        final File binary = folder.newFolder("binary");
+        Indexing.index(chroma, decimal, 30, 10, 1, 3, -100, null, false);
+        Indexing.index(chroma, binary, 30, 10, 1, 3, -100, null, null, HashTermEncoding.binary(3), new int[]{1, 1, 1, 1}, false);
+
+        assertEquals(sortedLines(decimal), sortedLines(binary));
+        final IndexReader reader = IndexReader.open(new SimpleFSDirectory(binary));
+        assertEquals(HashTermEncoding.binary(3), HashTermEncoding.read(reader));
+        reader.close();
+
+        try {
+            Indexing.index(chroma, binary, 30, 10, 1, 3, -100, null, null, HashTermEncoding.DECIMAL, new int[]{1, 1, 1, 1}, false);
+            fail("index with mixed term encodings");
+        } catch (IndexingException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void addingSongsUpdatesHashCounts() throws Exception {
+        final File chroma = writeSongs(12, 120);
+        final File whole = folder.newFolder("whole");
+        Indexing.index(chroma, whole, 30, 10, 1, 3, -100, null, false);
+
+        final File first = folder.newFolder("first");
+        final File second = folder.newFolder("second");
+        for (int s = 0; s < 12; s++) {
+            final File song = new File(chroma, "song" + s);
+            Files.copy(song.toPath(), new File(s < 9 ? first : second, song.getName()).toPath());
+        }
+        final File incremental = folder.newFolder("incremental");
+        Indexing.index(first, incremental, 30, 10, 1, 3, -100, null, false);
+        Indexing.index(second, incremental, 30, 10, 1, 3, -100, null, false);
+        assertArrayEquals(features(whole), features(incremental));
+
+        // indexes without stored counts are counted from their postings
+        final File legacy = folder.newFolder("legacy");
+        Indexing.index(first, legacy, 30, 10, 1, 3, -100, null, false);
+        assertTrue(new File(legacy, HashCounts.FILE_NAME).delete());
+        Indexing.index(second, legacy, 30, 10, 1, 3, -100, null, false);
+        assertArrayEquals(features(whole), features(legacy));
+        assertEquals(12 * 5, HashCounts.read(new File(legacy, HashCounts.FILE_NAME)).getSegments());
+    }
+
+    private static List<String> sortedLines(File index) throws Exception {
+        final List<String> lines = Files.readAllLines(new File(index, "qpruning_features.map").toPath());
+        Collections.sort(lines);
+        return lines;
+    }
+}
@@ -0,0 +1,61 @@
+package it.unipd.dei.ims.falcon.indexing;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the song table stored with the index against the stored titles.
+ */
+public class SongTableTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeSongs(String name, int songs) throws Exception {
+        return TestUtils.newChromaDir(folder.newFolder(name), name, songs, 90, songs);
+    }
+
+    private static void assertDescribes(SongTable table, IndexReader reader) throws Exception {
+        for (int doc = 0; doc < reader.maxDoc(); doc++)
+            assertEquals(reader.document(doc).get("TITLE"), table.getTitle(table.getSong(doc)));
+    }
+
+    @Test
+    public void storedWithTheIndex() throws Exception {
+        final File index = folder.newFolder("index");
+        // several writers, so that the segments of different songs can be interleaved
+        Indexing.index(writeSongs("a", 8), index, 30, 10, 1, 3, -100, null, null, null, new int[]{2, 2, 2, 3}, false);
+        final File stale = new File(folder.getRoot(), "stale");
+        Files.copy(new File(index, SongTable.FILE_NAME).toPath(), stale.toPath());
+
+        IndexReader reader = IndexReader.open(new SimpleFSDirectory(index), true);
+        final SongTable stored = SongTable.read(new File(index, SongTable.FILE_NAME));
+        assertEquals(8, stored.getSongCount());
+        assertDescribes(stored, reader);
+        assertDescribes(SongTable.open(index, reader), reader);
+        reader.close();
+
+        Indexing.index(writeSongs("b", 3), index, 30, 10, 1, 3, -100, null, false);
+        reader = IndexReader.open(new SimpleFSDirectory(index), true);
+        assertEquals(11, SongTable.read(new File(index, SongTable.FILE_NAME)).getSongCount());
+        // a table of a previous version of the index is not used
+        Files.copy(stale.toPath(), new File(index, SongTable.FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        final SongTable table = SongTable.open(index, reader);
+        assertEquals(11, table.getSongCount());
+        assertDescribes(table, reader);
+        assertTrue(new File(index, SongTable.FILE_NAME).delete());
+        assertDescribes(SongTable.open(index, reader), reader);
+        reader.close();
+    }
+}
@@ -0,0 +1,92 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.analysis.transposition.ForcedTranspositionEstimator;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that searchers can be shared by concurrent queries and that several
+ * of them can be open at the same time.
+ */
+public class FalconSearcherTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File writeSongs(String name, int songs, long seed) throws Exception {
+        return TestUtils.newChromaDir(folder.newFolder(name), name, songs, 100, seed);
+    }
+
+    private static Map<String, Double> query(FalconSearcher searcher, File song) throws Exception {
+        try (InputStream in = new FileInputStream(song)) {
+            return searcher.query(in, 30, 10, 3, 1, new ForcedTranspositionEstimator(new int[]{0, 1, 2}), 3, -100,
+                            new StaticQueryPruningStrategy("ntf:0.5*[0.0,1.0];ndf:0.6*[0.0,0.5];ncf:0.2*[0.0,1.0];nmf:0.3*[0.0,1.0];"))
+                            .getResults();
+        }
+    }
+
+    @Test
+    public void concurrentQueriesOnSeveralIndexes() throws Exception {
+        final File[] chroma = {writeSongs("a", 6, 1), writeSongs("b", 4, 2)};
+        final FalconSearcher[] searchers = new FalconSearcher[2];
+        final List<File> queries = new ArrayList<File>();
+        for (int i = 0; i < 2; i++) {
+            final File index = folder.newFolder("index" + i);
+            Indexing.index(chroma[i], index, 30, 10, 1, 3, -100, null, false);
+            searchers[i] = new FalconSearcher(index);
+            for (File song : chroma[i].listFiles())
+                queries.add(song);
+        }
+
+        final List<Map<String, Double>> expected = new ArrayList<Map<String, Double>>();
+        for (File song : queries) {
+            final Map<String, Double> results = query(searchers[song.getName().startsWith("a") ? 0 : 1], song);
+            assertTrue(results.containsKey(song.getAbsolutePath()));
+            expected.add(results);
+        }
+
+        final ExecutorService pool = Executors.newFixedThreadPool(4);
+        final List<Future<Map<String, Double>>> results = new ArrayList<Future<Map<String, Double>>>();
+        for (int round = 0; round < 3; round++) {
+            for (final File song : queries) {
+                results.add(pool.submit(new Callable<Map<String, Double>>() {
+                    public Map<String, Double> call() throws Exception {
+                        return query(searchers[song.getName().startsWith("a") ? 0 : 1], song);
+                    }
+                }));
+            }
+        }
+        for (int i = 0; i < results.size(); i++)
+            assertEquals(expected.get(i % queries.size()), results.get(i).get());
+        pool.shutdown();
+
+        searchers[0].close();
+        try {
+            query(searchers[0], queries.get(0));
+            fail("query on a closed searcher");
+        } catch (AlreadyClosedException ex) {
+            // expected
+        }
+        assertEquals(expected.get(queries.size() - 1), query(searchers[1], queries.get(queries.size() - 1)));
+        searchers[1].close();
+    }
+}
@@ -0,0 +1,90 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.indexing.HashStatsFile;
+import it.unipd.dei.ims.falcon.indexing.HashTermEncoding;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the scores of a bag of hashes against those of a boolean query of
+ * one {@link HashQuery} for each hash.
+ */
+public class HashBagTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void sameScoresAsHashQueries() throws Exception {
+        final File chroma = TestUtils.newChromaDir(folder.newFolder("chroma"), "song", 5, 100, 7);
+        final Random random = new Random(7);
+        final File index = folder.newFolder("index");
+        Indexing.index(chroma, index, 30, 10, 1, 3, -100, null, false);
+
+        final IndexReader reader = IndexReader.open(new SimpleFSDirectory(index), true);
+        final HashStatsFile stats = HashStatsFile.open(index, reader);
+        final IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new HashSimilarity());
+        final HashTermEncoding encoding = HashTermEncoding.read(reader);
+
+        for (int q = 0; q < 10; q++) {
+            // a bag of hashes of the index, plus one which is not in the index
+            final Map<Integer, Integer> frequencies = new HashMap<Integer, Integer>();
+            for (int i = 0; i < 20; i++) {
+                final int hash = stats.getHash(random.nextInt(stats.size()));
+                frequencies.put(hash, frequencies.containsKey(hash) ? frequencies.get(hash) + 1 : 1);
+            }
+            frequencies.put(-1, 1);
+            final Term[] terms = new Term[frequencies.size()];
+            final int[] qtfs = new int[frequencies.size()];
+            final SegmentQuery expectedQuery = new SegmentQuery(30);
+            int n = 0;
+            for (Map.Entry<Integer, Integer> e : frequencies.entrySet()) {
+                terms[n] = encoding.term(e.getKey());
+                qtfs[n] = e.getValue();
+                expectedQuery.add(new HashQuery(terms[n], qtfs[n], 30, 1.0f / 30));
+                n++;
+            }
+            final HashBag bag = new HashBag(terms, qtfs, 30, 30);
+
+            final Map<Integer, Float> expected = new HashMap<Integer, Float>();
+            for (ScoreDoc sd : searcher.search(expectedQuery, reader.maxDoc()).scoreDocs)
+                expected.put(sd.doc, sd.score);
+            assertTrue(!expected.isEmpty());
+
+            // the counts of the hashes of each document segment
+            final Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+            for (int i = 0; i < bag.size(); i++) {
+                final TermDocs termDocs = reader.termDocs(bag.getTerm(i));
+                while (termDocs.next()) {
+                    final Integer count = counts.get(termDocs.doc());
+                    counts.put(termDocs.doc(), (count == null ? 0 : count) + bag.count(i, termDocs.freq()));
+                }
+                termDocs.close();
+            }
+            assertEquals(expected.keySet(), counts.keySet());
+            for (Map.Entry<Integer, Integer> e : counts.entrySet())
+                assertEquals(expected.get(e.getKey()), bag.score(e.getValue()), 1e-6);
+        }
+        searcher.close();
+        reader.close();
+    }
+}
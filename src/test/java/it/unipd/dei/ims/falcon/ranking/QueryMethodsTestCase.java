@@ -0,0 +1,52 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Map;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the searchers kept by {@link QueryMethods} follow the changes
+ * of the index.
+ */
+public class QueryMethodsTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @After
+    public void closeSearchers() throws Exception {
+        QueryMethods.closeAll();
+    }
+
+    private static Map<String, Double> query(File song, File index) throws Exception {
+        try (InputStream in = new FileInputStream(song)) {
+            return QueryMethods.query(in, index, 30, 10, 3, 1, null, 1, -100, null).getResults();
+        }
+    }
+
+    @Test
+    public void reindexedSongsAreFound() throws Exception {
+        final File chroma = folder.newFolder("chroma");
+        final File index = folder.newFolder("index");
+        TestUtils.newChromaDir(chroma, "a", 3, 100, 1);
+        Indexing.index(chroma, index, 30, 10, 1, 3, -100, null, false);
+        final File added = new File(chroma, "b0");
+        assertTrue(query(new File(chroma, "a0"), index).containsKey(new File(chroma, "a0").getAbsolutePath()));
+
+        TestUtils.newChromaDir(chroma, "b", 1, 100, 2);
+        assertFalse(added.getAbsolutePath() + " not indexed yet", query(added, index).containsKey(added.getAbsolutePath()));
+        Indexing.index(chroma, index, 30, 10, 1, 3, -100, null, false);
+        assertTrue(query(added, index).containsKey(added.getAbsolutePath()));
+    }
+}
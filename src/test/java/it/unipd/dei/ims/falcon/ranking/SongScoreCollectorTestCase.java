@@ -0,0 +1,88 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.indexing.HashStatsFile;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import it.unipd.dei.ims.falcon.indexing.SongTable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the song scores of the collector against the maximum score of the
+ * songs in the top documents.
+ */
+public class SongScoreCollectorTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void maxScoreOfEachSong() throws Exception {
+        final File chroma = TestUtils.newChromaDir(folder.newFolder("chroma"), "song", 5, 100, 3);
+        final Random random = new Random(3);
+        final File index = folder.newFolder("index");
+        Indexing.index(chroma, index, 30, 10, 1, 3, -100, null, false);
+
+        // a query made of hashes of the index
+        final IndexReader reader = IndexReader.open(new SimpleFSDirectory(index), true);
+        final HashStatsFile stats = HashStatsFile.open(index, reader);
+        final StringBuilder hashes = new StringBuilder();
+        for (int i = 0; i < 60; i++)
+            hashes.append(stats.getHash(random.nextInt(stats.size()))).append(' ');
+        final QueryParser parser = new QueryParser(null);
+        parser.setDocumentSegmentLength(30);
+        parser.extractQuery(new ByteArrayInputStream(hashes.toString().getBytes("UTF-8")), 30, 10);
+
+        final IndexSearcher searcher = new IndexSearcher(reader);
+        searcher.setSimilarity(new HashSimilarity());
+        final SongTable songs = SongTable.open(index, reader);
+
+        for (int i = 0; i < parser.getNumberOfSegments(); i++) {
+            // any query on the hashes of the segment
+            final Set<Term> terms = new HashSet<Term>();
+            parser.getQueryFromSegment(i).extractTerms(terms);
+            final BooleanQuery query = new BooleanQuery();
+            for (Term term : terms)
+                query.add(new TermQuery(term), BooleanClause.Occur.SHOULD);
+            final Map<String, Double> expected = new HashMap<String, Double>();
+            final TopDocs td = searcher.search(query, reader.numDocs());
+            for (ScoreDoc sd : td.scoreDocs) {
+                final String title = reader.document(sd.doc).get("TITLE");
+                if (!expected.containsKey(title))
+                    expected.put(title, (double) sd.score);
+            }
+            assertTrue(!expected.isEmpty());
+
+            final SongScoreCollector collector = new SongScoreCollector(songs, 1);
+            searcher.search(query, collector);
+            collector.endSegment();
+            final Map<String, Double> scores = collector.getScores();
+            assertEquals(expected.keySet(), scores.keySet());
+            for (String title : expected.keySet())
+                assertEquals(expected.get(title), scores.get(title), 1e-12);
+        }
+        searcher.close();
+        reader.close();
+    }
+}
@@ -0,0 +1,100 @@
+package it.unipd.dei.ims.falcon.ranking;
+
+import it.unipd.dei.ims.falcon.TestUtils;
+import it.unipd.dei.ims.falcon.indexing.HashStatsFile;
+import it.unipd.dei.ims.falcon.indexing.Indexing;
+import it.unipd.dei.ims.falcon.indexing.SongTable;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.store.SimpleFSDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the term at a time evaluation of a query against the evaluation of
+ * each of its segment queries on its own.
+ */
+public class TermAtATimeEvaluatorTestCase {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sameScoresAsEachSegmentQuery() throws Exception {
+        final File chroma = TestUtils.newChromaDir(folder.newFolder("chroma"), "song", 5, 100, 5);
+        final Random random = new Random(5);
+        final File index = folder.newFolder("index");
+        Indexing.index(chroma, index, 30, 10, 1, 3, -100, null, false);
+
+        // a query made of hashes of the index, with overlapping segments
+        final IndexReader reader = IndexReader.open(new SimpleFSDirectory(index), true);
+        final HashStatsFile stats = HashStatsFile.open(index, reader);
+        final StringBuilder hashes = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            hashes.append(stats.getHash(random.nextInt(stats.size()))).append(' ');
+
+        final SongTable songs = SongTable.open(index, reader);
+        // reused across queries, as by the searcher threads
+        final TermAtATimeEvaluator evaluator = new TermAtATimeEvaluator(reader, TermAtATimeEvaluator.DEFAULT_CACHE_BYTES);
+
+        for (QueryPruningStrategy pruning : new QueryPruningStrategy[]{null, 
+                new StaticQueryPruningStrategy("ntf:0.5*[0.0,1.0];ndf:0.6*[0.0,0.5];ncf:0.2*[0.0,1.0];nmf:0.3*[0.0,1.0];")}) {
+            final QueryParser parser = new QueryParser(pruning);
+            parser.setQueryPruningHashFeatures(stats);
+            parser.setDocumentSegmentLength(30);
+            parser.extractQuery(new ByteArrayInputStream(hashes.toString().getBytes("UTF-8")), 30, 20);
+            final int nseg = parser.getNumberOfSegments();
+
+            final SongScoreCollector expectedCollector = new SongScoreCollector(songs, nseg);
+            for (int i = 0; i < nseg; i++) {
+                final HashBag bag = parser.getQueryFromSegment(i);
+                final Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+                for (int h = 0; h < bag.size(); h++) {
+                    final TermDocs termDocs = reader.termDocs(bag.getTerm(h));
+                    while (termDocs.next()) {
+                        final Integer count = counts.get(termDocs.doc());
+                        counts.put(termDocs.doc(), (count == null ? 0 : count) + bag.count(h, termDocs.freq()));
+                    }
+                    termDocs.close();
+                }
+                for (Map.Entry<Integer, Integer> e : counts.entrySet())
+                    expectedCollector.collect(e.getKey(), bag.score(e.getValue()));
+                expectedCollector.endSegment();
+            }
+            final Map<String, Double> expected = expectedCollector.getScores();
+            assertTrue(!expected.isEmpty());
+
+            final SongScoreCollector collector = new SongScoreCollector(songs, nseg);
+            final long read = evaluator.getPostingsRead();
+            evaluator.evaluate(parser, collector);
+            assertEquals(expected, collector.getScores());
+
+            // each distinct hash is read once, instead of once for each segment
+            final Set<Term> terms = new HashSet<Term>();
+            for (int i = 0; i < nseg; i++)
+                parser.getQueryFromSegment(i).extractTerms(terms);
+            assertEquals(terms.size(), evaluator.getPostingsRead() - read);
+
+            // without room for the posting lists, they are read again when needed
+            final SongScoreCollector uncachedCollector = new SongScoreCollector(songs, nseg);
+            final TermAtATimeEvaluator uncached = new TermAtATimeEvaluator(reader, 0);
+            uncached.evaluate(parser, uncachedCollector);
+            assertEquals(expected, uncachedCollector.getScores());
+            assertTrue(uncached.getPostingsRead() > terms.size());
+        }
+        reader.close();
+    }
+}